@@ -0,0 +1,64 @@
+"""Decoder for DeviceImu messages published with the PACKED_F32 encoding.
+
+    import zmq
+    from imu_packed import decode
+
+    socket = zmq.Context().socket(zmq.SUB)
+    socket.connect("ipc:///ipc/device_imu")
+    socket.setsockopt(zmq.SUBSCRIBE, b"")
+    sample = decode(socket.recv())
+    print(sample.filtered_angular_velocity, sample.timestamps_ns[4])
+"""
+
+import struct
+from collections import namedtuple
+
+MAGIC = b"AIMU"
+VERSION = 1
+
+# u32 magic, u16 version, u16 size, u64 publish ts, i64 x 6 timestamps, f32 x 19 values
+_LAYOUT = struct.Struct("<4sHHQ6q19f")
+assert _LAYOUT.size == 140
+
+ImuSample = namedtuple("ImuSample", [
+    "version",
+    "publish_timestamp_ns",
+    # raw acceleration, angular velocity, magnetic field,
+    # filtered acceleration, angular velocity, orientation
+    "timestamps_ns",
+    "raw_acceleration",
+    "raw_angular_velocity",
+    "raw_magnetic_field_in_micro_tesla",
+    "filtered_acceleration",
+    "filtered_angular_velocity",
+    "orientation",  # x, y, z, w
+])
+
+
+def is_packed(message):
+    """True if the message is PACKED_F32 rather than an anx.ImuData protobuf."""
+    return len(message) >= 4 and bytes(message[:4]) == MAGIC
+
+
+def decode(message):
+    """Decodes one message into an ImuSample, raises ValueError if it is not PACKED_F32."""
+    if len(message) < _LAYOUT.size:
+        raise ValueError("message of %d bytes is too short" % len(message))
+    fields = _LAYOUT.unpack_from(message)
+    magic, version, size = fields[0], fields[1], fields[2]
+    if magic != MAGIC:
+        raise ValueError("not a packed IMU message")
+    if size < _LAYOUT.size or size > len(message):
+        raise ValueError("invalid size %d" % size)
+    values = fields[10:]
+    return ImuSample(
+        version=version,
+        publish_timestamp_ns=fields[3],
+        timestamps_ns=fields[4:10],
+        raw_acceleration=values[0:3],
+        raw_angular_velocity=values[3:6],
+        raw_magnetic_field_in_micro_tesla=values[6:9],
+        filtered_acceleration=values[9:12],
+        filtered_angular_velocity=values[12:15],
+        orientation=values[15:19],
+    )
@@ -4,6 +4,7 @@ import android.os.Build
 import androidx.annotation.RequiresApi
 import com.flomobility.anx.assets.gnss.DeviceGnss
 import com.flomobility.anx.assets.imu.DeviceImu
+import com.flomobility.anx.assets.sensors.DeviceSensors
 import com.flomobility.anx.common.toStdResponse
 import com.flomobility.anx.proto.Assets
 import com.flomobility.anx.proto.Common
@@ -14,11 +15,13 @@ import javax.inject.Singleton
 @Singleton
 class AssetManager @Inject constructor(
     private val deviceImu: DeviceImu,
-    private val deviceGnss: DeviceGnss
+    private val deviceGnss: DeviceGnss,
+    private val deviceSensors: DeviceSensors
 ) {
 
     fun init() {
         deviceImu.init()
+        deviceSensors.init()
     }
 
     fun startDeviceImu(startDeviceImu: Assets.StartDeviceImu): Common.StdResponse {
@@ -26,13 +29,30 @@ class AssetManager @Inject constructor(
         return status.toStdResponse()
     }
 
-    fun stopDeviceImu(): Common.StdResponse {
-        val status = deviceImu.stop()
+    fun stopDeviceImu(stopDeviceImu: Assets.StopDeviceImu): Common.StdResponse {
+        val status = deviceImu.stop(stopDeviceImu.fps)
         return status.toStdResponse()
     }
 
+    fun getImuHistory(getImuHistory: Assets.GetImuHistory): Assets.ImuHistory {
+        return deviceImu.getHistory(
+            getImuHistory.sinceNs,
+            getImuHistory.maxSamples,
+            getImuHistory.fusedOrientation
+        )
+    }
+
+    fun startDeviceSensor(startDeviceSensor: Assets.StartDeviceSensor): Common.StdResponse {
+        val status = deviceSensors.start(startDeviceSensor)
+        return status.toStdResponse()
+    }
+
+    fun stopDeviceSensor(stopDeviceSensor: Assets.StopDeviceSensor): Common.StdResponse {
+        val status = deviceSensors.stop(stopDeviceSensor.type)
+        return status.toStdResponse()
+    }
 
-    fun startDeviceGnss(startDeviceGnss: Common.Empty): Common.StdResponse {
+    fun startDeviceGnss(startDeviceGnss: Assets.StartDeviceGnss): Common.StdResponse {
         val status = deviceGnss.start(startDeviceGnss)
         return status.toStdResponse()
     }
@@ -46,6 +66,7 @@ class AssetManager @Inject constructor(
         val assetState = Assets.AssetState.newBuilder().apply {
             this.imu = deviceImu.getDeviceImuSelect()
             this.gnss = deviceGnss.getDeviceGnssSelect()
+            this.addAllSensors(deviceSensors.getDeviceSensorSelects())
             // TODO : add selectors for camera
         }
         return assetState.build()
@@ -4,38 +4,63 @@ import android.content.Context
 import android.location.LocationManager
 import android.location.OnNmeaMessageListener
 import android.os.Build
-import android.os.Handler
-import android.os.Looper
-import android.os.Message
+import android.os.SystemClock
 import androidx.annotation.RequiresApi
 import com.flomobility.anx.assets.Asset
 import com.flomobility.anx.common.Result
 import com.flomobility.anx.proto.Assets
-import com.flomobility.anx.proto.Common
 import dagger.hilt.android.qualifiers.ApplicationContext
-import org.zeromq.SocketType
-import org.zeromq.ZContext
-import org.zeromq.ZMQ
 import timber.log.Timber
 import javax.inject.Inject
 import javax.inject.Singleton
-import com.flomobility.anx.common.Constants
 import com.flomobility.anx.native.zmq.Publisher
+import com.flomobility.anx.native.zmq.PublisherOptions
 import com.flomobility.anx.utils.AddressUtils
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
+import java.nio.ByteBuffer
 
+/**
+ * Publishes the NMEA sentences of the GPS provider one by one on device_gnss, a fix
+ * per epoch on device_gnss_fix and, once a client asked for the EPOCH mode, the
+ * sentences coalesced per epoch on device_gnss_epoch. An epoch is published once the
+ * next one starts or the receiver has been quiet for [EPOCH_IDLE_MS].
+ *
+ * The listener only queues the sentence in a bounded [NmeaSentenceQueue], a single
+ * publisher thread encodes it into a reused buffer and parses it, so that no
+ * message, builder or looper hop is needed per sentence.
+ * */
 @RequiresApi(Build.VERSION_CODES.N)
 @Singleton
 class DeviceGnss @Inject constructor(
     @ApplicationContext private val context: Context,
     private val deviceGnssManager: DeviceGnssManager
-) : Asset<Common.Empty>(), OnNmeaMessageListener {
+) : Asset<Assets.StartDeviceGnss>(), OnNmeaMessageListener {
 
     companion object {
         const val TAG = "DeviceGNSS"
-        private const val MSG_NMEA_DATA = 10
+        // a few seconds of NMEA bursts, older sentences are stale for subscribers
+        private const val GNSS_QUEUE_SIZE = 64
+        // a few epochs of a multi-constellation receiver
+        private const val SENTENCE_QUEUE_SIZE = 256
+        // bounds how long a lost wakeup could delay a sentence
+        private const val WAIT_TIMEOUT_MS = 100L
+        // receivers send an epoch in one burst, once quiet for this long the epoch is
+        // complete instead of waiting for the next one to start
+        private const val EPOCH_IDLE_MS = 50L
+        // the publisher thread drains the queue and closes its sockets before the endpoints are bound again
+        private const val JOIN_TIMEOUT_MS = 1000L
+
+        /**
+         * anx.GnssFix per epoch, next to the raw sentences on device_gnss.
+         * */
+        const val FIX_ENDPOINT = "device_gnss_fix"
+
+        /**
+         * anx.GnssEpoch per epoch in the EPOCH mode, next to the raw sentences on device_gnss.
+         * */
+        const val EPOCH_ENDPOINT = "device_gnss_epoch"
     }
 
     private val locationManager by lazy {
@@ -44,9 +69,14 @@ class DeviceGnss @Inject constructor(
         ) as LocationManager
     }
 
-    private val gnssData = Assets.GnssData.newBuilder()
+    @Volatile
+    private var publisherThread: GnssPublisherThread? = null
 
-    private var nmeaMsgThread: NMEAMessageThread? = null
+    /**
+     * Sentences dropped since the last start because the publisher thread fell behind.
+     * */
+    val droppedSentenceCount: Long
+        get() = publisherThread?.queue?.droppedCount ?: 0L
 
     fun getDeviceGnssSelect(): Assets.DeviceGnssSelect {
         return if (getGpsProvider()) {
@@ -70,19 +100,24 @@ class DeviceGnss @Inject constructor(
     }
 
     override fun onNmeaMessage(nmeadata: String?, timestamp: Long) {
-        gnssData.apply {
-            nmea = nmeadata.toString()
-        }
-        nmeaMsgThread?.publishNMEAData(gnssData.build())
+        nmeadata ?: return
+        publisherThread?.queue?.offer(nmeadata, SystemClock.elapsedRealtimeNanos())
     }
 
-    override fun start(options: Common.Empty?): Result {
+    override fun start(options: Assets.StartDeviceGnss?): Result {
+        val publishEpochs = options?.publishMode == Assets.StartDeviceGnss.PublishMode.EPOCH
         return try {
+            // every client shares the endpoints, a client asking for epochs only adds them
+            val thread = publisherThread ?: GnssPublisherThread().also {
+                publisherThread = it
+                it.start()
+            }
+            if (publishEpochs) {
+                thread.publishEpochs = true
+            }
             GlobalScope.launch(Dispatchers.Main) {
                 deviceGnssManager.init(this@DeviceGnss)
             }
-            nmeaMsgThread = NMEAMessageThread()
-            nmeaMsgThread?.start()
             Result(success = true)
         } catch (e: Exception) {
             Timber.e(e)
@@ -95,80 +130,150 @@ class DeviceGnss @Inject constructor(
         GlobalScope.launch(Dispatchers.Main) {
             deviceGnssManager.stop(this@DeviceGnss)
         }
-        nmeaMsgThread?.kill()
-        nmeaMsgThread = null
+        publisherThread?.let { thread ->
+            publisherThread = null
+            thread.kill()
+            thread.join(JOIN_TIMEOUT_MS)
+        }
         return Result(success = true, message = "Gnss thread stopped")
     }
 
 
-    inner class NMEAMessageThread : Thread() {
+    /**
+     * Publishes a GnssData per sentence and a GnssFix per epoch, and a GnssEpoch per
+     * epoch once [publishEpochs] is set, epochs being split by [NmeaParser].
+     * */
+    inner class GnssPublisherThread : Thread(), NmeaSentenceQueue.Consumer {
 
         init {
-            name = "device-gnss-NMEAMessage-thread"
+            name = "device-gnss-publisher-thread"
         }
 
-        private var handler: NMEAMessageThreadHandler? = null
+        val queue = NmeaSentenceQueue(SENTENCE_QUEUE_SIZE)
+
+        @Volatile
+        private var running = true
 
-//        private lateinit var socket: ZMQ.Socket
+        /**
+         * Publishes epochs from the next one on, until the thread stops.
+         * */
+        @Volatile
+        var publishEpochs = false
+
+        // follows publishEpochs when an epoch starts, so that no partial epoch is published
+        private var epochsEnabled = false
 
         private lateinit var publisher: Publisher
 
-//        private var address = "tcp://localhost:10004"
+        private lateinit var fixPublisher: Publisher
+
+        private lateinit var epochPublisher: Publisher
+
+        // only touched on this thread
+        private val nmeaParser = NmeaParser()
+
+        private val nmeaBuffer = ByteBuffer.allocateDirect(GnssDataEncoder.MAX_SIZE)
+
+        private val fixBuffer = ByteBuffer.allocateDirect(GnssFixEncoder.MAX_SIZE)
+
+        private val epochEncoder = GnssEpochEncoder()
+
         private val address = AddressUtils.getNamedPipeAddress(context, "device_gnss")
 
+        private val fixAddress = AddressUtils.getNamedPipeAddress(context, FIX_ENDPOINT)
+
+        private val epochAddress = AddressUtils.getNamedPipeAddress(context, EPOCH_ENDPOINT)
+
         override fun run() {
-            while (address.isEmpty()) {
-                continue
-            }
             Timber.tag(TAG).d("Starting Gnss Publisher on $address")
             try {
                 publisher = Publisher()
-                publisher.init(address)
-                /*ZContext().use { ctx ->
-                    socket = ctx.createSocket(SocketType.PUB)
-                    socket.bind(address)
-                    // wait to bind
-                    Thread.sleep(500L)*/
-                    Looper.prepare()
-                    handler = NMEAMessageThreadHandler(Looper.myLooper() ?: return)
-                    Looper.loop()
-//                }
-//                socket.unbind(address)
-//                Thread.sleep(500L)
-                Timber.tag(TAG).d("Stopping Gnss Publisher on $address")
+                publisher.init(address, PublisherOptions.boundedQueue(GNSS_QUEUE_SIZE))
+                fixPublisher = Publisher()
+                fixPublisher.init(fixAddress, PublisherOptions.boundedQueue(GNSS_QUEUE_SIZE))
+                epochPublisher = Publisher()
+                epochPublisher.init(epochAddress, PublisherOptions.boundedQueue(GNSS_QUEUE_SIZE))
+                var lastSentenceMs = 0L
+                while (running) {
+                    queue.await(if (hasPendingEpoch()) EPOCH_IDLE_MS else WAIT_TIMEOUT_MS)
+                    if (queue.drain(this) > 0) {
+                        lastSentenceMs = SystemClock.elapsedRealtime()
+                    } else if (hasPendingEpoch() &&
+                        SystemClock.elapsedRealtime() - lastSentenceMs >= EPOCH_IDLE_MS
+                    ) {
+                        completeEpoch()
+                    }
+                }
+                // sentences queued before the stop
+                queue.drain(this)
+                completeEpoch()
+                Timber.tag(TAG).d(
+                    "Stopping Gnss Publisher on $address, ${queue.droppedCount} sentences dropped, " +
+                            "${publisher.droppedCount} messages dropped, " +
+                            "${epochPublisher.droppedCount} epochs dropped, " +
+                            "${nmeaParser.rejectedCount} sentences rejected"
+                )
                 publisher.close()
+                fixPublisher.close()
+                epochPublisher.close()
             } catch (e: Exception) {
                 Timber.e(e)
             }
         }
 
-        fun publishNMEAData(nmea: Assets.GnssData) {
-            handler?.sendMsg(MSG_NMEA_DATA, nmea)
+        override fun accept(sentence: String, receivedNs: Long) {
+            val startsEpoch = !nmeaParser.hasPendingEpoch
+            // an epoch is complete once the next one starts, run also completes it once the receiver is quiet
+            val completed = nmeaParser.parse(sentence, receivedNs)
+            if (completed) {
+                publishFix()
+                publishEpoch(nmeaParser.fix.utcTimeOfDayMs)
+            }
+            if (completed || startsEpoch) {
+                epochsEnabled = publishEpochs
+            }
+            if (epochsEnabled && !epochEncoder.add(sentence, receivedNs)) {
+                // more than an epoch holds, published in parts
+                publishEpoch(nmeaParser.currentTimeOfDayMs)
+                epochEncoder.add(sentence, receivedNs)
+            }
+            if (GnssDataEncoder.encode(sentence, nmeaBuffer)) {
+                publisher.publish(nmeaBuffer)
+            } else {
+                publisher.publish(Assets.GnssData.newBuilder().setNmea(sentence).build().toByteArray())
+            }
         }
 
-        fun kill() {
-            handler?.sendMsg(Constants.SIG_KILL_THREAD)
+        private fun hasPendingEpoch(): Boolean {
+            return nmeaParser.hasPendingEpoch || epochEncoder.sentenceCount > 0
         }
 
-        inner class NMEAMessageThreadHandler(private val myLooper: Looper) : Handler(myLooper) {
-            override fun handleMessage(msg: Message) {
-                when (msg.what) {
-                    MSG_NMEA_DATA -> {
-                        val gnssData = msg.obj as Assets.GnssData
-                        gnssData.let {
-//                            socket.send(gnssData.toByteArray(), 0)
-                            publisher.publish(gnssData.toByteArray())
-                        }
-                    }
-                    Constants.SIG_KILL_THREAD -> {
-                        myLooper.quitSafely()
-                    }
-                }
+        private fun completeEpoch() {
+            val flushed = nmeaParser.flush()
+            if (flushed) {
+                publishFix()
             }
+            publishEpoch(if (flushed) nmeaParser.fix.utcTimeOfDayMs else -1)
+        }
 
-            fun sendMsg(what: Int, obj: Any? = null) {
-                sendMessage(obtainMessage(what, obj))
+        private fun publishEpoch(utcTimeOfDayMs: Int) {
+            if (epochEncoder.sentenceCount == 0) {
+                return
             }
+            epochPublisher.publish(
+                epochEncoder.finish(utcTimeOfDayMs, SystemClock.elapsedRealtimeNanos())
+            )
+            epochEncoder.reset()
+        }
+
+        private fun publishFix() {
+            GnssFixEncoder.encode(nmeaParser.fix, SystemClock.elapsedRealtimeNanos(), fixBuffer)
+            fixPublisher.publish(fixBuffer)
+        }
+
+        fun kill() {
+            running = false
+            queue.wakeup()
         }
     }
 
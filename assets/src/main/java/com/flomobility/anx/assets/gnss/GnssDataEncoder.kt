@@ -0,0 +1,83 @@
+package com.flomobility.anx.assets.gnss
+
+import com.flomobility.anx.proto.Assets
+import com.google.protobuf.WireFormat
+import java.nio.ByteBuffer
+
+/**
+ * Writes an NMEA sentence as anx.GnssData straight into a reused buffer, without a
+ * builder, a message or an intermediate byte array.
+ * */
+object GnssDataEncoder {
+
+    /**
+     * NMEA limits sentences to 82 characters, some receivers go past it.
+     * */
+    const val MAX_SIZE = 1024
+
+    private const val NMEA_TAG =
+        (Assets.GnssData.NMEA_FIELD_NUMBER shl 3) or WireFormat.WIRETYPE_LENGTH_DELIMITED
+
+    /**
+     * Encodes [sentence] from the start of [buffer], flipped for publishing on return.
+     * @return false if it does not fit
+     * */
+    fun encode(sentence: String, buffer: ByteBuffer): Boolean {
+        buffer.clear()
+        if (!putString(buffer, NMEA_TAG, sentence)) {
+            return false
+        }
+        buffer.flip()
+        return true
+    }
+
+    /**
+     * Appends a string field with a single byte [tag] at the position of [buffer].
+     * @return false if it does not fit, the buffer is then unchanged
+     * */
+    internal fun putString(buffer: ByteBuffer, tag: Int, value: String): Boolean {
+        var ascii = true
+        for (i in value.indices) {
+            if (value[i].code >= 0x80) {
+                ascii = false
+                break
+            }
+        }
+        // NMEA is ASCII, which is its own UTF-8 encoding, anything else is converted
+        val bytes = if (ascii) null else value.toByteArray(Charsets.UTF_8)
+        val length = bytes?.size ?: value.length
+        if (buffer.remaining() < 1 + varintSize(length.toLong()) + length) {
+            return false
+        }
+        buffer.put(tag.toByte())
+        putVarint(buffer, length.toLong())
+        if (bytes != null) {
+            buffer.put(bytes)
+        } else {
+            for (i in value.indices) {
+                buffer.put(value[i].code.toByte())
+            }
+        }
+        return true
+    }
+
+    internal fun putVarint(buffer: ByteBuffer, value: Long) {
+        var remaining = value
+        while (remaining and 0x7FL.inv() != 0L) {
+            buffer.put((remaining and 0x7F or 0x80).toByte())
+            remaining = remaining ushr 7
+        }
+        buffer.put(remaining.toByte())
+    }
+
+    internal fun varintSize(value: Long): Int {
+        var size = 1
+        var remaining = value ushr 7
+        while (remaining != 0L) {
+            size++
+            remaining = remaining ushr 7
+        }
+        return size
+    }
+
+}
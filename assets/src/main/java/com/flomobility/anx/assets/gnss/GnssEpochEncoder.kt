@@ -0,0 +1,83 @@
+package com.flomobility.anx.assets.gnss
+
+import com.flomobility.anx.proto.Assets
+import com.google.protobuf.WireFormat
+import java.nio.ByteBuffer
+
+/**
+ * Builds an anx.GnssEpoch in a reused direct buffer one sentence at a time, so that
+ * an epoch needs neither a list of sentences nor a builder.
+ *
+ * The sentences are written as they arrive and the scalar fields after them when the
+ * epoch is finished, protobuf accepts fields in any order.
+ * */
+class GnssEpochEncoder(capacity: Int = DEFAULT_CAPACITY) {
+
+    private val buffer = ByteBuffer.allocateDirect(capacity)
+
+    var sentenceCount = 0
+        private set
+
+    private var timestampNs = 0L
+
+    init {
+        reset()
+    }
+
+    /**
+     * Appends [sentence], the first one sets the epoch timestamp.
+     * @return false if the epoch is full, [finish] it and add the sentence again
+     * */
+    fun add(sentence: String, receivedNs: Long): Boolean {
+        if (!GnssDataEncoder.putString(buffer, NMEA_TAG, sentence)) {
+            return false
+        }
+        if (sentenceCount == 0) {
+            timestampNs = receivedNs
+        }
+        sentenceCount++
+        return true
+    }
+
+    /**
+     * Writes the remaining fields and returns the encoded epoch, valid until [reset].
+     * */
+    fun finish(utcTimeOfDayMs: Int, publishTimestampNs: Long): ByteBuffer {
+        buffer.limit(buffer.capacity())
+        putUInt64(TIMESTAMP_NS_TAG, timestampNs)
+        putUInt64(UTC_TIME_OF_DAY_MS_TAG, maxOf(utcTimeOfDayMs, 0).toLong())
+        putUInt64(PUBLISH_TIMESTAMP_NS_TAG, publishTimestampNs)
+        buffer.flip()
+        return buffer
+    }
+
+    fun reset() {
+        buffer.clear()
+        buffer.limit(buffer.capacity() - TRAILER_SIZE)
+        sentenceCount = 0
+        timestampNs = 0L
+    }
+
+    private fun putUInt64(tag: Int, value: Long) {
+        buffer.put(tag.toByte())
+        GnssDataEncoder.putVarint(buffer, value)
+    }
+
+    companion object {
+        // 40 sentences of up to 82 characters and a margin for longer ones
+        const val DEFAULT_CAPACITY = 8 * 1024
+
+        private const val NMEA_TAG =
+            (Assets.GnssEpoch.NMEA_FIELD_NUMBER shl 3) or WireFormat.WIRETYPE_LENGTH_DELIMITED
+        private const val TIMESTAMP_NS_TAG =
+            (Assets.GnssEpoch.TIMESTAMP_NS_FIELD_NUMBER shl 3) or WireFormat.WIRETYPE_VARINT
+        private const val UTC_TIME_OF_DAY_MS_TAG =
+            (Assets.GnssEpoch.UTC_TIME_OF_DAY_MS_FIELD_NUMBER shl 3) or WireFormat.WIRETYPE_VARINT
+        private const val PUBLISH_TIMESTAMP_NS_TAG =
+            (Assets.GnssEpoch.PUBLISH_TIMESTAMP_NS_FIELD_NUMBER shl 3) or WireFormat.WIRETYPE_VARINT
+
+        // scalar fields written by finish, reserved so that they always fit
+        private const val TRAILER_SIZE = 3 * (1 + 10)
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.flomobility.anx.assets.gnss
+
+import com.flomobility.anx.proto.Assets
+import com.google.protobuf.CodedOutputStream
+import java.nio.ByteBuffer
+
+/**
+ * Writes an [NmeaFix] as anx.GnssFix straight into a reused buffer, without a builder
+ * or an intermediate message.
+ * */
+object GnssFixEncoder {
+
+    /**
+     * Upper bound of an encoded fix, about 110 bytes with every field set.
+     * */
+    const val MAX_SIZE = 256
+
+    /**
+     * Encodes [fix] from the start of [buffer], flipped for publishing on return.
+     * */
+    fun encode(fix: NmeaFix, publishTimestampNs: Long, buffer: ByteBuffer) {
+        buffer.clear()
+        val output = CodedOutputStream.newInstance(buffer)
+        output.writeEnum(Assets.GnssFix.FIX_TYPE_FIELD_NUMBER, fix.fixType)
+        output.writeUInt32(Assets.GnssFix.QUALITY_FIELD_NUMBER, fix.quality)
+        output.writeDouble(Assets.GnssFix.LATITUDE_DEG_FIELD_NUMBER, fix.latitudeDeg)
+        output.writeDouble(Assets.GnssFix.LONGITUDE_DEG_FIELD_NUMBER, fix.longitudeDeg)
+        output.writeDouble(Assets.GnssFix.ALTITUDE_M_FIELD_NUMBER, fix.altitudeM)
+        output.writeDouble(Assets.GnssFix.GEOID_SEPARATION_M_FIELD_NUMBER, fix.geoidSeparationM)
+        output.writeFloat(Assets.GnssFix.HDOP_FIELD_NUMBER, fix.hdop)
+        output.writeFloat(Assets.GnssFix.VDOP_FIELD_NUMBER, fix.vdop)
+        output.writeFloat(Assets.GnssFix.PDOP_FIELD_NUMBER, fix.pdop)
+        output.writeFloat(Assets.GnssFix.SPEED_MPS_FIELD_NUMBER, fix.speedMps)
+        output.writeFloat(Assets.GnssFix.COURSE_DEG_FIELD_NUMBER, fix.courseDeg)
+        output.writeUInt32(Assets.GnssFix.SATELLITES_USED_FIELD_NUMBER, fix.satellitesUsed)
+        output.writeUInt32(Assets.GnssFix.SATELLITES_IN_VIEW_FIELD_NUMBER, fix.satellitesInView)
+        output.writeUInt64(Assets.GnssFix.UTC_TIME_MS_FIELD_NUMBER, fix.utcTimeMs)
+        output.writeUInt32(
+            Assets.GnssFix.UTC_TIME_OF_DAY_MS_FIELD_NUMBER,
+            maxOf(fix.utcTimeOfDayMs, 0)
+        )
+        output.writeUInt64(Assets.GnssFix.TIMESTAMP_NS_FIELD_NUMBER, fix.timestampNs)
+        output.writeUInt64(Assets.GnssFix.PUBLISH_TIMESTAMP_NS_FIELD_NUMBER, publishTimestampNs)
+        output.flush()
+        buffer.flip()
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.flomobility.anx.assets.gnss
+
+/**
+ * Values of one GNSS epoch as assembled by [NmeaParser], published as anx.GnssFix.
+ *
+ * A value the receiver did not report in the epoch stays 0, [fixType] tells whether
+ * the position is valid.
+ * */
+class NmeaFix {
+
+    var fixType = FIX_NONE
+
+    /**
+     * GGA fix quality, 1 GPS, 2 DGPS, 4 RTK fixed, 5 RTK float, 0 without GGA.
+     * */
+    var quality = 0
+
+    var latitudeDeg = 0.0
+    var longitudeDeg = 0.0
+
+    /**
+     * Above mean sea level.
+     * */
+    var altitudeM = 0.0
+    var geoidSeparationM = 0.0
+
+    var hdop = 0f
+    var vdop = 0f
+    var pdop = 0f
+
+    /**
+     * Over ground, the course from true north.
+     * */
+    var speedMps = 0f
+    var courseDeg = 0f
+
+    var satellitesUsed = 0
+    var satellitesInView = 0
+
+    /**
+     * Milliseconds since midnight UTC, -1 until a sentence of the epoch carried a time.
+     * */
+    var utcTimeOfDayMs = -1
+
+    /**
+     * Days since the Unix epoch from the last RMC date, -1 until one was seen.
+     * */
+    var utcDateDays = -1L
+
+    /**
+     * When the first sentence of the epoch was received, CLOCK_BOOTTIME.
+     * */
+    var timestampNs = 0L
+
+    var sentenceCount = 0
+
+    /**
+     * Milliseconds since the Unix epoch, 0 while the date or the time is unknown.
+     * */
+    val utcTimeMs: Long
+        get() = if (utcDateDays < 0 || utcTimeOfDayMs < 0) 0L
+        else utcDateDays * MS_PER_DAY + utcTimeOfDayMs
+
+    fun copyFrom(other: NmeaFix) {
+        fixType = other.fixType
+        quality = other.quality
+        latitudeDeg = other.latitudeDeg
+        longitudeDeg = other.longitudeDeg
+        altitudeM = other.altitudeM
+        geoidSeparationM = other.geoidSeparationM
+        hdop = other.hdop
+        vdop = other.vdop
+        pdop = other.pdop
+        speedMps = other.speedMps
+        courseDeg = other.courseDeg
+        satellitesUsed = other.satellitesUsed
+        satellitesInView = other.satellitesInView
+        utcTimeOfDayMs = other.utcTimeOfDayMs
+        utcDateDays = other.utcDateDays
+        timestampNs = other.timestampNs
+        sentenceCount = other.sentenceCount
+    }
+
+    fun clear() {
+        fixType = FIX_NONE
+        quality = 0
+        latitudeDeg = 0.0
+        longitudeDeg = 0.0
+        altitudeM = 0.0
+        geoidSeparationM = 0.0
+        hdop = 0f
+        vdop = 0f
+        pdop = 0f
+        speedMps = 0f
+        courseDeg = 0f
+        satellitesUsed = 0
+        satellitesInView = 0
+        utcTimeOfDayMs = -1
+        utcDateDays = -1L
+        timestampNs = 0L
+        sentenceCount = 0
+    }
+
+    companion object {
+        // values of anx.GnssFix.FixType
+        const val FIX_NONE = 0
+        const val FIX_2D = 1
+        const val FIX_3D = 2
+
+        private const val MS_PER_DAY = 86_400_000L
+    }
+
+}
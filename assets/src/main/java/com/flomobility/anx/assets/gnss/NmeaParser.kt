@@ -0,0 +1,453 @@
+package com.flomobility.anx.assets.gnss
+
+/**
+ * Incremental NMEA 0183 parser assembling one [NmeaFix] per epoch from GGA, RMC,
+ * GSA, GSV and VTG sentences of any talker, other sentences are skipped.
+ *
+ * Sentences are read in place, fields are located once per sentence into a reused
+ * index and numbers are parsed from the characters, so that once constructed the
+ * parser allocates nothing.
+ *
+ * An epoch ends when a GGA or RMC carries another UTC time than the current epoch, or
+ * by the sentence cycle when a second GGA or RMC arrives, which also splits epochs of
+ * receivers that leave the time empty without a fix. Sentences without a time (GSA,
+ * GSV, VTG) belong to the epoch of the last GGA or RMC.
+ *
+ * Not thread safe, feed it from a single thread.
+ * */
+class NmeaParser {
+
+    /**
+     * The last completed epoch, valid until the next [parse] or [flush] returning true.
+     * */
+    val fix = NmeaFix()
+
+    /**
+     * Sentences dropped for a wrong checksum or a malformed field list.
+     * */
+    var rejectedCount = 0L
+        private set
+
+    /**
+     * UTC time of the epoch still being assembled, -1 until one of its sentences carried one.
+     * */
+    val currentTimeOfDayMs: Int
+        get() = current.utcTimeOfDayMs
+
+    /**
+     * Whether the current epoch has any sentence, so that [flush] would complete it.
+     * */
+    val hasPendingEpoch: Boolean
+        get() = current.sentenceCount > 0
+
+    private val current = NmeaFix()
+
+    private var sentence: CharSequence = ""
+
+    // start of every field, fieldStarts[fieldCount] is one past the end of the last one
+    private val fieldStarts = IntArray(MAX_FIELDS + 1)
+    private var fieldCount = 0
+
+    // state of the current epoch that is not part of the fix
+    private var hasGga = false
+    private var hasRmc = false
+    private var hasGgaPosition = false
+    private var hasAltitude = false
+    private var hasRmcCourse = false
+    private var gsaFixType = -1
+    private var gsaSatellites = 0
+    private var ggaSatellites = 0
+    private var talkersInView = 0
+
+    // dates only come with RMC, kept across epochs
+    private var dateDays = -1L
+
+    init {
+        current.clear()
+        fix.clear()
+    }
+
+    /**
+     * Adds one sentence, with or without its trailing line break.
+     * @param receivedNs when the sentence was received, the epoch keeps the first one
+     * @return true if the sentence started a new epoch and [fix] holds the previous one
+     * */
+    fun parse(sentence: CharSequence, receivedNs: Long): Boolean {
+        if (!split(sentence)) {
+            rejectedCount++
+            return false
+        }
+        var completed = false
+        val isGga = isType('G', 'G', 'A')
+        val isRmc = isType('R', 'M', 'C')
+        val timeOfDayMs = if (isGga || isRmc) parseTimeOfDay(1) else -1
+        val timeChanged = timeOfDayMs >= 0 && current.utcTimeOfDayMs >= 0 &&
+                timeOfDayMs != current.utcTimeOfDayMs
+        val cycleRestarted = (isGga && hasGga) || (isRmc && hasRmc)
+        if (timeChanged || cycleRestarted) {
+            completed = flush()
+        }
+        hasGga = hasGga || isGga
+        hasRmc = hasRmc || isRmc
+        if (current.sentenceCount == 0) {
+            current.timestampNs = receivedNs
+        }
+        if (timeOfDayMs >= 0) {
+            current.utcTimeOfDayMs = timeOfDayMs
+        }
+        current.sentenceCount++
+
+        when {
+            isGga -> parseGga()
+            isRmc -> parseRmc()
+            isType('G', 'S', 'A') -> parseGsa()
+            isType('G', 'S', 'V') -> parseGsv()
+            isType('V', 'T', 'G') -> parseVtg()
+        }
+        return completed
+    }
+
+    /**
+     * Completes the current epoch, e.g. once the receiver stopped.
+     * @return true if it had any sentence and [fix] now holds it
+     * */
+    fun flush(): Boolean {
+        if (current.sentenceCount == 0) {
+            return false
+        }
+        current.satellitesUsed = if (gsaFixType >= 0) gsaSatellites else ggaSatellites
+        current.fixType = when {
+            gsaFixType >= 0 -> gsaFixType
+            current.quality > 0 || current.latitudeDeg != 0.0 || current.longitudeDeg != 0.0 ->
+                if (hasAltitude) NmeaFix.FIX_3D else NmeaFix.FIX_2D
+            else -> NmeaFix.FIX_NONE
+        }
+        current.utcDateDays = dateDays
+        fix.copyFrom(current)
+
+        current.clear()
+        hasGga = false
+        hasRmc = false
+        hasGgaPosition = false
+        hasAltitude = false
+        hasRmcCourse = false
+        gsaFixType = -1
+        gsaSatellites = 0
+        ggaSatellites = 0
+        talkersInView = 0
+        return true
+    }
+
+    private fun parseGga() {
+        // time, lat, N/S, lon, E/W, quality, satellites, hdop, altitude, M, geoid separation, M
+        val quality = parseInt(6, 0)
+        current.quality = quality
+        if (quality > 0 && !isEmpty(2) && !isEmpty(4)) {
+            current.latitudeDeg = parseCoordinate(2, 3)
+            current.longitudeDeg = parseCoordinate(4, 5)
+            hasGgaPosition = true
+        }
+        ggaSatellites = parseInt(7, 0)
+        if (current.hdop == 0f) {
+            current.hdop = parseDouble(8, 0.0).toFloat()
+        }
+        if (quality > 0 && !isEmpty(9)) {
+            current.altitudeM = parseDouble(9, 0.0)
+            current.geoidSeparationM = parseDouble(11, 0.0)
+            hasAltitude = true
+        }
+    }
+
+    private fun parseRmc() {
+        // time, status, lat, N/S, lon, E/W, speed in knots, course, date, ...
+        if (!isEmpty(9)) {
+            dateDays = parseDate(9)
+        }
+        if (charAt(2, 0) != 'A') {
+            return
+        }
+        if (!hasGgaPosition && !isEmpty(3) && !isEmpty(5)) {
+            current.latitudeDeg = parseCoordinate(3, 4)
+            current.longitudeDeg = parseCoordinate(5, 6)
+        }
+        current.speedMps = (parseDouble(7, 0.0) * MPS_PER_KNOT).toFloat()
+        current.courseDeg = parseDouble(8, 0.0).toFloat()
+        hasRmcCourse = true
+    }
+
+    private fun parseGsa() {
+        // mode, fix type 1..3, 12 satellite ids, pdop, hdop, vdop, [system id]
+        if (fieldCount < 18) {
+            return
+        }
+        val fixType = parseInt(2, 1)
+        gsaFixType = maxOf(gsaFixType, fixType - 1)
+        for (field in 3..14) {
+            if (!isEmpty(field)) gsaSatellites++
+        }
+        current.pdop = parseDouble(15, 0.0).toFloat()
+        current.hdop = parseDouble(16, 0.0).toFloat()
+        current.vdop = parseDouble(17, 0.0).toFloat()
+    }
+
+    private fun parseGsv() {
+        // message count, message number, satellites in view, 4 x (id, elevation, azimuth, snr)
+        // every message of a constellation repeats the count, and signals other than
+        // the first may repeat the constellation
+        val talker = talkerBit()
+        if (talkersInView and talker != 0) {
+            return
+        }
+        talkersInView = talkersInView or talker
+        current.satellitesInView += parseInt(3, 0)
+    }
+
+    private fun parseVtg() {
+        // course true, T, course magnetic, M, speed knots, N, speed km/h, K, [mode]
+        if (hasRmcCourse || isEmpty(7)) {
+            return
+        }
+        current.courseDeg = parseDouble(1, 0.0).toFloat()
+        current.speedMps = (parseDouble(7, 0.0) / KMH_PER_MPS).toFloat()
+    }
+
+    /**
+     * Locates the fields of [sentence] and verifies its checksum if it has one.
+     * */
+    private fun split(sentence: CharSequence): Boolean {
+        var end = sentence.length
+        while (end > 0 && (sentence[end - 1] == '\n' || sentence[end - 1] == '\r')) {
+            end--
+        }
+        if (end < 7 || (sentence[0] != '$' && sentence[0] != '!')) {
+            return false
+        }
+        var checksum = 0
+        var index = 1
+        fieldCount = 0
+        fieldStarts[fieldCount++] = 1
+        while (index < end) {
+            val c = sentence[index]
+            if (c == '*') {
+                break
+            }
+            checksum = checksum xor c.code
+            if (c == ',') {
+                if (fieldCount == MAX_FIELDS) {
+                    return false
+                }
+                fieldStarts[fieldCount++] = index + 1
+            }
+            index++
+        }
+        fieldStarts[fieldCount] = index + 1
+        if (index < end) {
+            if (index + 3 != end) {
+                return false
+            }
+            val high = hexValue(sentence[index + 1])
+            val low = hexValue(sentence[index + 2])
+            if (high < 0 || low < 0 || (high shl 4 or low) != checksum) {
+                return false
+            }
+        }
+        this.sentence = sentence
+        // the address field is a talker and a type, proprietary sentences are skipped
+        return fieldLength(0) >= 5
+    }
+
+    private fun isType(a: Char, b: Char, c: Char): Boolean {
+        val start = fieldStarts[0]
+        val length = fieldLength(0)
+        return sentence[start + length - 3] == a &&
+                sentence[start + length - 2] == b &&
+                sentence[start + length - 1] == c
+    }
+
+    private fun talkerBit(): Int {
+        val start = fieldStarts[0]
+        return when (sentence[start + 1]) {
+            'P' -> 1 // GP
+            'L' -> 2 // GL
+            'A' -> 4 // GA
+            'B', 'D' -> 8 // GB, BD
+            'Q' -> 16 // GQ
+            'I' -> 32 // GI
+            else -> 64 // GN and others
+        }
+    }
+
+    private fun fieldLength(field: Int): Int {
+        return fieldStarts[field + 1] - 1 - fieldStarts[field]
+    }
+
+    private fun isEmpty(field: Int): Boolean {
+        return field >= fieldCount || fieldLength(field) == 0
+    }
+
+    private fun charAt(field: Int, offset: Int): Char {
+        return if (isEmpty(field) || offset >= fieldLength(field)) 0.toChar()
+        else sentence[fieldStarts[field] + offset]
+    }
+
+    private fun parseInt(field: Int, default: Int): Int {
+        if (isEmpty(field)) {
+            return default
+        }
+        var index = fieldStarts[field]
+        val end = index + fieldLength(field)
+        var value = 0
+        while (index < end) {
+            val digit = sentence[index] - '0'
+            if (digit !in 0..9) {
+                return if (index == fieldStarts[field]) default else value
+            }
+            value = value * 10 + digit
+            index++
+        }
+        return value
+    }
+
+    private fun parseDouble(field: Int, default: Double): Double {
+        if (isEmpty(field)) {
+            return default
+        }
+        var index = fieldStarts[field]
+        val end = index + fieldLength(field)
+        var negative = false
+        if (sentence[index] == '-' || sentence[index] == '+') {
+            negative = sentence[index] == '-'
+            index++
+        }
+        var mantissa = 0L
+        var digits = 0
+        var decimals = -1
+        while (index < end) {
+            val c = sentence[index]
+            if (c == '.' && decimals < 0) {
+                decimals = 0
+            } else if (c in '0'..'9') {
+                // past 18 digits the value no longer fits, the rest is below the precision anyway
+                if (digits < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0')
+                    digits++
+                    if (decimals >= 0) decimals++
+                }
+            } else {
+                return default
+            }
+            index++
+        }
+        if (digits == 0) {
+            return default
+        }
+        val value = if (decimals > 0) mantissa / POW10[decimals] else mantissa.toDouble()
+        return if (negative) -value else value
+    }
+
+    /**
+     * ddmm.mmmm or dddmm.mmmm and a hemisphere, to signed degrees.
+     * */
+    private fun parseCoordinate(field: Int, hemisphereField: Int): Double {
+        val value = parseDouble(field, 0.0)
+        val degrees = (value / 100).toInt()
+        val result = degrees + (value - degrees * 100) / 60
+        val hemisphere = charAt(hemisphereField, 0)
+        return if (hemisphere == 'S' || hemisphere == 'W') -result else result
+    }
+
+    /**
+     * hhmmss.sss to milliseconds since midnight, -1 if missing.
+     * */
+    private fun parseTimeOfDay(field: Int): Int {
+        if (isEmpty(field) || fieldLength(field) < 6) {
+            return -1
+        }
+        val start = fieldStarts[field]
+        val hours = twoDigits(start)
+        val minutes = twoDigits(start + 2)
+        val seconds = twoDigits(start + 4)
+        if (hours < 0 || minutes < 0 || seconds < 0) {
+            return -1
+        }
+        var millis = 0
+        var scale = 100
+        var index = start + 7
+        val end = start + fieldLength(field)
+        if (index - 1 < end && sentence[index - 1] != '.') {
+            return -1
+        }
+        while (index < end && scale > 0) {
+            val digit = sentence[index] - '0'
+            if (digit !in 0..9) {
+                return -1
+            }
+            millis += digit * scale
+            scale /= 10
+            index++
+        }
+        return ((hours * 60 + minutes) * 60 + seconds) * 1000 + millis
+    }
+
+    /**
+     * ddmmyy to days since the Unix epoch, -1 if malformed.
+     * */
+    private fun parseDate(field: Int): Long {
+        if (fieldLength(field) != 6) {
+            return -1
+        }
+        val start = fieldStarts[field]
+        val day = twoDigits(start)
+        val month = twoDigits(start + 2)
+        val year = twoDigits(start + 4)
+        if (day < 1 || month !in 1..12 || year < 0) {
+            return -1
+        }
+        return daysFromCivil(if (year < 80) 2000 + year else 1900 + year, month, day)
+    }
+
+    private fun twoDigits(index: Int): Int {
+        val high = sentence[index] - '0'
+        val low = sentence[index + 1] - '0'
+        if (high !in 0..9 || low !in 0..9) {
+            return -1
+        }
+        return high * 10 + low
+    }
+
+    private fun hexValue(c: Char): Int {
+        return when (c) {
+            in '0'..'9' -> c - '0'
+            in 'A'..'F' -> c - 'A' + 10
+            in 'a'..'f' -> c - 'a' + 10
+            else -> -1
+        }
+    }
+
+    companion object {
+        // NMEA limits a sentence to 82 characters, some receivers go past it
+        private const val MAX_FIELDS = 64
+        private const val MAX_DIGITS = 18
+
+        private const val MPS_PER_KNOT = 0.514444
+        private const val KMH_PER_MPS = 3.6
+
+        private val POW10 = DoubleArray(MAX_DIGITS + 1).also {
+            it[0] = 1.0
+            for (i in 1..MAX_DIGITS) it[i] = it[i - 1] * 10
+        }
+
+        /**
+         * Days since 1970-01-01 of a proleptic Gregorian date.
+         * */
+        private fun daysFromCivil(year: Int, month: Int, day: Int): Long {
+            val y = if (month <= 2) year - 1 else year
+            val era = (if (y >= 0) y else y - 399) / 400
+            val yearOfEra = y - era * 400
+            val dayOfYear = (153 * (if (month > 2) month - 3 else month + 9) + 2) / 5 + day - 1
+            val dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear
+            return era * 146097L + dayOfEra - 719468
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.flomobility.anx.assets.gnss
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Bounded single producer, single consumer queue of NMEA sentences and their
+ * receive times, between the NMEA listener and the GNSS publisher thread.
+ *
+ * Slots are preallocated parallel arrays, so that neither side allocates per
+ * sentence. When the consumer falls [capacity] sentences behind, new sentences
+ * are dropped and counted rather than blocking the listener.
+ * */
+class NmeaSentenceQueue(capacity: Int) {
+
+    fun interface Consumer {
+        fun accept(sentence: String, receivedNs: Long)
+    }
+
+    private val size = Integer.highestOneBit(maxOf(capacity, 2) * 2 - 1)
+    private val mask = (size - 1).toLong()
+
+    private val sentences = arrayOfNulls<String>(size)
+    private val timestamps = LongArray(size)
+
+    // next slot to read, only advanced by the consumer
+    private val head = AtomicLong()
+    // next slot to write, only advanced by the producer
+    private val tail = AtomicLong()
+
+    private val dropped = AtomicLong()
+
+    @Volatile
+    private var waiter: Thread? = null
+
+    val capacity: Int
+        get() = size
+
+    /**
+     * Sentences dropped so far because the queue was full.
+     * */
+    val droppedCount: Long
+        get() = dropped.get()
+
+    /**
+     * Producer side, wakes the consumer up if it waits.
+     * @return false if the queue is full and the sentence was dropped
+     * */
+    fun offer(sentence: String, receivedNs: Long): Boolean {
+        val position = tail.get()
+        if (position - head.get() == size.toLong()) {
+            dropped.incrementAndGet()
+            return false
+        }
+        val index = (position and mask).toInt()
+        sentences[index] = sentence
+        timestamps[index] = receivedNs
+        // a full barrier, paired with the consumer publishing itself in waiter
+        tail.set(position + 1)
+        waiter?.let { LockSupport.unpark(it) }
+        return true
+    }
+
+    /**
+     * Consumer side, hands every queued sentence to [consumer] in order.
+     * @return the number of sentences drained
+     * */
+    fun drain(consumer: Consumer): Int {
+        val start = head.get()
+        val end = tail.get()
+        var position = start
+        while (position < end) {
+            val index = (position and mask).toInt()
+            val sentence = sentences[index]!!
+            sentences[index] = null
+            val receivedNs = timestamps[index]
+            // frees the slot before the sentence is published, the listener never waits on it
+            position++
+            head.lazySet(position)
+            consumer.accept(sentence, receivedNs)
+        }
+        return (end - start).toInt()
+    }
+
+    /**
+     * Consumer side, blocks until a sentence is queued, [wakeup] is called or
+     * [timeoutMs] passed.
+     * */
+    fun await(timeoutMs: Long) {
+        if (!isEmpty()) {
+            return
+        }
+        waiter = Thread.currentThread()
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeoutMs))
+        }
+        waiter = null
+    }
+
+    /**
+     * Wakes a waiting consumer up, e.g. to stop it.
+     * */
+    fun wakeup() {
+        waiter?.let { LockSupport.unpark(it) }
+    }
+
+    fun isEmpty(): Boolean {
+        return head.get() == tail.get()
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.flomobility.anx.assets.imu
 
 import android.content.Context
+import android.hardware.Sensor
+import android.hardware.SensorManager
 import android.os.Handler
 import android.os.Looper
 import android.os.Message
@@ -9,6 +11,7 @@ import com.flomobility.anx.common.Result
 import com.flomobility.anx.native.NativeSensors
 import com.flomobility.anx.proto.Assets
 import com.flomobility.anx.utils.AddressUtils
+import com.google.protobuf.UnsafeByteOperations
 import dagger.hilt.android.qualifiers.ApplicationContext
 import timber.log.Timber
 import javax.inject.Inject
@@ -25,6 +28,15 @@ class DeviceImu @Inject constructor(
         private const val MSG_CREATE_IMU = 1001
         private const val MSG_START_IMU = 1002
         private const val MSG_STOP_IMU = 1003
+
+        /**
+         * Endpoint of the last started stream, kept for clients that predate per rate endpoints.
+         * */
+        private const val LEGACY_ENDPOINT = "device_imu"
+
+        fun getStreamEndpoint(fps: Int) = "device_imu_$fps"
+
+        private val BATCH_FPS = listOf(200, 400, 500, 1000)
     }
 
     private var imuThread: ImuThread? = null
@@ -32,6 +44,7 @@ class DeviceImu @Inject constructor(
     fun getDeviceImuSelect(): Assets.DeviceImuSelect {
         return Assets.DeviceImuSelect.newBuilder().apply {
             this.addAllFps(getAvailableFps())
+            this.addAllBatchFps(getAvailableBatchFps())
         }.build()
     }
 
@@ -39,31 +52,100 @@ class DeviceImu @Inject constructor(
         return listOf(1, 2, 5, 10, 15, 25, 30, 60, 75, 100, 125, 150, 200)
     }
 
+    /**
+     * Rates the gyroscope and accelerometer both reach, minDelay being their shortest
+     * sampling period in microseconds.
+     * */
+    private fun getAvailableBatchFps(): List<Int> {
+        val sensorManager = context.getSystemService(Context.SENSOR_SERVICE) as SensorManager
+        val minDelays = listOf(Sensor.TYPE_GYROSCOPE, Sensor.TYPE_ACCELEROMETER).map { type ->
+            sensorManager.getDefaultSensor(type)?.minDelay ?: return emptyList()
+        }
+        val maxFps = minDelays.minOf { delay -> if (delay > 0) 1_000_000 / delay else 0 }
+        return BATCH_FPS.filter { it <= maxFps }
+    }
+
     fun init() {
         imuThread = ImuThread()
         imuThread?.start()
-
+        imuThread?.sendMsg(MSG_CREATE_IMU)
     }
 
     override fun start(options: Assets.StartDeviceImu?): Result {
         if (options == null) {
             return Result(success = false, message = "Null options specified")
         }
+        if (options.fps <= 0) {
+            return Result(success = false, message = "Invalid fps ${options.fps}")
+        }
 
-        // Initialize and start thread
-        imuThread?.sendMsg(MSG_CREATE_IMU, options)
-        imuThread?.sendMsg(MSG_START_IMU)
-        return Result(success = true)
+        imuThread?.sendMsg(MSG_START_IMU, options)
+        return Result(success = true, message = getStreamEndpoint(options.fps))
 
     }
 
     override fun stop(): Result {
-        Timber.tag(TAG).i("Stopping $TAG ....")
+        return stop(fps = 0)
+    }
 
-        imuThread?.sendMsg(MSG_STOP_IMU)
+    /**
+     * Removes a client from the stream at [fps], 0 stops every stream.
+     * */
+    fun stop(fps: Int): Result {
+        Timber.tag(TAG).i("Stopping $TAG ${if (fps == 0) "" else "at $fps hz "}....")
+
+        imuThread?.sendMsg(MSG_STOP_IMU, fps)
         return Result(success = true, message = "")
     }
 
+    /**
+     * Samples recorded after [sinceNs], read straight from the native ring so the
+     * caller does not wait for the IMU thread.
+     * */
+    fun getHistory(sinceNs: Long, maxSamples: Int, fusedOrientation: Boolean): Assets.ImuHistory {
+        val samples = NativeSensors.getImuHistory(sinceNs, maxSamples, fusedOrientation)
+        return Assets.ImuHistory.newBuilder().apply {
+            this.count = samples.size / NativeSensors.IMU_PACKED_SIZE
+            // the array is not touched afterwards, wrapping it saves a copy
+            this.samples = UnsafeByteOperations.unsafeWrap(samples)
+        }.build()
+    }
+
+    private fun getPublishMode(mode: Assets.StartDeviceImu.PublishMode): Int {
+        return when (mode) {
+            Assets.StartDeviceImu.PublishMode.ON_SENSOR_EVENT -> NativeSensors.IMU_PUBLISH_ON_SENSOR_EVENT
+            Assets.StartDeviceImu.PublishMode.BATCH -> NativeSensors.IMU_PUBLISH_BATCH
+            // timer driven sampling stays the fallback
+            else -> NativeSensors.IMU_PUBLISH_TIMER
+        }
+    }
+
+    private fun getEncoding(encoding: Assets.StartDeviceImu.Encoding): Int {
+        return when (encoding) {
+            Assets.StartDeviceImu.Encoding.PACKED_F32 -> NativeSensors.IMU_ENCODING_PACKED_F32
+            else -> NativeSensors.IMU_ENCODING_PROTOBUF
+        }
+    }
+
+    private fun getOrientationSource(source: Assets.StartDeviceImu.OrientationSource): Int {
+        return when (source) {
+            Assets.StartDeviceImu.OrientationSource.FUSION -> NativeSensors.IMU_ORIENTATION_FUSION
+            Assets.StartDeviceImu.OrientationSource.FUSION_WITH_MAGNETOMETER ->
+                NativeSensors.IMU_ORIENTATION_FUSION_WITH_MAGNETOMETER
+            else -> NativeSensors.IMU_ORIENTATION_ROTATION_VECTOR
+        }
+    }
+
+    private fun getTriggerSensorType(trigger: Assets.StartDeviceImu.TriggerSensor): Int {
+        return when (trigger) {
+            Assets.StartDeviceImu.TriggerSensor.ACCELEROMETER -> Sensor.TYPE_ACCELEROMETER
+            Assets.StartDeviceImu.TriggerSensor.GYROSCOPE_UNCALIBRATED -> Sensor.TYPE_GYROSCOPE_UNCALIBRATED
+            Assets.StartDeviceImu.TriggerSensor.ACCELEROMETER_UNCALIBRATED -> Sensor.TYPE_ACCELEROMETER_UNCALIBRATED
+            Assets.StartDeviceImu.TriggerSensor.ROTATION_VECTOR -> Sensor.TYPE_ROTATION_VECTOR
+            else -> Sensor.TYPE_GYROSCOPE
+        }
+    }
+
     inner class ImuThread: Thread() {
 
         init {
@@ -82,14 +164,28 @@ class DeviceImu @Inject constructor(
             override fun handleMessage(msg: Message) {
                 when(msg.what) {
                     MSG_CREATE_IMU -> {
-                        val options = msg.obj as Assets.StartDeviceImu
-                        NativeSensors.initImu(options.fps, AddressUtils.getNamedPipeAddress(context, "device_imu"))
+                        NativeSensors.initImu()
                     }
                     MSG_START_IMU -> {
-                        NativeSensors.startImu()
+                        val options = msg.obj as Assets.StartDeviceImu
+                        // no-op once created, MSG_CREATE_IMU may be sent before the handler exists
+                        NativeSensors.initImu()
+                        val started = NativeSensors.startImuStream(
+                            options.fps,
+                            AddressUtils.getNamedPipeAddress(context, getStreamEndpoint(options.fps)),
+                            AddressUtils.getNamedPipeAddress(context, LEGACY_ENDPOINT),
+                            getPublishMode(options.publishMode),
+                            getTriggerSensorType(options.triggerSensor),
+                            options.batchSize,
+                            options.maxBatchLatencyMs * 1000,
+                            getEncoding(options.encoding),
+                            getOrientationSource(options.orientationSource)
+                        )
+                        if (!started) Timber.tag(TAG).e("Could not start IMU at ${options.fps} hz")
                     }
                     MSG_STOP_IMU -> {
-                        NativeSensors.stopImu()
+                        val fps = msg.obj as Int
+                        if (fps == 0) NativeSensors.stopImu() else NativeSensors.stopImuStream(fps)
                         Timber.tag(TAG).i("Stopped IMU")
                     }
                 }
@@ -0,0 +1,143 @@
+package com.flomobility.anx.assets.sensors
+
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.os.Message
+import com.flomobility.anx.assets.Asset
+import com.flomobility.anx.common.Result
+import com.flomobility.anx.native.NativeSensors
+import com.flomobility.anx.proto.Assets
+import com.flomobility.anx.utils.AddressUtils
+import dagger.hilt.android.qualifiers.ApplicationContext
+import timber.log.Timber
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Publishes the sensors that need no processing, each on its own endpoint,
+ * through the native sensor asset.
+ *
+ * The native asset holds the list of supported sensors with their names and
+ * value counts, adding a sensor is adding it there.
+ * */
+@Singleton
+class DeviceSensors @Inject constructor(
+    @ApplicationContext private val context: Context
+) : Asset<Assets.StartDeviceSensor>() {
+
+    companion object {
+        private const val TAG = "DeviceSensors"
+
+        private const val MSG_START_SENSOR = 1001
+        private const val MSG_STOP_SENSOR = 1002
+
+        fun getEndpoint(name: String) = "device_$name"
+    }
+
+    private var sensorThread: SensorThread? = null
+
+    /**
+     * What the NDK reports for every supported sensor the device has, it does not
+     * change while the app runs.
+     * */
+    private val availableSensors: List<Assets.DeviceSensorSelect> by lazy {
+        val values = NativeSensors.describeSensors()
+        (values.indices step NativeSensors.SENSOR_INFO_FIELDS).mapNotNull { offset ->
+            val type = values[offset + NativeSensors.SENSOR_INFO_TYPE]
+            val sensorName = NativeSensors.getSensorName(type) ?: return@mapNotNull null
+            val minDelayUs = values[offset + NativeSensors.SENSOR_INFO_MIN_DELAY_US]
+            Assets.DeviceSensorSelect.newBuilder().apply {
+                this.type = type
+                this.name = sensorName
+                this.maxFps = if (minDelayUs > 0) 1_000_000 / minDelayUs else 0
+                this.fifoMaxEventCount =
+                    values[offset + NativeSensors.SENSOR_INFO_FIFO_MAX_EVENT_COUNT]
+                this.fifoReservedEventCount =
+                    values[offset + NativeSensors.SENSOR_INFO_FIFO_RESERVED_EVENT_COUNT]
+            }.build()
+        }
+    }
+
+    fun getDeviceSensorSelects(): List<Assets.DeviceSensorSelect> {
+        return availableSensors
+    }
+
+    fun init() {
+        sensorThread = SensorThread()
+        sensorThread?.start()
+    }
+
+    override fun start(options: Assets.StartDeviceSensor?): Result {
+        if (options == null) {
+            return Result(success = false, message = "Null options specified")
+        }
+        val sensor = availableSensors.firstOrNull { it.type == options.type }
+            ?: return Result(success = false, message = "Sensor ${options.type} is not available")
+        if (options.fps <= 0 || (sensor.maxFps > 0 && options.fps > sensor.maxFps)) {
+            return Result(
+                success = false,
+                message = "Invalid fps ${options.fps}, ${sensor.name} runs at up to ${sensor.maxFps} hz"
+            )
+        }
+
+        sensorThread?.sendMsg(MSG_START_SENSOR, options)
+        return Result(success = true, message = getEndpoint(sensor.name))
+    }
+
+    override fun stop(): Result {
+        return stop(type = 0)
+    }
+
+    /**
+     * Stops the sensor of [type], 0 stops every sensor.
+     * */
+    fun stop(type: Int): Result {
+        Timber.tag(TAG).i("Stopping ${if (type == 0) "every sensor" else "sensor $type"}....")
+
+        sensorThread?.sendMsg(MSG_STOP_SENSOR, type)
+        return Result(success = true, message = "")
+    }
+
+    inner class SensorThread : Thread() {
+
+        init {
+            name = "device-sensors-handler-thread"
+        }
+
+        private var handler: SensorThreadHandler? = null
+
+        override fun run() {
+            Looper.prepare()
+            handler = SensorThreadHandler(Looper.myLooper() ?: return)
+            Looper.loop()
+        }
+
+        inner class SensorThreadHandler(private val myLooper: Looper) : Handler(myLooper) {
+            override fun handleMessage(msg: Message) {
+                when (msg.what) {
+                    MSG_START_SENSOR -> {
+                        val options = msg.obj as Assets.StartDeviceSensor
+                        val name = availableSensors.first { it.type == options.type }.name
+                        val started = NativeSensors.startSensor(
+                            options.type,
+                            options.fps,
+                            options.maxReportLatencyMs * 1000,
+                            AddressUtils.getNamedPipeAddress(context, getEndpoint(name))
+                        )
+                        if (!started) Timber.tag(TAG).e("Could not start $name at ${options.fps} hz")
+                    }
+                    MSG_STOP_SENSOR -> {
+                        NativeSensors.stopSensor(msg.obj as Int)
+                        Timber.tag(TAG).i("Stopped sensors")
+                    }
+                }
+            }
+        }
+
+        fun sendMsg(what: Int, obj: Any? = null) {
+            handler?.sendMessage(handler?.obtainMessage(what, obj) ?: return)
+        }
+    }
+
+}
@@ -1,6 +1,63 @@
 package com.flomobility.anx.common
 
-data class Rate(val hz: Int) {
+import com.flomobility.anx.native.NativeRate
+import java.io.Closeable
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Periodic scheduler for polling loops, backed by the native scheduler the
+ * IMU publisher uses: deadlines are absolute on CLOCK_MONOTONIC with
+ * nanosecond resolution, so the loop body does not shift the schedule and
+ * rates like 150 hz are met exactly.
+ *
+ * [sleep] is called from the polling thread only, [stats] from anywhere.
+ * [close] releases the native scheduler and may be called from any thread, it
+ * waits for a [sleep] in progress, at most one period.
+ *
+ * @param hz rate in 1..[MAX_HZ]
+ * */
+class Rate(
+    val hz: Int,
+    val overrunPolicy: OverrunPolicy = OverrunPolicy.SKIP
+) : Closeable {
+
+    enum class OverrunPolicy(internal val nativeValue: Int) {
+        /**
+         * A late cycle runs right away, the missed ticks are dropped and the
+         * following deadlines stay on the original schedule.
+         * */
+        SKIP(NativeRate.OVERRUN_SKIP),
+
+        /**
+         * Every missed tick runs back to back until the schedule is met again.
+         * */
+        CATCH_UP(NativeRate.OVERRUN_CATCH_UP),
+
+        /**
+         * The schedule restarts from the late cycle.
+         * */
+        RESET(NativeRate.OVERRUN_RESET)
+    }
+
+    data class Stats(
+        val cycles: Long,
+        val overruns: Long,
+        val missed: Long,
+        val lastWakeupLatencyNs: Long,
+        val maxWakeupLatencyNs: Long,
+        val meanWakeupLatencyNs: Long
+    )
+
+    init {
+        require(hz in 1..MAX_HZ) { "Rate of $hz hz is outside 1..$MAX_HZ" }
+    }
+
+    // every native call holds the read lock, close waits for them with the write lock
+    private val lock = ReentrantReadWriteLock()
+
+    private var ratePtr = NativeRate.createRate(hz, overrunPolicy.nativeValue)
 
     fun toMicros(): Long {
         return (1_000_000L / hz)
@@ -10,35 +67,43 @@ data class Rate(val hz: Int) {
         return (1_000L / hz)
     }
 
-    private var _start = System.currentTimeMillis()
-    private var _expected_cycle_time = 1000 / hz
+    /**
+     * Blocks until the next deadline, returns false without waiting if the loop
+     * body overran it.
+     * */
+    fun sleep(): Boolean = lock.read {
+        check(ratePtr != 0L) { "Rate is closed" }
+        NativeRate.sleep(ratePtr)
+    }
 
-    private var actual_cycle_time = 0L
+    /**
+     * Restarts the schedule from now and clears [stats].
+     * */
+    fun reset() = lock.read {
+        check(ratePtr != 0L) { "Rate is closed" }
+        NativeRate.reset(ratePtr)
+    }
 
-    fun sleep() {
-/*        val sleepDuration = (1000 / hz) - (System.currentTimeMillis() - time)
-        if (sleepDuration >= 1) {
-            Thread.sleep(sleepDuration)
+    val stats: Stats
+        get() = lock.read {
+            check(ratePtr != 0L) { "Rate is closed" }
+            val values = NativeRate.getStats(ratePtr)
+            Stats(values[0], values[1], values[2], values[3], values[4], values[5])
         }
-        time = System.currentTimeMillis()*/
-        var end = _start + _expected_cycle_time
-        val actualEnd = System.currentTimeMillis()
 
-        if (actualEnd < _start) {
-            end = actualEnd + _expected_cycle_time
+    override fun close() {
+        lock.write {
+            val ptr = ratePtr
+            if (ptr == 0L) return
+            ratePtr = 0L
+            NativeRate.destroyRate(ptr)
         }
+    }
 
-        val sleepDuration = end - actualEnd
-        actual_cycle_time = actualEnd - _start
-
-        _start = end
-        if(sleepDuration <= 0) {
-            if (actualEnd > end + _expected_cycle_time)
-            {
-                _start = actualEnd
-            }
-            return
-        }
-        Thread.sleep(sleepDuration)
+    companion object {
+        /**
+         * Highest rate the native scheduler accepts.
+         * */
+        const val MAX_HZ = 65535
     }
 }
@@ -0,0 +1,70 @@
+package com.flomobility.anx.assets.gnss
+
+import org.junit.Assert.assertEquals
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import java.lang.management.ManagementFactory
+
+/**
+ * Runs [NmeaParser] over [NmeaSentences.corpus] and reports its cost and allocations
+ * per sentence on the host JVM.
+ *
+ * Timings and allocation counters depend on the JVM it runs on, so it only runs
+ * when asked for with `./gradlew :assets:testDevUnitTest -Pbenchmark`.
+ */
+class NmeaParserBenchmark {
+
+    private lateinit var sentences: List<String>
+
+    @Before
+    fun setUp() {
+        assumeTrue("run with -Pbenchmark", System.getProperty(BENCHMARK_PROPERTY).toBoolean())
+        sentences = NmeaSentences.corpus()
+    }
+
+    @Test
+    fun costPerSentence() {
+        val parser = NmeaParser()
+        // indexed, a list iterator per round would count as allocated
+        val corpus = sentences.toTypedArray()
+        // warm up the JIT
+        repeat(WARMUP_ROUNDS) { parseAll(parser, corpus) }
+
+        val threadBean = (ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean)
+            ?.takeIf { it.isThreadAllocatedMemorySupported && it.isThreadAllocatedMemoryEnabled }
+        val threadId = Thread.currentThread().id
+        val allocatedBefore = threadBean?.getThreadAllocatedBytes(threadId) ?: 0L
+        val start = System.nanoTime()
+        repeat(ROUNDS) { parseAll(parser, corpus) }
+        val elapsed = System.nanoTime() - start
+        val allocated = (threadBean?.getThreadAllocatedBytes(threadId) ?: 0L) - allocatedBefore
+
+        val count = ROUNDS.toDouble() * corpus.size
+        println(
+            "NmeaParser: %.0f ns/sentence, %.3f bytes/sentence allocated over %d sentences".format(
+                elapsed / count, allocated / count, count.toLong()
+            )
+        )
+        if (threadBean != null) {
+            // the measurement itself allocates a few hundred bytes once, a single object
+            // per sentence would be at least 16 bytes/sentence
+            assertEquals(0.0, allocated / count, MAX_FIXED_BYTES_PER_SENTENCE)
+        }
+    }
+
+    private fun parseAll(parser: NmeaParser, corpus: Array<String>) {
+        for (index in corpus.indices) {
+            parser.parse(corpus[index], 0L)
+        }
+    }
+
+    companion object {
+        private const val BENCHMARK_PROPERTY = "anx.benchmark"
+
+        private const val WARMUP_ROUNDS = 200
+        private const val ROUNDS = 1000
+        private const val MAX_FIXED_BYTES_PER_SENTENCE = 0.01
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.flomobility.anx.assets.gnss
+
+import com.flomobility.anx.assets.gnss.NmeaSentences.withChecksum
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class NmeaParserTest {
+
+    @Test
+    fun parsesEveryEpoch() {
+        val parser = NmeaParser()
+        var epochs = 0
+        NmeaSentences.corpus().forEachIndexed { index, sentence ->
+            if (parser.parse(sentence, index.toLong())) {
+                epochs++
+                if (epochs == 1) {
+                    val fix = parser.fix
+                    assertEquals(NmeaFix.FIX_3D, fix.fixType)
+                    assertEquals(12.971605, fix.latitudeDeg, 1e-6)
+                    assertEquals(77.594605, fix.longitudeDeg, 1e-6)
+                    assertEquals(920.0, fix.altitudeM, 1e-9)
+                    assertEquals(0.72f, fix.hdop, 1e-6f)
+                    assertEquals(1.02f, fix.vdop, 1e-6f)
+                    assertEquals(8.0f, fix.speedMps, 1e-3f)
+                    assertEquals(45.0f, fix.courseDeg, 1e-6f)
+                    assertEquals(23, fix.satellitesUsed)
+                    assertEquals(31, fix.satellitesInView)
+                    // 2023-12-31T23:59:55Z
+                    assertEquals(1_704_067_195_000L, fix.utcTimeMs)
+                    assertEquals(0L, fix.timestampNs)
+                }
+            }
+        }
+        if (parser.flush()) epochs++
+
+        assertEquals(CORPUS_EPOCHS, epochs)
+        assertEquals(2L, parser.rejectedCount)
+        // 2024-01-01T00:00:04.9Z
+        assertEquals(1_704_067_204_900L, parser.fix.utcTimeMs)
+    }
+
+    @Test
+    fun splitsEpochsWithoutTime() {
+        // a cold receiver repeats its cycle with every time field empty
+        val cycle = listOf(
+            "GPRMC,,V,,,,,,,,,,N",
+            "GPGGA,,,,,,0,00,99.99,,,,,,",
+            "GPGSA,A,1,,,,,,,,,,,,,99.99,99.99,99.99"
+        ).map { withChecksum(it) }
+        val parser = NmeaParser()
+        var epochs = 0
+        repeat(3) { cycle.forEach { if (parser.parse(it, 0L)) epochs++ } }
+        if (parser.flush()) epochs++
+
+        assertEquals(3, epochs)
+        assertEquals(0L, parser.rejectedCount)
+        assertEquals(NmeaFix.FIX_NONE, parser.fix.fixType)
+        assertEquals(3, parser.fix.sentenceCount)
+        assertEquals(-1, parser.fix.utcTimeOfDayMs)
+    }
+
+    @Test
+    fun rejectsWrongChecksums() {
+        val parser = NmeaParser()
+        val gga = withChecksum(GGA)
+        val checksum = gga.substring(gga.length - 4, gga.length - 2)
+
+        // wrong value, not hex, truncated and followed by garbage
+        val wrong = "%02X".format(checksum.toInt(16) xor 1)
+        parser.parse(gga.replace("*$checksum", "*$wrong"), 0L)
+        parser.parse(gga.replace("*$checksum", "*G0"), 0L)
+        parser.parse(gga.replace("*$checksum", "*${checksum[0]}"), 0L)
+        parser.parse(gga.replace("*$checksum", "*${checksum}0"), 0L)
+        assertEquals(4L, parser.rejectedCount)
+        assertFalse(parser.flush())
+
+        // lower case hex and no checksum at all are accepted
+        parser.parse(gga.replace("*$checksum", "*${checksum.lowercase()}"), 0L)
+        assertTrue(parser.flush())
+        assertEquals(12.971605, parser.fix.latitudeDeg, 1e-6)
+        parser.parse("\$$GGA\r\n", 0L)
+        assertTrue(parser.flush())
+        assertEquals(12.971605, parser.fix.latitudeDeg, 1e-6)
+        assertEquals(4L, parser.rejectedCount)
+    }
+
+    @Test
+    fun rollsOverAtMidnight() {
+        for (rmcFirst in listOf(true, false)) {
+            val parser = NmeaParser()
+            val before = epoch("235959.90", "311223", rmcFirst)
+            val after = epoch("000000.00", "010124", rmcFirst)
+            before.forEach { assertFalse(parser.parse(it, 0L)) }
+            assertTrue(parser.parse(after[0], 0L))
+            // 2023-12-31T23:59:59.9Z
+            assertEquals(1_704_067_199_900L, parser.fix.utcTimeMs)
+
+            after.drop(1).forEach { assertFalse(parser.parse(it, 0L)) }
+            assertTrue(parser.flush())
+            // 2024-01-01T00:00:00Z
+            assertEquals(1_704_067_200_000L, parser.fix.utcTimeMs)
+            assertEquals(0, parser.fix.utcTimeOfDayMs)
+        }
+    }
+
+    @Test
+    fun fallsBackToVtgWithoutRmc() {
+        val parser = NmeaParser()
+        parser.parse(withChecksum(GGA), 0L)
+        parser.parse(withChecksum("GPVTG,45.0,T,,M,15.552,N,28.800,K,A"), 0L)
+        assertTrue(parser.flush())
+        assertEquals(45.0f, parser.fix.courseDeg, 1e-6f)
+        assertEquals(8.0f, parser.fix.speedMps, 1e-6f)
+
+        // RMC wins over VTG whichever comes first
+        parser.parse(withChecksum("GPVTG,90.0,T,,M,31.104,N,57.600,K,A"), 0L)
+        parser.parse(withChecksum("GPRMC,123520.00,A,1258.2963,N,07735.6763,E,15.552,45.0,311223,,,A"), 0L)
+        parser.parse(withChecksum("GPVTG,90.0,T,,M,31.104,N,57.600,K,A"), 0L)
+        assertTrue(parser.flush())
+        assertEquals(45.0f, parser.fix.courseDeg, 1e-6f)
+        assertEquals(8.0f, parser.fix.speedMps, 1e-3f)
+
+        // a VTG without speed leaves the epoch alone
+        parser.parse(withChecksum(GGA), 0L)
+        parser.parse(withChecksum("GPVTG,90.0,T,,M,,N,,K,N"), 0L)
+        assertTrue(parser.flush())
+        assertEquals(0f, parser.fix.courseDeg, 0f)
+        assertEquals(0f, parser.fix.speedMps, 0f)
+    }
+
+    private fun epoch(time: String, date: String, rmcFirst: Boolean): List<String> {
+        val rmc = withChecksum("GPRMC,$time,A,1258.2963,N,07735.6763,E,15.552,45.0,$date,,,A")
+        val gga = withChecksum("GPGGA,$time,1258.2963,N,07735.6763,E,1,12,0.72,920.0,M,-86.0,M,,")
+        val gsa = withChecksum("GPGSA,A,3,01,02,03,04,05,06,07,08,09,10,11,12,1.25,0.72,1.02,1")
+        return if (rmcFirst) listOf(rmc, gga, gsa) else listOf(gga, rmc, gsa)
+    }
+
+    companion object {
+        private const val CORPUS_EPOCHS = 100
+        private const val GGA = "GPGGA,123519.00,1258.2963,N,07735.6763,E,1,12,0.72,920.0,M,-86.0,M,,"
+    }
+
+}
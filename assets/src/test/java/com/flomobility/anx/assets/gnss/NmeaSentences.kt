@@ -0,0 +1,33 @@
+package com.flomobility.anx.assets.gnss
+
+/**
+ * Sentences shared by the [NmeaParser] tests and benchmark.
+ */
+object NmeaSentences {
+
+    private const val CORPUS = "nmea/corpus.nmea"
+
+    /**
+     * The sentences of nmea/corpus.nmea, each ended with CRLF.
+     *
+     * The corpus is 10 s of a 10 hz GPS, GLONASS, Galileo and BeiDou receiver in the
+     * order Qualcomm chipsets emit it: RMC, GGA, one GSA per constellation, GSV and
+     * VTG, 16 sentences per epoch. It crosses midnight on new year, has 5 epochs
+     * without a fix and 2 sentences with a wrong checksum.
+     * */
+    fun corpus(): List<String> {
+        val corpus = javaClass.classLoader!!.getResource(CORPUS)!!.readText()
+        // receivers end sentences with CRLF, the checkout may not
+        return corpus.lines().filter { it.isNotBlank() }.map { "${it.trimEnd()}\r\n" }
+    }
+
+    /**
+     * Frames a sentence [body] with its $, checksum and CRLF.
+     * */
+    fun withChecksum(body: String): String {
+        var checksum = 0
+        body.forEach { checksum = checksum xor it.code }
+        return "$%s*%02X\r\n".format(body, checksum)
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.flomobility.anx.native.zmq
+
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Measures the producer side cost per message of [Publisher.publish] against
+ * [Publisher.publishBatch] for batch sizes 1..256. Results are logged under [TAG].
+ */
+@RunWith(AndroidJUnit4::class)
+class PublishBatchBenchmark {
+
+    private val publisher = Publisher()
+
+    private val payload = ByteArray(MESSAGE_SIZE) { it.toByte() }
+
+    @Before
+    fun setUp() {
+        publisher.init(ADDRESS)
+    }
+
+    @After
+    fun tearDown() {
+        publisher.close()
+    }
+
+    @Test
+    fun perMessageCost() {
+        // warm up the JIT and the zmq pipes
+        repeat(WARMUP_MESSAGES) { publisher.publish(payload) }
+
+        val singleNs = measure { batchSize ->
+            repeat(batchSize) { publisher.publish(payload) }
+        }
+        Log.i(TAG, "publish: %.0f ns/msg".format(singleNs))
+
+        var batchSize = 1
+        while (batchSize <= MAX_BATCH_SIZE) {
+            val messages = List(batchSize) { payload }
+            val batch = MessageBatch(batchSize * (Int.SIZE_BYTES + MESSAGE_SIZE))
+            repeat(batchSize) { batch.add(payload) }
+
+            assertEquals(batchSize, publisher.publishBatch(messages))
+            assertEquals(batchSize, publisher.publishBatch(batch))
+
+            val listNs = measure(batchSize) { publisher.publishBatch(messages) }
+            val packedNs = measure(batchSize) { publisher.publishBatch(batch) }
+            val multipartNs = measure(batchSize) { publisher.publishBatch(batch, multipart = true) }
+            Log.i(
+                TAG,
+                "batch %3d: list %.0f ns/msg, packed %.0f ns/msg, multipart %.0f ns/msg".format(
+                    batchSize, listNs, packedNs, multipartNs
+                )
+            )
+            batchSize *= 2
+        }
+    }
+
+    /**
+     * Runs [block] until about [MESSAGES_PER_RUN] messages are sent and returns the
+     * average cost per message in nanoseconds.
+     * */
+    private inline fun measure(batchSize: Int = 1, block: (Int) -> Unit): Double {
+        val iterations = maxOf(1, MESSAGES_PER_RUN / batchSize)
+        val start = System.nanoTime()
+        repeat(iterations) { block(batchSize) }
+        val elapsed = System.nanoTime() - start
+        return elapsed.toDouble() / (iterations * batchSize)
+    }
+
+    companion object {
+        private const val TAG = "PublishBatchBenchmark"
+
+        private const val ADDRESS = "tcp://127.0.0.1:10099"
+
+        private const val MESSAGE_SIZE = 128
+        private const val MAX_BATCH_SIZE = 256
+        private const val WARMUP_MESSAGES = 10_000
+        private const val MESSAGES_PER_RUN = 100_000
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.flomobility.anx.native.zmq
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.takeWhile
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Publishes numbered messages through [Publisher] and collects them back with
+ * [Subscriber.messages].
+ */
+@RunWith(AndroidJUnit4::class)
+class SubscriberRoundTripTest {
+
+    private val publisher = Publisher()
+
+    @Before
+    fun setUp() {
+        publisher.init(ADDRESS)
+    }
+
+    @After
+    fun tearDown() {
+        publisher.close()
+    }
+
+    @Test
+    fun roundTrip() = runBlocking {
+        val connected = CompletableDeferred<Unit>()
+        val received = async(Dispatchers.Default) {
+            val sequences = mutableListOf<Long>()
+            var intact = true
+            Subscriber(ADDRESS).messages()
+                .takeWhile { it.getLong(0) != LAST }
+                .collect { buffer ->
+                    val sequence = buffer.getLong(0)
+                    if (sequence == WARMUP) {
+                        connected.complete(Unit)
+                        return@collect
+                    }
+                    // a slow collector must not see its buffer overwritten by the next message
+                    delay(1)
+                    intact = intact && buffer.remaining() == MESSAGE_SIZE &&
+                        (0 until MESSAGE_SIZE / Long.SIZE_BYTES).all {
+                            buffer.getLong(it * Long.SIZE_BYTES) == sequence
+                        }
+                    sequences.add(sequence)
+                }
+            sequences to intact
+        }
+
+        withTimeout(TIMEOUT_MS) {
+            // a subscriber only gets messages published after it connected
+            while (!connected.isCompleted) {
+                publisher.publish(message(WARMUP))
+                delay(10)
+            }
+            for (sequence in 0 until MESSAGES.toLong()) publisher.publish(message(sequence))
+            publisher.publish(message(LAST))
+
+            val (sequences, intact) = received.await()
+            assertEquals((0 until MESSAGES.toLong()).toList(), sequences)
+            assertTrue(intact)
+        }
+    }
+
+    @Test
+    fun cancelWhileWaiting() = runBlocking {
+        val collecting = CompletableDeferred<Unit>()
+        val job = launch(Dispatchers.Default) {
+            Subscriber(ADDRESS).messages()
+                .also { collecting.complete(Unit) }
+                .collect { }
+        }
+        collecting.await()
+        delay(100)
+        // nothing is published, the receive is blocked until it is woken up
+        withTimeout(TIMEOUT_MS) { job.cancelAndJoin() }
+    }
+
+    private fun message(sequence: Long): ByteArray {
+        val buffer = ByteBuffer.allocate(MESSAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        while (buffer.hasRemaining()) buffer.putLong(sequence)
+        return buffer.array()
+    }
+
+    companion object {
+        private const val ADDRESS = "tcp://127.0.0.1:10098"
+
+        private const val MESSAGE_SIZE = 64
+        private const val MESSAGES = 500
+        private const val WARMUP = -1L
+        private const val LAST = -2L
+        private const val TIMEOUT_MS = 10_000L
+    }
+
+}
@@ -0,0 +1,93 @@
+#ifndef ANX_HISTORY_RING_H
+#define ANX_HISTORY_RING_H
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <cstring>
+#include <type_traits>
+
+/**
+ * Fixed size ring of the latest timestamped values, written by one thread
+ * and read by any number of threads without locks.
+ *
+ * Every slot carries a sequence that is odd while the writer fills it and
+ * (2 * index + 2) once committed, the same scheme as ShmRingWriter. A reader
+ * that sees the sequence change while copying a slot was lapped and drops it,
+ * the writer never waits.
+ */
+template<typename T, size_t N>
+class HistoryRing {
+    static_assert(std::is_trivially_copyable<T>::value,
+                  "HistoryRing copies values with memcpy");
+public:
+    HistoryRing() : written_(0) {
+        for (auto &slot : this->slots_) {
+            slot.sequence.store(0, std::memory_order_relaxed);
+        }
+    }
+
+    /**
+     * Only called from the writer thread.
+     * */
+    void Write(int64_t timestamp_ns, const T &value) {
+        uint64_t index = this->written_.load(std::memory_order_relaxed);
+        slot_t &slot = this->slots_[index % N];
+        slot.sequence.store(2 * index + 1, std::memory_order_relaxed);
+        std::atomic_thread_fence(std::memory_order_release);
+        slot.timestamp_ns = timestamp_ns;
+        memcpy(&slot.value, &value, sizeof(T));
+        slot.sequence.store(2 * index + 2, std::memory_order_release);
+        this->written_.store(index + 1, std::memory_order_release);
+    }
+
+    /**
+     * Copies the values written after [since_ns] into [out], oldest first. If
+     * there are more than [max], only the newest [max] are copied.
+     * @return the number of values copied
+     * */
+    size_t Read(int64_t since_ns, size_t max, T *out) const {
+        uint64_t end = this->written_.load(std::memory_order_acquire);
+        uint64_t begin = end > N ? end - N : 0;
+        size_t count = 0;
+        // newest first into the tail of out, until since_ns, max or a lapped slot
+        for (uint64_t index = end; index > begin && count < max; index--) {
+            const slot_t &slot = this->slots_[(index - 1) % N];
+            uint64_t expected = 2 * (index - 1) + 2;
+            if (slot.sequence.load(std::memory_order_acquire) != expected) {
+                break;
+            }
+            int64_t timestamp_ns = slot.timestamp_ns;
+            memcpy(&out[max - count - 1], &slot.value, sizeof(T));
+            std::atomic_thread_fence(std::memory_order_acquire);
+            if (slot.sequence.load(std::memory_order_relaxed) != expected) {
+                break;
+            }
+            if (timestamp_ns <= since_ns) {
+                break;
+            }
+            count++;
+        }
+        if (count > 0 && count < max) {
+            memmove(out, &out[max - count], count * sizeof(T));
+        }
+        return count;
+    }
+
+    static constexpr size_t Capacity() {
+        return N;
+    }
+
+private:
+    struct slot_t {
+        std::atomic<uint64_t> sequence;
+        int64_t timestamp_ns;
+        T value;
+    };
+
+    slot_t slots_[N];
+    // values written so far, the next one goes to slots_[written_ % N]
+    std::atomic<uint64_t> written_;
+};
+
+#endif //ANX_HISTORY_RING_H
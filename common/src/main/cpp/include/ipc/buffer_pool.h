@@ -0,0 +1,81 @@
+#ifndef ANX_BUFFER_POOL_H
+#define ANX_BUFFER_POOL_H
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <memory>
+
+typedef unsigned char BYTE;   // 8-bit unsigned entity.
+
+/**
+ * Fixed set of natively allocated buffers that can be handed to libzmq
+ * without copying.
+ *
+ * Every slot moves through FREE -> ACQUIRED -> IN_FLIGHT -> FREE. A slot is
+ * IN_FLIGHT from the moment its memory is given to a zmq::message_t until
+ * libzmq invokes the free callback, so the owner never rewrites a payload
+ * the I/O thread is still reading.
+ *
+ * The pool may be released while slots are still in flight, the memory is
+ * then freed by the last free callback.
+ */
+class BufferPool {
+public:
+    enum SlotState : uint8_t {
+        FREE = 0,
+        ACQUIRED = 1,
+        IN_FLIGHT = 2
+    };
+
+    struct slot_t {
+        BufferPool *pool;
+        BYTE *data;
+        std::atomic<uint8_t> state;
+    };
+
+    BufferPool(size_t count, size_t capacity);
+
+    /**
+     * Returns the index of a FREE slot marked as ACQUIRED, or -1 if every slot
+     * is either held by the caller or still owned by libzmq.
+     * */
+    int32_t Acquire();
+
+    /**
+     * Returns an ACQUIRED slot to the pool without sending it.
+     * */
+    void Release(int32_t index);
+
+    /**
+     * Marks an ACQUIRED slot as IN_FLIGHT and returns it, to be passed as the
+     * hint of a zmq::message_t built with OnMessageFreed. Returns nullptr if the
+     * slot was not acquired.
+     * */
+    slot_t *BeginSend(int32_t index);
+
+    /**
+     * Frees the pool once no slot is in flight anymore.
+     * */
+    void Destroy();
+
+    BYTE *Data(int32_t index);
+    size_t Count() const;
+    size_t Capacity() const;
+
+    static void OnMessageFreed(void *data, void *hint);
+
+private:
+    ~BufferPool();
+    void Unref();
+
+    size_t count_;
+    size_t capacity_;
+    std::unique_ptr<BYTE[]> memory_;
+    std::unique_ptr<slot_t[]> slots_;
+    std::atomic<uint32_t> next_;
+    // one reference held by the owner plus one per in-flight message
+    std::atomic<int32_t> refs_;
+};
+
+#endif //ANX_BUFFER_POOL_H
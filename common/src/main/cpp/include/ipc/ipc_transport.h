@@ -5,18 +5,24 @@
 #ifndef ANX_IPC_TRANSPORT_H
 #define ANX_IPC_TRANSPORT_H
 
+#include <atomic>
 #include <string>
+#include <string_view>
 #include <memory>
 #include <algorithm>
 #include <exception>
+#include <unordered_map>
+#include <vector>
+#include <mutex>
+#include <deque>
 
 #include "zmq/zmq.hpp"
 #include "zmq/zmq_addon.hpp"
 
+#include "ipc/buffer_pool.h"
+#include "ipc/zmq_context.h"
 #include "utils.h"
 
-typedef unsigned char BYTE;   // 8-bit unsigned entity.
-
 class Bytes {
 public:
     Bytes(size_t, BYTE*);
@@ -44,31 +50,156 @@ struct seq_message_t {
     bool more;
 };
 
+/**
+ * Result of a receive into a caller supplied buffer, packed into a single
+ * 64 bit value so that it can cross JNI without allocating.
+ *
+ * bits 0-31 : size of the frame (the full size if it was truncated)
+ * bit 32    : more frames of the same message follow
+ * bit 33    : the frame was larger than the buffer and has been truncated
+ *
+ * Negative values mean no frame was received.
+ */
+#define RECV_STATUS_TIMEOUT (-1LL)
+#define RECV_STATUS_ERROR (-2LL)
+// the receive was interrupted by Subscriber::wakeup
+#define RECV_STATUS_CLOSED (-5LL)
+#define RECV_STATUS_MORE_BIT (1LL << 32)
+#define RECV_STATUS_TRUNCATED_BIT (1LL << 33)
+
+inline int64_t PackRecvStatus(size_t size, bool more, bool truncated) {
+    int64_t status = (int64_t) (size & 0xFFFFFFFFu);
+    if (more) status |= RECV_STATUS_MORE_BIT;
+    if (truncated) status |= RECV_STATUS_TRUNCATED_BIT;
+    return status;
+}
+
+/**
+ * An RPC receive additionally carries the id of the RPC in bits 40-55, the id
+ * being the index of its name in the table given to Server::registerRpcs.
+ */
+#define RECV_STATUS_UNKNOWN_RPC (-3LL)
+#define RECV_STATUS_MALFORMED (-4LL)
+#define RECV_STATUS_RPC_ID_SHIFT 40
+#define MAX_RPC_NAME_SIZE 64
+
+inline int64_t PackRpcRecvStatus(uint16_t rpc_id, size_t size, bool truncated) {
+    return PackRecvStatus(size, false, truncated) | ((int64_t) rpc_id << RECV_STATUS_RPC_ID_SHIFT);
+}
+
+/**
+ * Delivery policy of a publisher, the defaults match libzmq's PUB socket.
+ */
+struct publisher_options_t {
+    // messages queued per subscriber before new ones are dropped
+    int sndhwm = 1000;
+    // keep only the latest message in the queue of each subscriber on this
+    // side, single part messages only. Messages already handed to the
+    // subscriber pile up regardless, latest-value subscribers conflate too.
+    bool conflate = false;
+    // -1 keeps pending messages until they are delivered on close
+    int linger_ms = -1;
+    // 0 never blocks, -1 blocks until every subscriber has room
+    int send_timeout_ms = 0;
+    // use an XPUB socket that reports a full subscriber queue instead of
+    // silently dropping, needed for the drop counter to see HWM drops. The
+    // queue is checked on every part, so multipart messages are refused.
+    bool xpub_nodrop = false;
+};
+
 class Publisher {
 public:
-    Publisher(const std::string& address);
+    Publisher(const std::string& address, const publisher_options_t& options = {});
     void SendData(BYTE* data, int length);
     void SendData(bytes_t bytes);
     void SendData(const std::string& data);
+    /**
+     * Hands a slot of a BufferPool to libzmq without copying, the slot
+     * becomes free again once libzmq is done with it.
+     * */
+    void SendData(BufferPool::slot_t* slot, size_t offset, size_t length);
+    /**
+     * Sends one message, [more] marks it as a non final part of a multipart
+     * message.
+     * */
+    bool SendMessage(zmq::message_t& message, bool more);
+    /**
+     * Sends every message of a batch packed as [uint32 little endian length][payload]
+     * records, either as separate messages or as the parts of one multipart message.
+     * A truncated batch is rejected as a whole and nothing is sent.
+     * @return the number of messages sent
+     * */
+    int SendPacked(const BYTE* data, size_t length, bool multipart);
+    /**
+     * False for XPUB_NODROP publishers: a full queue fails the part being sent
+     * and leaves the parts already queued waiting for the rest of the message.
+     * */
+    bool SupportsMultipart() const;
+    /**
+     * Number of messages that could not be queued for the subscribers.
+     * */
+    uint64_t Dropped() const;
     bool close();
 private:
-    zmq::context_t context_;
     zmq::socket_t socket_;
+    zmq::send_flags send_flags_;
+    bool xpub_nodrop_;
+    std::atomic<uint64_t> dropped_;
 
     std::string address_;
 
     std::string tag_;
 };
 
+/**
+ * What a subscriber does with messages that arrive faster than they are
+ * received.
+ */
+enum class SubscriberOverflow : int {
+    // queue up to [capacity] messages in libzmq, the publisher drops beyond
+    SUSPEND = 0,
+    // keep the latest [capacity] messages, older ones are discarded
+    DROP_OLDEST = 1,
+    // keep only the latest message
+    CONFLATE = 2
+};
+
 class Subscriber {
 public:
-    Subscriber(const std::string& address, const std::string& topic);
+    Subscriber(const std::string& address, const std::string& topic,
+               SubscriberOverflow overflow = SubscriberOverflow::SUSPEND,
+               int capacity = 1000);
     bytes_t listen();
+    /**
+     * Blocks until a message arrives or [wakeup] is called and copies the
+     * message into [buffer].
+     * @return a packed receive status, RECV_STATUS_CLOSED once woken up
+     * */
+    int64_t receive(BYTE* buffer, size_t capacity);
+    /**
+     * Interrupts a blocked [receive], safe to call from any thread.
+     * */
+    void wakeup();
+    /**
+     * Number of messages discarded by the DROP_OLDEST policy.
+     * */
+    uint64_t Dropped() const;
     bool close();
 private:
-    zmq::context_t context_;
+    bool waitForMessage();
+    void drainPending();
     std::unique_ptr<zmq::socket_t> socket_;
     std::unique_ptr<zmq::pollitem_t> poller_;
+    // socket and wakeup eventfd, polled by receive
+    zmq::pollitem_t items_[2];
+    int wakeup_fd_;
+
+    SubscriberOverflow overflow_;
+    size_t capacity_;
+    std::deque<zmq::message_t> pending_;
+    std::atomic<uint64_t> dropped_;
+    // last message returned by listen, owns the data it points to
+    zmq::message_t listen_msg_;
 
     std::string address_;
 
@@ -78,20 +209,89 @@ private:
 class Server {
 public:
     Server(const std::string& address);
+    /**
+     * Creates a worker that connects to [address] on a context shared with the
+     * socket it serves, typically the backend of an RpcBroker.
+     *
+     * Workers use a DEALER socket and keep the routing envelope of each
+     * request, which lets a reply be deferred with deferReply and sent from
+     * any thread once it is ready, while the worker keeps receiving. A worker
+     * announces itself to the broker each time receiveRpc waits for a new
+     * request.
+     * */
+    Server(zmq::context_t& context, const std::string& address);
     seq_message_t listen();
+    /**
+     * Receives the next frame straight into [buffer] without allocating.
+     * @return the packed receive status, see PackRecvStatus
+     * */
+    int64_t receive(BYTE* buffer, size_t capacity);
     rpc_payload_t listenRpc();
+    /**
+     * Names of the RPCs served, their index in [rpc_names] is the id
+     * reported by receiveRpc.
+     * */
+    void registerRpcs(const std::vector<std::string>& rpc_names);
+    /**
+     * Receives a complete [rpc name, payload] request in one call, resolving
+     * the name against the registered table and writing the payload into
+     * [buffer]. Workers block until a request arrives or [wakeup] is called,
+     * bound servers return after 100 ms without a request.
+     * @return the packed status, see PackRpcRecvStatus
+     * */
+    int64_t receiveRpc(BYTE* buffer, size_t capacity);
+    /**
+     * Makes a blocked receiveRpc of a worker return RECV_STATUS_CLOSED, may
+     * be called from any thread.
+     * */
+    void wakeup();
     bool sendResponse(bytes_t& payload);
+    bool sendResponse(BYTE* data, size_t length);
     bool sendResponse(const std::string& payload);
     bool sendResponse(const std::string& payload, bool more);
+    /**
+     * Detaches the envelope of the last received request so that its reply
+     * can be sent later with sendDeferredResponse. Only valid for workers.
+     * @return a handle to the pending reply, 0 if the server is not a worker
+     * */
+    uint64_t deferReply();
+    /**
+     * Queues the reply of a deferred request, may be called from any thread.
+     * The reply is sent by the thread receiving requests as soon as it wakes.
+     * */
+    bool sendDeferredResponse(uint64_t handle, BYTE* data, size_t length);
     bool close();
 private:
-    zmq::context_t context_;
+    struct pending_reply_t {
+        std::vector<zmq::message_t> envelope;
+        zmq::message_t payload;
+    };
+    void initPoller();
+    bool pollRequest(long timeout);
+    bool receiveEnvelope();
+    bool sendReply(zmq::const_buffer payload, bool more);
+    void flushDeferredReplies();
     std::unique_ptr<zmq::socket_t> socket_;
     std::unique_ptr<zmq::pollitem_t> poller_;
 
     std::string address_;
+    bool connected_;
 
     std::string tag_;
+
+    // routing envelope of the request being handled, only used by workers
+    std::vector<zmq::message_t> envelope_;
+    bool reply_started_;
+    // whether the broker was told this worker waits for a request
+    bool ready_sent_;
+    int wakeup_fd_;
+    std::atomic<bool> woken_;
+    std::mutex deferred_mutex_;
+    std::deque<std::unique_ptr<pending_reply_t>> deferred_replies_;
+
+    zmq::message_t rpc_msg_;
+    std::vector<std::string> rpc_names_;
+    std::unordered_map<std::string_view, uint16_t> rpc_ids_;
 };
 
 class Client {
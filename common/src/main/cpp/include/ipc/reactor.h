@@ -0,0 +1,88 @@
+#ifndef ANX_REACTOR_H
+#define ANX_REACTOR_H
+
+#include <atomic>
+#include <functional>
+#include <memory>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+#include "zmq/zmq.hpp"
+
+#include "utils.h"
+
+/**
+ * Single thread polling every registered socket and fd with no timeout.
+ *
+ * Handlers run on the reactor thread when their socket is readable. Changes
+ * to the registrations and posted tasks are queued and applied between two
+ * polls after waking the thread up through an eventfd, so an idle reactor
+ * never wakes up and stopping it is immediate.
+ *
+ * Handlers should return quickly, anything slow holds up every other
+ * registered socket.
+ */
+class Reactor {
+public:
+    typedef std::function<void()> handler_t;
+
+    /**
+     * Process wide reactor, started on first use and never stopped.
+     * */
+    static Reactor& Shared();
+
+    Reactor();
+    ~Reactor();
+
+    void start();
+    void stop();
+
+    /**
+     * Calls [handler] on the reactor thread whenever [socket] is readable.
+     * */
+    void add(zmq::socket_t& socket, handler_t handler);
+    void add(int fd, handler_t handler);
+
+    /**
+     * Unregisters a socket or fd. When called off the reactor thread this
+     * waits until the handler is guaranteed not to run anymore.
+     * */
+    void remove(zmq::socket_t& socket);
+    void remove(int fd);
+
+    /**
+     * Runs [task] on the reactor thread, safe to call from any thread.
+     * */
+    void post(handler_t task);
+
+private:
+    struct entry_t {
+        void* socket;
+        int fd;
+        handler_t handler;
+    };
+
+    void run();
+    void wakeup();
+    void runPending();
+    void removeEntry(void* socket, int fd);
+    bool onReactorThread() const;
+
+    // only touched by the reactor thread while it runs
+    std::vector<entry_t> entries_;
+    std::vector<zmq::pollitem_t> items_;
+    bool items_dirty_;
+
+    std::mutex mutex_;
+    std::vector<handler_t> pending_;
+
+    int wakeup_fd_;
+    std::atomic<bool> running_;
+    std::unique_ptr<std::thread> thread_;
+    std::atomic<std::thread::id> thread_id_;
+
+    std::string tag_;
+};
+
+#endif //ANX_REACTOR_H
@@ -0,0 +1,63 @@
+#ifndef ANX_RPC_BROKER_H
+#define ANX_RPC_BROKER_H
+
+#include <deque>
+#include <memory>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include "zmq/zmq.hpp"
+#include "zmq/zmq_addon.hpp"
+
+#include "ipc/zmq_context.h"
+#include "utils.h"
+
+// sent alone by a worker when it waits for a request
+#define BROKER_WORKER_READY "READY"
+
+/**
+ * Spreads RPC requests over a pool of workers.
+ *
+ * Clients connect to a ROUTER socket bound on [address] exactly like they did
+ * to the single REP server. The workers connect to a second ROUTER over
+ * inproc and announce with a single READY frame whenever they wait for a
+ * request. A request is only routed to the worker that has been idle the
+ * longest, and clients queue in the frontend while every worker is busy, so
+ * a cheap RPC never waits behind a slow one on the same worker. Replies
+ * travel back through the frontend using the identity envelope it prepended
+ * to the request.
+ */
+class RpcBroker {
+public:
+    RpcBroker(const std::string& address);
+    ~RpcBroker();
+    void start();
+    bool close();
+    zmq::context_t& context();
+    const std::string& backendAddress() const;
+private:
+    void proxy();
+    /**
+     * Sends [request] to the longest idle worker that is still connected.
+     * @return false if no idle worker is left, the request is kept
+     * */
+    bool routeRequest(std::vector<zmq::message_t>& request);
+    zmq::context_t& context_;
+    zmq::socket_t frontend_;
+    zmq::socket_t backend_;
+    zmq::socket_t control_;
+    zmq::socket_t control_listener_;
+
+    std::unique_ptr<std::thread> proxy_thread_;
+
+    // routing ids of the workers waiting for a request, only used by the proxy thread
+    std::deque<zmq::message_t> idle_workers_;
+
+    std::string address_;
+    std::string backend_address_;
+
+    std::string tag_;
+};
+
+#endif //ANX_RPC_BROKER_H
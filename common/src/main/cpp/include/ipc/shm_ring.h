@@ -0,0 +1,144 @@
+#ifndef ANX_SHM_RING_H
+#define ANX_SHM_RING_H
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <memory>
+#include <string>
+#include <thread>
+
+#include "ipc/buffer_pool.h"
+#include "utils.h"
+
+#define SHM_RING_MAGIC 0x474e4952584e41ULL   // "ANXRING"
+#define SHM_RING_VERSION 1
+
+#define SHM_READ_LAPPED -1
+#define SHM_READ_TRUNCATED -2
+#define SHM_READ_INVALID -3
+
+/**
+ * Layout of the shared memory region, readers only rely on this.
+ *
+ * [shm_ring_header_t][slot 0 : shm_slot_header_t + slot_size bytes][slot 1]...
+ *
+ * The sequence of a slot is odd while the writer fills it and becomes
+ * (2 * frame sequence + 2) once the frame is committed, so a reader that
+ * sees a different value before or after copying knows it was lapped.
+ */
+struct shm_ring_header_t {
+    uint64_t magic;
+    uint32_t version;
+    uint32_t slot_count;
+    uint32_t slot_size;
+    uint32_t slot_stride;
+    std::atomic<uint64_t> write_sequence;
+};
+
+struct shm_slot_header_t {
+    std::atomic<uint64_t> sequence;
+    uint64_t timestamp_ns;
+    uint32_t size;
+    uint32_t reserved;
+};
+
+static_assert(std::atomic<uint64_t>::is_always_lock_free,
+              "shared memory sequences need lock free 64 bit atomics");
+
+/**
+ * What travels over ZMQ for every frame written to the ring.
+ * */
+struct shm_frame_t {
+    uint32_t slot;
+    uint64_t sequence;
+    uint32_t size;
+    uint64_t timestamp_ns;
+};
+
+/**
+ * Single producer ring of fixed size slots in a memfd.
+ *
+ * The fd is handed out over a unix socket bound on [socket_path] with
+ * SCM_RIGHTS, readers map the region read only once and then follow the
+ * frame descriptors published next to it. The memfd is sealed against
+ * resizing and, where the kernel supports it, against writable mappings by
+ * anyone but the writer.
+ */
+class ShmRingWriter {
+public:
+    ShmRingWriter(const std::string& name, const std::string& socket_path,
+                  uint32_t slot_count, uint32_t slot_size);
+    ~ShmRingWriter();
+
+    /**
+     * Copies [length] bytes into the next slot and fills [frame] with its
+     * descriptor. Returns false if the frame does not fit in a slot.
+     * */
+    bool Write(const BYTE* data, size_t length, uint64_t timestamp_ns, shm_frame_t* frame);
+
+    uint32_t SlotCount() const;
+    uint32_t SlotSize() const;
+    bool close();
+private:
+    void serveFd();
+    shm_slot_header_t* slot(uint32_t index);
+
+    int memfd_;
+    int listen_fd_;
+    size_t map_size_;
+    BYTE* map_;
+    shm_ring_header_t* header_;
+    uint64_t next_sequence_;
+
+    std::string socket_path_;
+    std::unique_ptr<std::thread> fd_thread_;
+    std::atomic<bool> running_;
+
+    std::string tag_;
+};
+
+/**
+ * Read side of a [ShmRingWriter], usable from any process that can reach
+ * the writer's unix socket.
+ */
+class ShmRingReader {
+public:
+    ShmRingReader(const std::string& socket_path);
+    ~ShmRingReader();
+
+    /**
+     * Copies the frame described by [frame] into [dst].
+     * @return the frame size, SHM_READ_LAPPED if the writer reused the slot
+     * before or while it was read, SHM_READ_TRUNCATED if [capacity] is too
+     * small or SHM_READ_INVALID for a descriptor outside the ring.
+     * */
+    int64_t Read(const shm_frame_t& frame, BYTE* dst, size_t capacity);
+
+    /**
+     * Zero copy access to a frame, the data is only valid if [Validate]
+     * returns true after the caller is done with it.
+     * */
+    const BYTE* Peek(const shm_frame_t& frame);
+    bool Validate(const shm_frame_t& frame);
+
+    /**
+     * Number of frames written after the one described by [frame].
+     * */
+    uint64_t Lag(const shm_frame_t& frame) const;
+    bool close();
+private:
+    const shm_slot_header_t* slot(uint32_t index) const;
+
+    size_t map_size_;
+    const BYTE* map_;
+    const shm_ring_header_t* header_;
+    // copied from the header once validated against the mapping
+    uint32_t slot_count_;
+    uint32_t slot_size_;
+    uint32_t slot_stride_;
+
+    std::string tag_;
+};
+
+#endif //ANX_SHM_RING_H
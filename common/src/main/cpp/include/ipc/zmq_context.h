@@ -0,0 +1,39 @@
+#ifndef ANX_ZMQ_CONTEXT_H
+#define ANX_ZMQ_CONTEXT_H
+
+#include <mutex>
+#include <vector>
+
+#include "zmq/zmq.hpp"
+
+#include "utils.h"
+
+#define ZMQ_CONTEXT_DEFAULT_IO_THREADS 1
+
+/**
+ * Process wide ZMQ context shared by every publisher, subscriber, server and
+ * broker, so the process runs one set of libzmq I/O and reaper threads
+ * instead of one per endpoint. Inproc endpoints are visible across all of
+ * them as a side effect.
+ *
+ * The context is never terminated, sockets are closed by their owners and
+ * the context lives as long as the process.
+ */
+class ZmqContext {
+public:
+    /**
+     * Sets the number of I/O threads and the CPUs they may run on, an empty
+     * [cpu_affinity] leaves them to the scheduler. Only effective before the
+     * first socket is created, returns false afterwards.
+     * */
+    static bool Configure(int io_threads, const std::vector<int>& cpu_affinity);
+
+    static zmq::context_t& Get();
+private:
+    static zmq::context_t& instance();
+
+    static std::mutex mutex_;
+    static bool started_;
+};
+
+#endif //ANX_ZMQ_CONTEXT_H
@@ -5,20 +5,77 @@
 #ifndef ANX_RATE_H
 #define ANX_RATE_H
 
-#include <chrono>
-#include <thread>
+#include <atomic>
+#include <cstdint>
+#include <ctime>
 
+enum class RateOverrunPolicy : int {
+    // a late cycle runs right away, the ticks missed meanwhile are dropped and
+    // the following deadlines stay on the original schedule
+    SKIP = 0,
+    // every missed tick runs back to back until the schedule is met again
+    CATCH_UP = 1,
+    // the schedule restarts from the late cycle, later deadlines shift by the overrun
+    RESET = 2
+};
+
+struct rate_stats_t {
+    uint64_t cycles;
+    // cycles that started after their deadline
+    uint64_t overruns;
+    // ticks dropped by RateOverrunPolicy::SKIP
+    uint64_t missed;
+    // how late sleep returned after a deadline it waited for
+    int64_t last_wakeup_latency_ns;
+    int64_t max_wakeup_latency_ns;
+    int64_t mean_wakeup_latency_ns;
+};
+
+/**
+ * Periodic scheduler on absolute deadlines.
+ *
+ * Deadline n is start + n / hz on CLOCK_MONOTONIC, computed in nanoseconds
+ * from the cycle count so that rounding never accumulates, and waited for
+ * with clock_nanosleep(TIMER_ABSTIME) so that the time spent in the loop
+ * body does not shift the schedule.
+ *
+ * sleep is called from a single thread, Stats from any thread.
+ */
 class Rate {
 public:
-    Rate(uint16_t hz);
+    explicit Rate(uint16_t hz, RateOverrunPolicy policy = RateOverrunPolicy::SKIP);
+
+    /**
+     * Waits for the next deadline. Returns false without waiting if the
+     * deadline already passed, the overrun being handled by the policy.
+     */
+    bool sleep();
 
-    void sleep();
+    /**
+     * Restarts the schedule from now and clears the statistics.
+     */
+    void reset();
+
+    rate_stats_t Stats() const;
+
+    int64_t PeriodNs() const;
 
 private:
-    uint64_t get_stamp_in_ms();
-    uint64_t start_;
-    uint64_t expected_cycle_time_;
-    uint64_t actual_cycle_time_;
+    static int64_t Now();
+    int64_t Deadline(uint64_t cycle) const;
+
+    uint16_t hz_;
+    RateOverrunPolicy policy_;
+    int64_t start_ns_;
+    uint64_t cycle_;
+
+    std::atomic<uint64_t> cycles_;
+    std::atomic<uint64_t> overruns_;
+    std::atomic<uint64_t> missed_;
+    std::atomic<int64_t> last_latency_ns_;
+    std::atomic<int64_t> max_latency_ns_;
+    std::atomic<int64_t> total_latency_ns_;
+    std::atomic<uint64_t> waits_;
 };
 
 #endif //ANX_RATE_H
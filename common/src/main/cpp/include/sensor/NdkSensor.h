@@ -26,6 +26,16 @@ using namespace std;
 class NdkSensorEventListener {
 public:
     virtual void onSensorChanged(ASensorEvent *event) {};
+
+    /**
+     * Called with every chunk of events drained from the queue, in order.
+     * Dispatches them one by one to onSensorChanged unless overridden.
+     */
+    virtual void onSensorEvents(ASensorEvent *events, size_t count) {
+        for (size_t i = 0; i < count; i++) {
+            onSensorChanged(&events[i]);
+        }
+    };
 };
 
 class NdkSensorManager {
@@ -34,12 +44,23 @@ public:
 
     inline void setListener(NdkSensorEventListener *listener) { _listener = listener; }
 
-    void registerSensor(const vector<int> &sensorIDs, int32_t usec);
+    /**
+     * @param usec sampling period of every sensor
+     * @param max_report_latency_us how long events may be batched in the sensor
+     * hub FIFO before they are delivered, 0 delivers them as soon as possible.
+     * Needs API 26, ignored on older devices.
+     */
+    void registerSensor(const vector<int> &sensorIDs, int32_t usec,
+                        int64_t max_report_latency_us = 0);
 
     void unregister();
 
+    // events drained from the queue per getEvents call
+    static constexpr size_t EVENT_CHUNK_SIZE = 64;
+
     ASensorEventQueue *_sensorEventQueue{};
     NdkSensorEventListener *_listener = nullptr;
+    ASensorEvent _events[EVENT_CHUNK_SIZE]{};
 private:
     ASensorManager *_sensorManager;
     ALooper *_ndkSensorLooper;
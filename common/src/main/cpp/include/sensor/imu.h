@@ -8,46 +8,92 @@
 #include <thread>
 #include <exception>
 #include <chrono>
+#include <map>
+#include <vector>
 
 #include "NdkSensor.h"
-#include "ipc/ipc_transport.h"
-#include "assets.pb.h"
 #include "utils.h"
+#include "history_ring.h"
+#include "sensor/imu_encoder.h"
+#include "sensor/imu_stream.h"
+#include "sensor/madgwick_filter.h"
 
-struct imu_raw_t {
-    double acceleration[3];
-    double angular_velocity[3];
-    double magnetic_field_u_tesla[3];
-};
-
-struct imu_filtered_t {
-    double acceleration[3];
-    double angular_velocity[3];
-    double orientation[4];
-};
-
-struct imu_data_t {
-    imu_raw_t raw;
-    imu_filtered_t filtered;
-};
+// gyroscope samples kept for GetImuHistory, 20 s at 200 hz
+#define IMU_HISTORY_SIZE 4096
 
+/**
+ * Owns the IMU sensors and fans their events out to one ImuStream per rate.
+ *
+ * The sensors are registered once at the rate of the fastest stream and only
+ * registered again when that rate changes, every stream is reference counted
+ * so that clients asking for the same rate share it.
+ *
+ * Every method but readHistory runs on the thread that created the Imu, its
+ * looper delivers the sensor events.
+ */
 class Imu: public NdkSensorEventListener {
 public:
-    Imu(uint16_t fps, const std::string& address);
+    Imu();
     ~Imu();
-    void start();
+
+    /**
+     * Starts the stream at options.fps on [address] or takes another reference
+     * on it if it already runs, in which case its options are kept. The
+     * [legacy_address] endpoint, if not empty, mirrors the last started stream
+     * with that stream's options, and is only rebuilt when it mirrors another one.
+     * @return false if the stream could not be started
+     */
+    bool startStream(const imu_stream_options_t &options,
+                     const std::string &address,
+                     const std::string &legacy_address);
+
+    /**
+     * Drops a reference on the stream at [fps], 0 stops every stream.
+     */
+    void stopStream(uint16_t fps);
+
     void stop();
+
+    /**
+     * Appends the samples kept since [since_ns] to [out] as imu_packed_t
+     * records, oldest first and at most the newest [max_samples], 0 for all.
+     * Safe on any thread, it never blocks the sensor events.
+     * @return the number of samples
+     */
+    size_t readHistory(int64_t since_ns, size_t max_samples, bool fused_orientation,
+                       std::vector<uint8_t> &out) const;
 private:
     void onSensorChanged(ASensorEvent *event) override;
-    void publishData();
-    std::unique_ptr<NdkSensorManager> sensor_manager_;
-    std::unique_ptr<thread> publisher_thread;
-    std::unique_ptr<Publisher> publisher;
+    void onSensorEvents(ASensorEvent *events, size_t count) override;
+    void updateRegistration();
+    void updateFusion(const ASensorEvent &event);
+
+    struct stream_entry_t {
+        std::unique_ptr<ImuStream> stream;
+        int refs;
+    };
 
-    bool is_running_;
-    Rate rate_;
+    std::unique_ptr<NdkSensorManager> sensor_manager_;
+    std::map<uint16_t, stream_entry_t> streams_;
+    // mirrors the last started stream on the legacy endpoint
+    std::unique_ptr<ImuStream> legacy_stream_;
+    // current registration, sensor_fps_ is 0 while unregistered
+    uint16_t sensor_fps_;
+    bool sensor_batch_only_;
+    int64_t sensor_latency_us_;
+    // only touched on the sensor looper thread
     imu_data_t data_{};
-    uint16_t fps_;
+    // runs while a stream uses the fused orientation, with the magnetometer
+    // if any of them asks for it
+    MadgwickFilter fusion_;
+    bool fusion_enabled_;
+    bool fusion_use_magnetometer_;
+    int64_t fusion_ts_;
+    // uncalibrated field minus the platform's hard iron estimate
+    double magnetic_field_u_tesla_[3]{};
+    // data_ after every gyroscope sample while the sensors are registered,
+    // keyed by its timestamp
+    HistoryRing<imu_data_t, IMU_HISTORY_SIZE> history_;
 };
 
 #endif //ANX_IMU_H
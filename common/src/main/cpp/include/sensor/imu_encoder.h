@@ -0,0 +1,116 @@
+#ifndef ANX_IMU_ENCODER_H
+#define ANX_IMU_ENCODER_H
+
+#include <cstddef>
+#include <cstdint>
+
+#include "assets.pb.h"
+
+// timestamps are ASensorEvent::timestamp, nanoseconds on CLOCK_BOOTTIME
+struct imu_raw_t {
+    double acceleration[3];
+    double angular_velocity[3];
+    double magnetic_field_u_tesla[3];
+    int64_t acceleration_ts;
+    int64_t angular_velocity_ts;
+    int64_t magnetic_field_ts;
+};
+
+struct imu_filtered_t {
+    double acceleration[3];
+    double angular_velocity[3];
+    double orientation[4];
+    int64_t acceleration_ts;
+    int64_t angular_velocity_ts;
+    int64_t orientation_ts;
+    // MadgwickFilter output, updated on every gyroscope sample while a stream uses it
+    double fused_orientation[4];
+    double gyro_bias[3];
+    int64_t fused_orientation_ts;
+};
+
+struct imu_data_t {
+    imu_raw_t raw;
+    imu_filtered_t filtered;
+};
+
+enum class ImuEncoding : int {
+    // anx::ImuData
+    PROTOBUF = 0,
+    // imu_packed_t, see api_docs/anx/README.md
+    PACKED_F32 = 1
+};
+
+#define IMU_PACKED_MAGIC 0x554D4941 // "AIMU"
+#define IMU_PACKED_VERSION 1
+// encoded size, sizeof(imu_packed_t) adds trailing padding
+#define IMU_PACKED_SIZE 140
+
+/**
+ * Fixed layout encoding of a sample, little endian, every field at its
+ * natural alignment. Layout changes bump IMU_PACKED_VERSION, fields are only
+ * ever appended.
+ */
+struct imu_packed_t {
+    uint32_t magic;
+    uint16_t version;
+    // of the whole message, decoders skip trailing fields they do not know
+    uint16_t size;
+    uint64_t publish_ts;
+    // raw acceleration, angular velocity, magnetic field, then filtered
+    // acceleration, angular velocity and orientation
+    int64_t timestamps[6];
+    float raw_acceleration[3];
+    float raw_angular_velocity[3];
+    float raw_magnetic_field_u_tesla[3];
+    float filtered_acceleration[3];
+    float filtered_angular_velocity[3];
+    // x, y, z, w
+    float orientation[4];
+};
+
+static_assert(offsetof(imu_packed_t, orientation) + sizeof(imu_packed_t::orientation) == IMU_PACKED_SIZE,
+              "imu_packed_t layout is part of the API");
+static_assert(__BYTE_ORDER__ == __ORDER_LITTLE_ENDIAN__, "imu_packed_t is written as is");
+
+/**
+ * Encodes imu_data_t samples as anx::ImuData or imu_packed_t without allocating.
+ *
+ * The message and its sub-messages are built once and only their fields are
+ * overwritten for every sample, so after construction encoding never touches
+ * the heap. Not thread safe, every publishing thread owns its encoder.
+ */
+class ImuEncoder {
+public:
+    // upper bound of an encoded anx::ImuData, about 270 bytes with every field set
+    static constexpr size_t MAX_SIZE = 512;
+
+    /**
+     * @param fused_orientation encode the fusion stage orientation and gyroscope
+     * bias instead of the rotation vector
+     */
+    explicit ImuEncoder(bool fused_orientation = false);
+
+    /**
+     * Serializes [sample] into [out], returns the encoded size or 0 if it
+     * does not fit in [capacity].
+     */
+    size_t Encode(const imu_data_t &sample, uint64_t publish_ts_ns, uint8_t *out, size_t capacity);
+
+    /**
+     * Same as Encode, as an imu_packed_t.
+     */
+    static size_t EncodePacked(const imu_data_t &sample, uint64_t publish_ts_ns,
+                               bool fused_orientation, uint8_t *out, size_t capacity);
+
+    bool FusedOrientation() const;
+
+private:
+    anx::ImuData message_;
+    // sub-messages owned by message_, kept to skip the lookups per sample
+    anx::ImuData::Raw *raw_;
+    anx::ImuData::Filtered *filtered_;
+    bool fused_orientation_;
+};
+
+#endif //ANX_IMU_ENCODER_H
@@ -0,0 +1,112 @@
+#ifndef ANX_IMU_STREAM_H
+#define ANX_IMU_STREAM_H
+
+#include <android/sensor.h>
+#include <atomic>
+#include <memory>
+#include <string>
+#include <thread>
+
+#include "ipc/ipc_transport.h"
+#include "ipc/buffer_pool.h"
+#include "assets.pb.h"
+#include "rate.h"
+#include "triple_buffer.h"
+#include "sensor/imu_encoder.h"
+
+enum class ImuPublishMode : int {
+    // a separate thread samples the latest values at fps
+    TIMER = 0,
+    // every event of the trigger sensor is published with the latest
+    // values of the other sensors, fps being the sensor event rate
+    ON_SENSOR_EVENT = 1,
+    // every gyroscope and accelerometer event is kept, batch_size gyroscope
+    // samples are published per ImuBatch message, fps being the sensor event rate
+    BATCH = 2
+};
+
+enum class ImuOrientationSource : int {
+    // ASENSOR_TYPE_ROTATION_VECTOR at the platform rate
+    ROTATION_VECTOR = 0,
+    // MadgwickFilter on the gyroscope and accelerometer, at the gyroscope rate
+    FUSION = 1,
+    // same, the magnetometer corrects the yaw
+    FUSION_WITH_MAGNETOMETER = 2
+};
+
+struct imu_stream_options_t {
+    uint16_t fps = 100;
+    ImuPublishMode mode = ImuPublishMode::TIMER;
+    // ON_SENSOR_EVENT only
+    int trigger_sensor = ASENSOR_TYPE_GYROSCOPE;
+    // BATCH only, 0 picks fps / 50
+    uint32_t batch_size = 0;
+    int64_t max_batch_latency_us = 0;
+    // TIMER and ON_SENSOR_EVENT only, batches are always anx::ImuBatch
+    ImuEncoding encoding = ImuEncoding::PROTOBUF;
+    // TIMER and ON_SENSOR_EVENT only
+    ImuOrientationSource orientation_source = ImuOrientationSource::ROTATION_VECTOR;
+};
+
+/**
+ * One IMU endpoint publishing at its own rate.
+ *
+ * The sensors run at the rate of the fastest stream, every stream decimates
+ * the events down to its fps using the sensor timestamps. The On* callbacks
+ * run on the sensor looper thread, a TIMER stream publishes from its own
+ * thread.
+ */
+class ImuStream {
+public:
+    ImuStream(const imu_stream_options_t &options, const std::string &address);
+    ~ImuStream();
+
+    void Start();
+    void Stop();
+
+    /**
+     * Rate the sensors currently run at, the decimation tolerates half of
+     * its period of jitter.
+     */
+    void SetSensorRate(uint16_t hz);
+
+    // sensor looper thread only
+    void OnSensorEvent(const ASensorEvent &event, const imu_data_t &data);
+    void OnSensorEvents(const imu_data_t &data);
+
+    const imu_stream_options_t &Options() const;
+    const std::string &Address() const;
+
+private:
+    bool Due(int64_t timestamp, int64_t &next_ts) const;
+    void AddToBatch(const ASensorEvent &event);
+    void PublishBatch();
+    void PublishData();
+    void Publish(const imu_data_t &sample);
+    size_t Encode(const imu_data_t &sample, uint64_t publish_ts, uint8_t *out, size_t capacity);
+
+    imu_stream_options_t options_;
+    std::string address_;
+    std::unique_ptr<Publisher> publisher_;
+    std::unique_ptr<std::thread> publisher_thread_;
+    std::atomic<bool> is_running_;
+    Rate rate_;
+    int64_t period_ns_;
+    int64_t tolerance_ns_;
+    // consistent copy of the looper's sample, read by the publisher thread
+    TripleBuffer<imu_data_t> snapshot_;
+    // owned by the publishing thread, the looper in ON_SENSOR_EVENT mode
+    ImuEncoder encoder_;
+    // encoded samples are handed to zmq from here without a copy
+    BufferPool *pool_;
+    // sensor timestamps the next decimated event is due at
+    int64_t next_trigger_ts_;
+    int64_t next_gyroscope_ts_;
+    int64_t next_accelerometer_ts_;
+    // BATCH mode only, filled and published on the sensor looper thread
+    uint32_t batch_size_;
+    anx::ImuBatch batch_;
+    std::string batch_payload_;
+};
+
+#endif //ANX_IMU_STREAM_H
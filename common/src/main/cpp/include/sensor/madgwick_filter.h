@@ -0,0 +1,59 @@
+#ifndef ANX_MADGWICK_FILTER_H
+#define ANX_MADGWICK_FILTER_H
+
+#include <cstdint>
+
+/**
+ * Madgwick gradient descent orientation filter with gyroscope bias
+ * estimation, updated on every gyroscope sample.
+ *
+ * The orientation rotates device coordinates into East-North-Up world
+ * coordinates like ASENSOR_TYPE_ROTATION_VECTOR. Without magnetometer the
+ * yaw is relative to the start and drifts slowly.
+ *
+ * S. Madgwick, "An efficient orientation filter for inertial and
+ * inertial/magnetic sensor arrays", 2010.
+ */
+class MadgwickFilter {
+public:
+    /**
+     * @param beta gradient step, trades gyroscope drift against accelerometer noise
+     * @param zeta gyroscope bias gain, 0 disables the bias estimation
+     */
+    explicit MadgwickFilter(double beta = 0.041, double zeta = 0.0015);
+
+    /**
+     * Forgets the orientation and bias, the next updates converge quickly
+     * from the accelerometer (and magnetometer) again.
+     */
+    void Reset();
+
+    /**
+     * @param gyro uncalibrated angular velocity in rad/s
+     * @param accel acceleration in any unit, skipped if zero
+     * @param mag magnetic field in any unit, nullptr or zero to skip
+     * @param dt seconds since the previous update
+     */
+    void Update(const double gyro[3], const double accel[3], const double *mag, double dt);
+
+    /**
+     * x, y, z, w
+     */
+    void Orientation(double out[4]) const;
+
+    /**
+     * Estimated gyroscope bias in rad/s, subtracted from every update.
+     */
+    void GyroBias(double out[3]) const;
+
+private:
+    double beta_;
+    double zeta_;
+    // w, x, y, z, device to north-west-up, the reference frame of the filter
+    double q_[4];
+    double bias_[3];
+    // seconds since Reset, a higher gain converges during the first ones
+    double elapsed_;
+};
+
+#endif //ANX_MADGWICK_FILTER_H
@@ -0,0 +1,101 @@
+#ifndef ANX_SENSOR_ASSET_H
+#define ANX_SENSOR_ASSET_H
+
+#include <android/sensor.h>
+#include <map>
+#include <memory>
+#include <string>
+#include <vector>
+
+#include "NdkSensor.h"
+#include "ipc/ipc_transport.h"
+#include "ipc/buffer_pool.h"
+#include "assets.pb.h"
+
+// what the NDK reports about a sensor, see ASensor_*
+struct sensor_info_t {
+    int type;
+    // published on device_<name>
+    const char *name;
+    // shortest sampling period, 0 for sensors reporting on change
+    int min_delay_us;
+    // events the sensor hub FIFO holds while batching, shared with other sensors
+    int fifo_max_event_count;
+    // part of the FIFO only this sensor uses
+    int fifo_reserved_event_count;
+    int reporting_mode;
+};
+
+/**
+ * One sensor published on its own endpoint as anx::SensorData, every event
+ * being encoded into a BufferPool slot and handed to zmq without a copy.
+ *
+ * Every sensor has its own event queue, so that each runs at its own rate.
+ * Created, started and stopped on the looper thread that receives its events.
+ */
+class SensorStream : public NdkSensorEventListener {
+public:
+    SensorStream(int type, size_t value_count, const std::string &address);
+    ~SensorStream();
+
+    void Start(uint16_t fps, int64_t max_report_latency_us);
+    void Stop();
+
+    // encoded anx::SensorData of the largest sensor
+    static constexpr size_t MAX_SIZE = 128;
+private:
+    void onSensorEvents(ASensorEvent *events, size_t count) override;
+    void Publish(const ASensorEvent &event);
+    size_t Encode(const ASensorEvent &event, uint64_t publish_ts, uint8_t *out, size_t capacity);
+
+    int type_;
+    size_t value_count_;
+    std::string address_;
+    std::unique_ptr<NdkSensorManager> sensor_manager_;
+    std::unique_ptr<Publisher> publisher_;
+    BufferPool *pool_;
+    bool is_running_;
+    // reused for every event, the values are allocated once
+    anx::SensorData message_;
+};
+
+/**
+ * Table driven asset for the sensors that need no processing: every type of
+ * SENSOR_KINDS (sensor_asset.cpp) the device has can be described and
+ * published, one SensorStream per type.
+ *
+ * Start and Stop run on the looper thread that created the asset, Describe
+ * on any thread.
+ */
+class SensorAsset {
+public:
+    SensorAsset() = default;
+    ~SensorAsset();
+
+    /**
+     * The sensors of SENSOR_KINDS the device has, one shot sensors left out.
+     */
+    static std::vector<sensor_info_t> Describe();
+
+    /**
+     * Endpoint name of [type], nullptr if the asset does not publish it.
+     */
+    static const char *Name(int type);
+
+    /**
+     * Starts [type] at [fps] on [address], restarts it with the new options if
+     * it already runs. On change sensors report at most at [fps].
+     * @return false if the device has no such sensor or it is not supported
+     */
+    bool Start(int type, uint16_t fps, int64_t max_report_latency_us,
+               const std::string &address);
+
+    /**
+     * Stops [type], 0 stops every sensor.
+     */
+    void Stop(int type);
+private:
+    std::map<int, std::unique_ptr<SensorStream>> streams_;
+};
+
+#endif //ANX_SENSOR_ASSET_H
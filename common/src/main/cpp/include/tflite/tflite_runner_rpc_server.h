@@ -5,6 +5,9 @@
 #ifndef ANX_TFLITE_RUNNER_RPC_SERVER_H
 #define ANX_TFLITE_RUNNER_RPC_SERVER_H
 
+#include <condition_variable>
+#include <deque>
+#include <mutex>
 #include <thread>
 #include <vector>
 
@@ -15,14 +18,21 @@
 #include "zmq/zmq.hpp"
 #include "zmq/zmq_addon.hpp"
 
+#include "ipc/reactor.h"
+#include "ipc/zmq_context.h"
+
 #include "utils.h"
 
 #define LOAD_MODEL_RPC "LoadModel"
 #define INVOKE_MODEL_RPC "InvokeModel"
 #define UNLOAD_MODEL_RPC "UnloadModel"
 
-#define TIMEOUT_IN_MS 100
-
+/**
+ * Serves model RPCs on [address]. Requests are received on the shared native
+ * Reactor thread and run on a thread owned by the server, so every delegate
+ * stays on a single thread and a model invocation never holds up the reactor
+ * or another delegate. Replies are sent back from the reactor thread.
+ */
 class TfLiteRunnerRpcServer {
 public:
     TfLiteRunnerRpcServer(
@@ -31,15 +41,25 @@ public:
     ~TfLiteRunnerRpcServer();
     void Start();
 private:
+    struct request_t {
+        std::string rpc_name;
+        std::string payload;
+    };
+
+    void ReceiveRequest();
     void Loop();
+    std::vector<std::string> HandleRequest(const request_t &request);
+    void SendReply(std::vector<std::string> reply);
     void UnloadModel();
-    zmq::context_t ctx_;
     zmq::socket_t socket_;
-    zmq::pollitem_t poll_;
 
-    std::unique_ptr<std::thread> server_thread_;
     std::vector<TfliteRunner> tflite_runners_;
 
+    std::mutex mutex_;
+    std::condition_variable requests_cv_;
+    std::deque<request_t> requests_;
+    std::unique_ptr<std::thread> server_thread_;
+
     bool is_running_;
     TfliteRunner::DelegateType delegate_;
 };
@@ -0,0 +1,68 @@
+#ifndef ANX_TRIPLE_BUFFER_H
+#define ANX_TRIPLE_BUFFER_H
+
+#include <atomic>
+#include <cstdint>
+#include <type_traits>
+
+/**
+ * Wait-free handoff of the latest value from one writer thread to one
+ * reader thread.
+ *
+ * The writer fills a back buffer and swaps it with the middle one, the
+ * reader swaps the middle buffer with its front buffer only when a new
+ * value was written. Neither side ever waits or retries, and the reader
+ * always sees a value that was completely written.
+ */
+template<typename T>
+class TripleBuffer {
+    static_assert(std::is_trivially_copyable<T>::value,
+                  "TripleBuffer copies values with plain assignments");
+public:
+    TripleBuffer()
+            : buffers_{},
+              middle_(1),
+              back_(0),
+              front_(2) {}
+
+    /**
+     * Publishes [value], only called from the writer thread.
+     * */
+    void Write(const T &value) {
+        buffers_[back_] = value;
+        back_ = middle_.exchange(back_ | DIRTY_BIT, std::memory_order_acq_rel) & INDEX_MASK;
+    }
+
+    /**
+     * Returns the latest written value, only called from the reader thread.
+     * The reference stays valid until the next call to Read.
+     * */
+    const T &Read() {
+        if (middle_.load(std::memory_order_relaxed) & DIRTY_BIT) {
+            front_ = middle_.exchange(front_, std::memory_order_acq_rel) & INDEX_MASK;
+        }
+        return buffers_[front_];
+    }
+
+    /**
+     * True if a value was written since the last Read.
+     * */
+    bool HasNew() const {
+        return middle_.load(std::memory_order_relaxed) & DIRTY_BIT;
+    }
+
+private:
+    static constexpr uint8_t INDEX_MASK = 0x3;
+    static constexpr uint8_t DIRTY_BIT = 0x4;
+
+    T buffers_[3];
+    // index of the middle buffer, with DIRTY_BIT set while it holds a value
+    // the reader has not taken yet
+    std::atomic<uint8_t> middle_;
+    // writer only
+    uint8_t back_;
+    // reader only
+    uint8_t front_;
+};
+
+#endif //ANX_TRIPLE_BUFFER_H
@@ -6,6 +6,8 @@
 #define ANX_UTILS_H
 
 #include <android/log.h>
+#include <cstdint>
+#include <ctime>
 #include "rate.h"
 
 #define  LOGE(LOG_TAG, ...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
@@ -13,5 +15,11 @@
 #define  LOGD(LOG_TAG, ...)  __android_log_print(ANDROID_LOG_DEBUG,LOG_TAG,__VA_ARGS__)
 #define  LOGI(LOG_TAG, ...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 
+// nanoseconds on CLOCK_BOOTTIME, the clock of the sensor event timestamps
+static inline uint64_t BootTimeNs() {
+    timespec now{};
+    clock_gettime(CLOCK_BOOTTIME, &now);
+    return (uint64_t) now.tv_sec * 1000000000ULL + now.tv_nsec;
+}
 
 #endif //ANX_UTILS_H
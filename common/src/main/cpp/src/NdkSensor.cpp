@@ -1,6 +1,7 @@
 
 #include <android/log.h>
 #include <sensor/NdkSensor.h>
+#include <dlfcn.h>
 
 #include "utils.h"
 
@@ -8,12 +9,17 @@
 
 const int kLooperId = 3;
 
+// ASensorEventQueue_registerSensor is only available from API 26
+typedef int (*register_sensor_fn)(ASensorEventQueue *, ASensor const *, int32_t, int64_t);
+
 /** data can be passed from ASensorManager_createEventQueue() */
 static int onSensorChanged(int fd, int events, void *data) {
     auto *mSensorManager = (NdkSensorManager *) data;
-    ASensorEvent event;
-    while (ASensorEventQueue_getEvents(mSensorManager->_sensorEventQueue, &event, 1) > 0) {
-        mSensorManager->_listener->onSensorChanged(&event);
+    ssize_t count;
+    while ((count = ASensorEventQueue_getEvents(mSensorManager->_sensorEventQueue,
+                                                mSensorManager->_events,
+                                                NdkSensorManager::EVENT_CHUNK_SIZE)) > 0) {
+        mSensorManager->_listener->onSensorEvents(mSensorManager->_events, count);
     }
     return 1;
 }
@@ -23,18 +29,30 @@ NdkSensorManager::NdkSensorManager() {
     _ndkSensorLooper = ALooper_forThread();
 }
 
-void NdkSensorManager::registerSensor(const vector<int> &sensorIDs, int32_t usec) {
+void NdkSensorManager::registerSensor(const vector<int> &sensorIDs, int32_t usec,
+                                      int64_t max_report_latency_us) {
     _sensorEventQueue = ASensorManager_createEventQueue(_sensorManager, _ndkSensorLooper, kLooperId,
                                                         onSensorChanged, this);
+    auto register_sensor = max_report_latency_us > 0
+            ? (register_sensor_fn) dlsym(RTLD_DEFAULT, "ASensorEventQueue_registerSensor")
+            : nullptr;
+    if (max_report_latency_us > 0 && register_sensor == nullptr) {
+        LOGW(TAG, "Sensor batching needs API 26, events are delivered unbatched");
+    }
     for (auto type: sensorIDs) {
         auto *sensor = const_cast<ASensor *>(ASensorManager_getDefaultSensor(_sensorManager, type));
         if (sensor != nullptr) {
-            auto status = ASensorEventQueue_enableSensor(_sensorEventQueue, sensor);
-            assert(status >= 0);
-            status = ASensorEventQueue_setEventRate(_sensorEventQueue, sensor, usec);
-            assert(status >= 0);
+            if (register_sensor != nullptr) {
+                auto status = register_sensor(_sensorEventQueue, sensor, usec, max_report_latency_us);
+                assert(status >= 0);
+            } else {
+                auto status = ASensorEventQueue_enableSensor(_sensorEventQueue, sensor);
+                assert(status >= 0);
+                status = ASensorEventQueue_setEventRate(_sensorEventQueue, sensor, usec);
+                assert(status >= 0);
+            }
             enable_sensor.emplace_back(type, sensor);
-            LOGI(TAG, "Register: %d", type);
+            LOGI(TAG, "Register: %d, fifo max %d events", type, ASensor_getFifoMaxEventCount(sensor));
         } else {
             LOGI(TAG, "Sensor id : %d == null", type);
         }
@@ -50,5 +68,10 @@ void NdkSensorManager::unregister() {
         }
     }
     enable_sensor.clear();
+    // registerSensor creates a new queue every time
+    if (_sensorEventQueue != nullptr) {
+        ASensorManager_destroyEventQueue(_sensorManager, _sensorEventQueue);
+        _sensorEventQueue = nullptr;
+    }
 }
 
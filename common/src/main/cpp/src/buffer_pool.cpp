@@ -0,0 +1,77 @@
+#include "ipc/buffer_pool.h"
+
+BufferPool::BufferPool(size_t count, size_t capacity)
+        : count_(count),
+          capacity_(capacity),
+          memory_(new BYTE[count * capacity]),
+          slots_(new slot_t[count]),
+          next_(0),
+          refs_(1) {
+    for (size_t i = 0; i < count_; i++) {
+        slots_[i].pool = this;
+        slots_[i].data = memory_.get() + i * capacity_;
+        slots_[i].state.store(FREE, std::memory_order_relaxed);
+    }
+}
+
+BufferPool::~BufferPool() = default;
+
+int32_t BufferPool::Acquire() {
+    uint32_t start = next_.fetch_add(1, std::memory_order_relaxed);
+    for (size_t i = 0; i < count_; i++) {
+        size_t index = (start + i) % count_;
+        uint8_t expected = FREE;
+        if (slots_[index].state.compare_exchange_strong(
+                expected, ACQUIRED, std::memory_order_acquire)) {
+            return (int32_t) index;
+        }
+    }
+    return -1;
+}
+
+void BufferPool::Release(int32_t index) {
+    if (index < 0 || (size_t) index >= count_) return;
+    uint8_t expected = ACQUIRED;
+    slots_[index].state.compare_exchange_strong(
+            expected, FREE, std::memory_order_release);
+}
+
+BufferPool::slot_t *BufferPool::BeginSend(int32_t index) {
+    if (index < 0 || (size_t) index >= count_) return nullptr;
+    uint8_t expected = ACQUIRED;
+    if (!slots_[index].state.compare_exchange_strong(
+            expected, IN_FLIGHT, std::memory_order_acq_rel)) {
+        return nullptr;
+    }
+    refs_.fetch_add(1, std::memory_order_relaxed);
+    return &slots_[index];
+}
+
+void BufferPool::Destroy() {
+    Unref();
+}
+
+BYTE *BufferPool::Data(int32_t index) {
+    return slots_[index].data;
+}
+
+size_t BufferPool::Count() const {
+    return count_;
+}
+
+size_t BufferPool::Capacity() const {
+    return capacity_;
+}
+
+void BufferPool::OnMessageFreed(void *data, void *hint) {
+    auto *slot = static_cast<slot_t *>(hint);
+    BufferPool *pool = slot->pool;
+    slot->state.store(FREE, std::memory_order_release);
+    pool->Unref();
+}
+
+void BufferPool::Unref() {
+    if (refs_.fetch_sub(1, std::memory_order_acq_rel) == 1) {
+        delete this;
+    }
+}
@@ -4,55 +4,206 @@
 
 #include "sensor/imu.h"
 
+#include <algorithm>
+
 #define TAG "NativeImu"
 
+// longer gaps between gyroscope samples, e.g. after a registration, are not integrated
+#define MAX_FUSION_INTERVAL_NS 100000000LL
 
-Imu::Imu(uint16_t fps, const std::string &address) : rate_(fps) {
+Imu::Imu()
+        : sensor_fps_(0),
+          sensor_batch_only_(false),
+          sensor_latency_us_(0),
+          fusion_enabled_(false),
+          fusion_use_magnetometer_(false),
+          fusion_ts_(0) {
     try {
         sensor_manager_ = std::make_unique<NdkSensorManager>();
         sensor_manager_->setListener(this);
-
-        this->is_running_ = false;
-        this->fps_ = fps;
-        this->publisher = std::make_unique<Publisher>(address);
-
-        LOGI(TAG, "Created IMU publisher on %s at a rate of %d hz", address.c_str(), fps);
     } catch (std::exception &e) {
         LOGE(TAG, "Error in creating IMU : %s", e.what());
     }
 }
 
 Imu::~Imu() {
+    stop();
     google::protobuf::ShutdownProtobufLibrary();
 }
 
-void Imu::start() {
-    int32_t delay_in_u_secs = 1000000 / fps_;
-    sensor_manager_->registerSensor(
-            {ASENSOR_TYPE_ACCELEROMETER,
-             ASENSOR_TYPE_GYROSCOPE,
-             ASENSOR_TYPE_ROTATION_VECTOR,
-             ASENSOR_TYPE_ACCELEROMETER_UNCALIBRATED,
-             ASENSOR_TYPE_GYROSCOPE_UNCALIBRATED,
-             ASENSOR_TYPE_MAGNETIC_FIELD_UNCALIBRATED}, delay_in_u_secs);
-    this->is_running_ = true;
-    this->publisher_thread = std::make_unique<thread>(&Imu::publishData, this);
+bool Imu::startStream(const imu_stream_options_t &options,
+                      const std::string &address,
+                      const std::string &legacy_address) {
+    if (options.fps == 0) {
+        LOGE(TAG, "Can not start an IMU stream at 0 hz");
+        return false;
+    }
+    auto it = this->streams_.find(options.fps);
+    if (it != this->streams_.end()) {
+        it->second.refs++;
+        const imu_stream_options_t &running = it->second.stream->Options();
+        if (running.mode != options.mode || running.encoding != options.encoding) {
+            LOGW(TAG, "IMU stream at %d hz already runs with other options, keeping them",
+                 options.fps);
+        }
+        LOGI(TAG, "IMU stream at %d hz now has %d clients", options.fps, it->second.refs);
+    } else {
+        stream_entry_t entry;
+        entry.stream = std::make_unique<ImuStream>(options, address);
+        entry.refs = 1;
+        it = this->streams_.emplace(options.fps, std::move(entry)).first;
+    }
+
+    if (!legacy_address.empty()) {
+        // a stream keeps its options while it runs, so one at the same rate is the same stream
+        const imu_stream_options_t &mirrored = it->second.stream->Options();
+        if (this->legacy_stream_ == nullptr
+            || this->legacy_stream_->Options().fps != mirrored.fps
+            || this->legacy_stream_->Address() != legacy_address) {
+            // the previous legacy stream has to release the endpoint first
+            this->legacy_stream_ = nullptr;
+            this->legacy_stream_ = std::make_unique<ImuStream>(mirrored, legacy_address);
+        }
+    }
+
+    updateRegistration();
+    it->second.stream->Start();
+    if (this->legacy_stream_ != nullptr) {
+        this->legacy_stream_->Start();
+    }
+    return true;
+}
+
+void Imu::stopStream(uint16_t fps) {
+    if (fps == 0) {
+        this->streams_.clear();
+        this->legacy_stream_ = nullptr;
+        updateRegistration();
+        return;
+    }
+    auto it = this->streams_.find(fps);
+    if (it == this->streams_.end()) {
+        LOGW(TAG, "No IMU stream at %d hz to stop", fps);
+        return;
+    }
+    if (--it->second.refs > 0) {
+        LOGI(TAG, "IMU stream at %d hz still has %d clients", fps, it->second.refs);
+        return;
+    }
+    this->streams_.erase(it);
+    if (this->legacy_stream_ != nullptr && this->legacy_stream_->Options().fps == fps) {
+        this->legacy_stream_ = nullptr;
+    }
+    updateRegistration();
+}
+
+void Imu::stop() {
+    stopStream(0);
+}
+
+void Imu::updateRegistration() {
+    std::vector<const imu_stream_options_t *> running;
+    for (auto &it : this->streams_) {
+        running.push_back(&it.second.stream->Options());
+    }
+    if (this->legacy_stream_ != nullptr) {
+        running.push_back(&this->legacy_stream_->Options());
+    }
+
+    uint16_t fps = 0;
+    bool batch_only = true;
+    int64_t latency_us = INT64_MAX;
+    for (const imu_stream_options_t *options_ptr : running) {
+        const imu_stream_options_t &options = *options_ptr;
+        fps = std::max(fps, options.fps);
+        if (options.mode == ImuPublishMode::BATCH) {
+            latency_us = std::min(latency_us, options.max_batch_latency_us);
+        } else {
+            batch_only = false;
+        }
+    }
+    // sensor hub batching would delay the streams that publish per sample
+    if (!batch_only || fps == 0) {
+        latency_us = 0;
+    }
+
+    bool fusion = false;
+    bool fusion_use_magnetometer = false;
+    for (const imu_stream_options_t *options : running) {
+        if (options->mode == ImuPublishMode::BATCH) continue;
+        fusion |= options->orientation_source != ImuOrientationSource::ROTATION_VECTOR;
+        fusion_use_magnetometer |=
+                options->orientation_source == ImuOrientationSource::FUSION_WITH_MAGNETOMETER;
+    }
+    if (fusion && (!this->fusion_enabled_ || fusion_use_magnetometer != this->fusion_use_magnetometer_)) {
+        this->fusion_.Reset();
+        this->fusion_ts_ = 0;
+        LOGI(TAG, "IMU fusion enabled %s magnetometer", fusion_use_magnetometer ? "with" : "without");
+    }
+    this->fusion_enabled_ = fusion;
+    this->fusion_use_magnetometer_ = fusion_use_magnetometer;
+
+    // a stream created without a change in registration still needs the rate
+    for (auto &it : this->streams_) {
+        it.second.stream->SetSensorRate(fps);
+    }
+    if (this->legacy_stream_ != nullptr) {
+        this->legacy_stream_->SetSensorRate(fps);
+    }
+
+    if (fps == this->sensor_fps_
+        && batch_only == this->sensor_batch_only_
+        && latency_us == this->sensor_latency_us_) {
+        return;
+    }
+
+    if (this->sensor_fps_ != 0) {
+        sensor_manager_->unregister();
+    }
+    this->sensor_fps_ = fps;
+    this->sensor_batch_only_ = batch_only;
+    this->sensor_latency_us_ = latency_us;
+    if (fps == 0) {
+        LOGI(TAG, "Unregistered IMU sensors");
+        return;
+    }
+
+    int32_t delay_in_u_secs = 1000000 / fps;
+    if (batch_only) {
+        // the sensor hub holds samples up to the latency, they are drained
+        // in chunks instead of waking the looper for every event
+        sensor_manager_->registerSensor(
+                {ASENSOR_TYPE_ACCELEROMETER,
+                 ASENSOR_TYPE_GYROSCOPE}, delay_in_u_secs, latency_us);
+    } else {
+        sensor_manager_->registerSensor(
+                {ASENSOR_TYPE_ACCELEROMETER,
+                 ASENSOR_TYPE_GYROSCOPE,
+                 ASENSOR_TYPE_ROTATION_VECTOR,
+                 ASENSOR_TYPE_ACCELEROMETER_UNCALIBRATED,
+                 ASENSOR_TYPE_GYROSCOPE_UNCALIBRATED,
+                 ASENSOR_TYPE_MAGNETIC_FIELD_UNCALIBRATED}, delay_in_u_secs);
+    }
+    LOGI(TAG, "Registered IMU sensors at %d hz for %zu streams", fps, this->streams_.size());
 }
 
 void Imu::onSensorChanged(ASensorEvent *event) {
     if (event->type == ASENSOR_TYPE_ACCELEROMETER) {
+        this->data_.filtered.acceleration_ts = event->timestamp;
         this->data_.filtered.acceleration[0] = event->data[0];
         this->data_.filtered.acceleration[1] = event->data[1];
         this->data_.filtered.acceleration[2] = event->data[2];
     }
 
     if (event->type == ASENSOR_TYPE_GYROSCOPE) {
+        this->data_.filtered.angular_velocity_ts = event->timestamp;
         this->data_.filtered.angular_velocity[0] = event->data[0];
         this->data_.filtered.angular_velocity[1] = event->data[1];
         this->data_.filtered.angular_velocity[2] = event->data[2];
     }
 
     if (event->type == ASENSOR_TYPE_ROTATION_VECTOR) {
+        this->data_.filtered.orientation_ts = event->timestamp;
         this->data_.filtered.orientation[0] = event->data[0];
         this->data_.filtered.orientation[1] = event->data[1];
         this->data_.filtered.orientation[2] = event->data[2];
@@ -60,85 +211,85 @@ void Imu::onSensorChanged(ASensorEvent *event) {
     }
 
     if (event->type == ASENSOR_TYPE_ACCELEROMETER_UNCALIBRATED) {
+        this->data_.raw.acceleration_ts = event->timestamp;
         this->data_.raw.acceleration[0] = event->data[0];
         this->data_.raw.acceleration[1] = event->data[1];
         this->data_.raw.acceleration[2] = event->data[2];
     }
 
     if (event->type == ASENSOR_TYPE_GYROSCOPE_UNCALIBRATED) {
+        this->data_.raw.angular_velocity_ts = event->timestamp;
         this->data_.raw.angular_velocity[0] = event->data[0];
         this->data_.raw.angular_velocity[1] = event->data[1];
         this->data_.raw.angular_velocity[2] = event->data[2];
+        if (this->fusion_enabled_) {
+            updateFusion(*event);
+        }
     }
 
     if (event->type == ASENSOR_TYPE_MAGNETIC_FIELD_UNCALIBRATED) {
+        this->data_.raw.magnetic_field_ts = event->timestamp;
         this->data_.raw.magnetic_field_u_tesla[0] = event->data[0];
         this->data_.raw.magnetic_field_u_tesla[1] = event->data[1];
         this->data_.raw.magnetic_field_u_tesla[2] = event->data[2];
+        // data[3..5] is the hard iron bias the platform estimated
+        this->magnetic_field_u_tesla_[0] = event->data[0] - event->data[3];
+        this->magnetic_field_u_tesla_[1] = event->data[1] - event->data[4];
+        this->magnetic_field_u_tesla_[2] = event->data[2] - event->data[5];
     }
 }
 
-void Imu::stop() {
-    sensor_manager_->unregister();
-    this->is_running_ = false;
-    this->publisher_thread->join();
+void Imu::updateFusion(const ASensorEvent &event) {
+    // the filter starts with the second sample, once the interval is known
+    int64_t dt_ns = event.timestamp - this->fusion_ts_;
+    this->fusion_ts_ = event.timestamp;
+    if (dt_ns <= 0 || dt_ns > MAX_FUSION_INTERVAL_NS) {
+        return;
+    }
+    this->fusion_.Update(this->data_.raw.angular_velocity,
+                         this->data_.filtered.acceleration,
+                         this->fusion_use_magnetometer_ ? this->magnetic_field_u_tesla_ : nullptr,
+                         dt_ns * 1e-9);
+    this->fusion_.Orientation(this->data_.filtered.fused_orientation);
+    this->fusion_.GyroBias(this->data_.filtered.gyro_bias);
+    this->data_.filtered.fused_orientation_ts = event.timestamp;
 }
 
-void Imu::publishData() {
-    while (is_running_) {
-        try {
-            // send data over zmq
-            anx::ImuData data;
-            data.mutable_raw()->mutable_acceleration()->set_x(
-                    this->data_.raw.acceleration[0]);
-            data.mutable_raw()->mutable_acceleration()->set_y(
-                    this->data_.raw.acceleration[1]);
-            data.mutable_raw()->mutable_acceleration()->set_z(
-                    this->data_.raw.acceleration[2]);
-
-            data.mutable_raw()->mutable_angular_velocity()->set_x(
-                    this->data_.raw.angular_velocity[0]);
-            data.mutable_raw()->mutable_angular_velocity()->set_y(
-                    this->data_.raw.angular_velocity[1]);
-            data.mutable_raw()->mutable_angular_velocity()->set_z(
-                    this->data_.raw.angular_velocity[2]);
-
-            data.mutable_raw()->mutable_magnetic_field_in_micro_tesla()->set_x(
-                    this->data_.raw.magnetic_field_u_tesla[0]);
-            data.mutable_raw()->mutable_magnetic_field_in_micro_tesla()->set_y(
-                    this->data_.raw.magnetic_field_u_tesla[1]);
-            data.mutable_raw()->mutable_magnetic_field_in_micro_tesla()->set_z(
-                    this->data_.raw.magnetic_field_u_tesla[2]);
-
-            data.mutable_filtered()->mutable_acceleration()->set_x(
-                    this->data_.filtered.acceleration[0]);
-            data.mutable_filtered()->mutable_acceleration()->set_y(
-                    this->data_.filtered.acceleration[1]);
-            data.mutable_filtered()->mutable_acceleration()->set_z(
-                    this->data_.filtered.acceleration[2]);
-
-            data.mutable_filtered()->mutable_angular_velocity()->set_x(
-                    this->data_.filtered.angular_velocity[0]);
-            data.mutable_filtered()->mutable_angular_velocity()->set_y(
-                    this->data_.filtered.angular_velocity[1]);
-            data.mutable_filtered()->mutable_angular_velocity()->set_z(
-                    this->data_.filtered.angular_velocity[2]);
-
-            data.mutable_filtered()->mutable_orientation()->set_x(
-                    this->data_.filtered.orientation[0]);
-            data.mutable_filtered()->mutable_orientation()->set_y(
-                    this->data_.filtered.orientation[1]);
-            data.mutable_filtered()->mutable_orientation()->set_z(
-                    this->data_.filtered.orientation[2]);
-            data.mutable_filtered()->mutable_orientation()->set_w(
-                    this->data_.filtered.orientation[3]);
-
-            std::string payload;
-            data.SerializeToString(&payload);
-            publisher->SendData(payload);
-            rate_.sleep();
-        } catch (std::exception &e) {
-            LOGE(TAG, "Error in publishing : %s", e.what());
+void Imu::onSensorEvents(ASensorEvent *events, size_t count) {
+    for (size_t i = 0; i < count; i++) {
+        onSensorChanged(&events[i]);
+        if (events[i].type == ASENSOR_TYPE_GYROSCOPE) {
+            this->history_.Write(events[i].timestamp, this->data_);
         }
+        for (auto &it : this->streams_) {
+            it.second.stream->OnSensorEvent(events[i], this->data_);
+        }
+        if (this->legacy_stream_ != nullptr) {
+            this->legacy_stream_->OnSensorEvent(events[i], this->data_);
+        }
+    }
+
+    for (auto &it : this->streams_) {
+        it.second.stream->OnSensorEvents(this->data_);
+    }
+    if (this->legacy_stream_ != nullptr) {
+        this->legacy_stream_->OnSensorEvents(this->data_);
+    }
+}
+
+size_t Imu::readHistory(int64_t since_ns, size_t max_samples, bool fused_orientation,
+                        std::vector<uint8_t> &out) const {
+    if (max_samples == 0 || max_samples > IMU_HISTORY_SIZE) {
+        max_samples = IMU_HISTORY_SIZE;
+    }
+    std::vector<imu_data_t> samples(max_samples);
+    size_t count = this->history_.Read(since_ns, max_samples, samples.data());
+    uint64_t publish_ts = BootTimeNs();
+    size_t offset = out.size();
+    out.resize(offset + count * IMU_PACKED_SIZE);
+    for (size_t i = 0; i < count; i++) {
+        ImuEncoder::EncodePacked(samples[i], publish_ts, fused_orientation,
+                                 out.data() + offset + i * IMU_PACKED_SIZE, IMU_PACKED_SIZE);
     }
+    return count;
 }
@@ -0,0 +1,109 @@
+#include "sensor/imu_encoder.h"
+
+#include <cstring>
+
+static inline void SetVector3(anx::Vector3 *vector, const double values[3]) {
+    vector->set_x(values[0]);
+    vector->set_y(values[1]);
+    vector->set_z(values[2]);
+}
+
+static inline void CopyFloats(float *out, const double *values, size_t count) {
+    for (size_t i = 0; i < count; i++) {
+        out[i] = (float) values[i];
+    }
+}
+
+ImuEncoder::ImuEncoder(bool fused_orientation)
+        : fused_orientation_(fused_orientation) {
+    this->raw_ = this->message_.mutable_raw();
+    this->filtered_ = this->message_.mutable_filtered();
+    // allocates every sub-message up front
+    this->raw_->mutable_acceleration();
+    this->raw_->mutable_angular_velocity();
+    this->raw_->mutable_magnetic_field_in_micro_tesla();
+    this->filtered_->mutable_acceleration();
+    this->filtered_->mutable_angular_velocity();
+    this->filtered_->mutable_orientation();
+    if (fused_orientation) {
+        this->filtered_->mutable_gyro_bias();
+    }
+}
+
+size_t ImuEncoder::Encode(const imu_data_t &sample, uint64_t publish_ts_ns,
+                          uint8_t *out, size_t capacity) {
+    SetVector3(this->raw_->mutable_acceleration(), sample.raw.acceleration);
+    SetVector3(this->raw_->mutable_angular_velocity(), sample.raw.angular_velocity);
+    SetVector3(this->raw_->mutable_magnetic_field_in_micro_tesla(),
+               sample.raw.magnetic_field_u_tesla);
+
+    SetVector3(this->filtered_->mutable_acceleration(), sample.filtered.acceleration);
+    SetVector3(this->filtered_->mutable_angular_velocity(), sample.filtered.angular_velocity);
+    const double *q = this->fused_orientation_
+                      ? sample.filtered.fused_orientation
+                      : sample.filtered.orientation;
+    anx::Quaternion *orientation = this->filtered_->mutable_orientation();
+    orientation->set_x(q[0]);
+    orientation->set_y(q[1]);
+    orientation->set_z(q[2]);
+    orientation->set_w(q[3]);
+    if (this->fused_orientation_) {
+        SetVector3(this->filtered_->mutable_gyro_bias(), sample.filtered.gyro_bias);
+    }
+
+    this->raw_->set_acceleration_timestamp_ns(sample.raw.acceleration_ts);
+    this->raw_->set_angular_velocity_timestamp_ns(sample.raw.angular_velocity_ts);
+    this->raw_->set_magnetic_field_timestamp_ns(sample.raw.magnetic_field_ts);
+    this->filtered_->set_acceleration_timestamp_ns(sample.filtered.acceleration_ts);
+    this->filtered_->set_angular_velocity_timestamp_ns(sample.filtered.angular_velocity_ts);
+    this->filtered_->set_orientation_timestamp_ns(
+            this->fused_orientation_ ? sample.filtered.fused_orientation_ts
+                                     : sample.filtered.orientation_ts);
+
+    this->message_.set_publish_timestamp_ns(publish_ts_ns);
+
+    // computes and caches the sizes once, SerializeToArray would do it again
+    size_t size = this->message_.ByteSizeLong();
+    if (size > capacity) {
+        return 0;
+    }
+    this->message_.SerializeWithCachedSizesToArray(out);
+    return size;
+}
+
+size_t ImuEncoder::EncodePacked(const imu_data_t &sample, uint64_t publish_ts_ns,
+                                bool fused_orientation, uint8_t *out, size_t capacity) {
+    if (capacity < IMU_PACKED_SIZE) {
+        return 0;
+    }
+    imu_packed_t packed;
+    packed.magic = IMU_PACKED_MAGIC;
+    packed.version = IMU_PACKED_VERSION;
+    packed.size = IMU_PACKED_SIZE;
+    packed.publish_ts = publish_ts_ns;
+
+    packed.timestamps[0] = sample.raw.acceleration_ts;
+    packed.timestamps[1] = sample.raw.angular_velocity_ts;
+    packed.timestamps[2] = sample.raw.magnetic_field_ts;
+    packed.timestamps[3] = sample.filtered.acceleration_ts;
+    packed.timestamps[4] = sample.filtered.angular_velocity_ts;
+    packed.timestamps[5] = fused_orientation
+                           ? sample.filtered.fused_orientation_ts
+                           : sample.filtered.orientation_ts;
+
+    CopyFloats(packed.raw_acceleration, sample.raw.acceleration, 3);
+    CopyFloats(packed.raw_angular_velocity, sample.raw.angular_velocity, 3);
+    CopyFloats(packed.raw_magnetic_field_u_tesla, sample.raw.magnetic_field_u_tesla, 3);
+    CopyFloats(packed.filtered_acceleration, sample.filtered.acceleration, 3);
+    CopyFloats(packed.filtered_angular_velocity, sample.filtered.angular_velocity, 3);
+    CopyFloats(packed.orientation,
+               fused_orientation ? sample.filtered.fused_orientation : sample.filtered.orientation,
+               4);
+
+    memcpy(out, &packed, IMU_PACKED_SIZE);
+    return IMU_PACKED_SIZE;
+}
+
+bool ImuEncoder::FusedOrientation() const {
+    return this->fused_orientation_;
+}
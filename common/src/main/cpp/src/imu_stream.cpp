@@ -0,0 +1,206 @@
+#include "sensor/imu_stream.h"
+
+#include <algorithm>
+#include <ctime>
+
+#include "utils.h"
+
+#define TAG "NativeImuStream"
+
+// default rate of ImuBatch messages when no batch size is given
+#define BATCH_RATE_HZ 50
+// a slot is busy until libzmq wrote the sample to every subscriber
+#define POOL_SLOT_COUNT 16
+
+#define NS_PER_SEC 1000000000LL
+
+ImuStream::ImuStream(const imu_stream_options_t &options, const std::string &address)
+        : options_(options),
+          address_(address),
+          is_running_(false),
+          rate_(options.fps),
+          period_ns_(NS_PER_SEC / std::max<uint16_t>(options.fps, 1)),
+          tolerance_ns_(0),
+          encoder_(options.orientation_source != ImuOrientationSource::ROTATION_VECTOR),
+          pool_(new BufferPool(POOL_SLOT_COUNT, ImuEncoder::MAX_SIZE)),
+          next_trigger_ts_(0),
+          next_gyroscope_ts_(0),
+          next_accelerometer_ts_(0),
+          batch_size_(options.batch_size > 0
+                      ? options.batch_size
+                      : std::max(1, options.fps / BATCH_RATE_HZ)) {
+    try {
+        // conflating here would not keep a lagging subscriber on the latest
+        // sample, the backlog builds up in its own receive queue. Control
+        // loops set ZMQ_CONFLATE on their subscriber instead.
+        this->publisher_ = std::make_unique<Publisher>(address);
+
+        if (options.mode == ImuPublishMode::BATCH) {
+            LOGI(TAG, "Created IMU publisher on %s at a rate of %d hz, %u samples per batch",
+                 address.c_str(), options.fps, this->batch_size_);
+        } else {
+            LOGI(TAG, "Created IMU publisher on %s at a rate of %d hz, %s, %s", address.c_str(),
+                 options.fps,
+                 options.mode == ImuPublishMode::TIMER ? "timer driven" : "sensor event driven",
+                 options.encoding == ImuEncoding::PACKED_F32 ? "packed" : "protobuf");
+        }
+    } catch (std::exception &e) {
+        LOGE(TAG, "Error in creating IMU stream : %s", e.what());
+    }
+}
+
+ImuStream::~ImuStream() {
+    Stop();
+    // in-flight slots keep the memory alive until libzmq releases them
+    this->pool_->Destroy();
+}
+
+void ImuStream::Start() {
+    if (this->is_running_) {
+        return;
+    }
+    this->batch_.Clear();
+    this->is_running_ = true;
+    if (this->options_.mode == ImuPublishMode::TIMER) {
+        this->rate_.reset();
+        this->publisher_thread_ = std::make_unique<std::thread>(&ImuStream::PublishData, this);
+    }
+}
+
+void ImuStream::Stop() {
+    this->is_running_ = false;
+    if (this->publisher_thread_ != nullptr) {
+        this->publisher_thread_->join();
+        this->publisher_thread_ = nullptr;
+
+        rate_stats_t stats = this->rate_.Stats();
+        LOGI(TAG, "%s published %llu cycles, %llu overruns, %llu missed, wakeup latency mean %lld us max %lld us",
+             this->address_.c_str(),
+             (unsigned long long) stats.cycles,
+             (unsigned long long) stats.overruns,
+             (unsigned long long) stats.missed,
+             (long long) stats.mean_wakeup_latency_ns / 1000,
+             (long long) stats.max_wakeup_latency_ns / 1000);
+    }
+}
+
+void ImuStream::SetSensorRate(uint16_t hz) {
+    this->tolerance_ns_ = NS_PER_SEC / std::max<uint16_t>(hz, 1) / 2;
+}
+
+bool ImuStream::Due(int64_t timestamp, int64_t &next_ts) const {
+    if (timestamp + this->tolerance_ns_ < next_ts) {
+        return false;
+    }
+    next_ts += this->period_ns_;
+    // resynchronizes after a gap instead of publishing a burst
+    if (next_ts + this->tolerance_ns_ <= timestamp) {
+        next_ts = timestamp + this->period_ns_;
+    }
+    return true;
+}
+
+void ImuStream::OnSensorEvent(const ASensorEvent &event, const imu_data_t &data) {
+    if (!this->is_running_) {
+        return;
+    }
+    if (this->options_.mode == ImuPublishMode::BATCH) {
+        AddToBatch(event);
+        return;
+    }
+    // published from the sensor looper thread, as soon as the sample exists
+    if (this->options_.mode == ImuPublishMode::ON_SENSOR_EVENT
+        && event.type == this->options_.trigger_sensor
+        && Due(event.timestamp, this->next_trigger_ts_)) {
+        try {
+            Publish(data);
+        } catch (std::exception &e) {
+            LOGE(TAG, "Error in publishing : %s", e.what());
+        }
+    }
+}
+
+void ImuStream::OnSensorEvents(const imu_data_t &data) {
+    if (this->options_.mode == ImuPublishMode::TIMER) {
+        // hands a complete sample to the publisher thread without waiting on it
+        this->snapshot_.Write(data);
+    }
+}
+
+void ImuStream::AddToBatch(const ASensorEvent &event) {
+    anx::ImuBatch::Sample *sample;
+    if (event.type == ASENSOR_TYPE_GYROSCOPE && Due(event.timestamp, this->next_gyroscope_ts_)) {
+        sample = this->batch_.add_angular_velocity();
+    } else if (event.type == ASENSOR_TYPE_ACCELEROMETER
+               && Due(event.timestamp, this->next_accelerometer_ts_)) {
+        sample = this->batch_.add_acceleration();
+    } else {
+        return;
+    }
+    sample->set_timestamp_ns(event.timestamp);
+    sample->mutable_value()->set_x(event.data[0]);
+    sample->mutable_value()->set_y(event.data[1]);
+    sample->mutable_value()->set_z(event.data[2]);
+
+    // the accelerometer bounds the batch too in case the gyroscope is missing
+    if ((uint32_t) this->batch_.angular_velocity_size() >= this->batch_size_
+        || (uint32_t) this->batch_.acceleration_size() >= this->batch_size_) {
+        try {
+            PublishBatch();
+        } catch (std::exception &e) {
+            LOGE(TAG, "Error in publishing batch : %s", e.what());
+        }
+        // keeps the allocated samples for the next batch
+        this->batch_.Clear();
+    }
+}
+
+void ImuStream::PublishBatch() {
+    this->batch_.set_publish_timestamp_ns(BootTimeNs());
+
+    // reuses the capacity of the previous batch
+    this->batch_.SerializeToString(&this->batch_payload_);
+    this->publisher_->SendData(this->batch_payload_);
+}
+
+void ImuStream::PublishData() {
+    while (this->is_running_) {
+        try {
+            Publish(this->snapshot_.Read());
+            this->rate_.sleep();
+        } catch (std::exception &e) {
+            LOGE(TAG, "Error in publishing : %s", e.what());
+        }
+    }
+}
+
+void ImuStream::Publish(const imu_data_t &sample) {
+    uint64_t publish_ts = BootTimeNs();
+
+    int32_t index = this->pool_->Acquire();
+    if (index < 0) {
+        // every slot is still queued in libzmq, fall back to a copying send
+        uint8_t buffer[ImuEncoder::MAX_SIZE];
+        size_t size = Encode(sample, publish_ts, buffer, sizeof(buffer));
+        this->publisher_->SendData(buffer, (int) size);
+        return;
+    }
+    size_t size = Encode(sample, publish_ts, this->pool_->Data(index), this->pool_->Capacity());
+    this->publisher_->SendData(this->pool_->BeginSend(index), 0, size);
+}
+
+size_t ImuStream::Encode(const imu_data_t &sample, uint64_t publish_ts, uint8_t *out, size_t capacity) {
+    if (this->options_.encoding == ImuEncoding::PACKED_F32) {
+        return ImuEncoder::EncodePacked(
+                sample, publish_ts, this->encoder_.FusedOrientation(), out, capacity);
+    }
+    return this->encoder_.Encode(sample, publish_ts, out, capacity);
+}
+
+const imu_stream_options_t &ImuStream::Options() const {
+    return this->options_;
+}
+
+const std::string &ImuStream::Address() const {
+    return this->address_;
+}
@@ -3,6 +3,10 @@
 //
 
 #include "ipc/ipc_transport.h"
+#include "ipc/rpc_broker.h"
+
+#include <sys/eventfd.h>
+#include <unistd.h>
 
 Bytes::Bytes(size_t size, BYTE* data) {
     this->size_ = size;
@@ -22,12 +26,26 @@ size_t Bytes::size() {
     return this->size_;
 }
 
-Publisher::Publisher(const std::string &address)
-        : socket_(context_, zmq::socket_type::pub) {
+Publisher::Publisher(const std::string &address, const publisher_options_t &options)
+        : socket_(ZmqContext::Get(), options.xpub_nodrop ? zmq::socket_type::xpub : zmq::socket_type::pub),
+          send_flags_(options.send_timeout_ms == 0 ? zmq::send_flags::dontwait : zmq::send_flags::none),
+          xpub_nodrop_(options.xpub_nodrop),
+          dropped_(0) {
     try {
+        this->address_ = address;
         this->tag_ = "NativeZmqPublisher[" + this->address_ + "]";
 
-        this->address_ = address;
+        this->socket_.set(zmq::sockopt::sndhwm, options.sndhwm);
+        this->socket_.set(zmq::sockopt::linger, options.linger_ms);
+        if (options.send_timeout_ms > 0) {
+            this->socket_.set(zmq::sockopt::sndtimeo, options.send_timeout_ms);
+        }
+        if (options.conflate) {
+            this->socket_.set(zmq::sockopt::conflate, true);
+        }
+        if (options.xpub_nodrop) {
+            this->socket_.set(zmq::sockopt::xpub_nodrop, true);
+        }
         this->socket_.bind(address);
     } catch (std::exception &e) {
         LOGE(this->tag_.c_str(), "Error in initialization : %s", e.what());
@@ -35,33 +53,101 @@ Publisher::Publisher(const std::string &address)
 }
 
 void Publisher::SendData(BYTE *data, int length) {
-    try {
-        this->socket_.send(
-                zmq::message_t(data, length),
-                zmq::send_flags::dontwait);
-    } catch (std::exception &e) {
-        LOGE(this->tag_.c_str(), "Error in publishing data : %s", e.what());
-    }
+    zmq::message_t message(data, length);
+    SendMessage(message, false);
 }
 
 void Publisher::SendData(bytes_t bytes) {
-    try {
-        this->socket_.send(
-                zmq::message_t(bytes.data, bytes.size),
-                zmq::send_flags::dontwait);
-    } catch (std::exception &e) {
-        LOGE(this->tag_.c_str(), "Error in publishing data : %s", e.what());
-    }
+    zmq::message_t message(bytes.data, bytes.size);
+    SendMessage(message, false);
 }
 
 void Publisher::SendData(const std::string& data) {
+    zmq::message_t message(data);
+    SendMessage(message, false);
+}
+
+void Publisher::SendData(BufferPool::slot_t* slot, size_t offset, size_t length) {
+    // the message owns the slot from here on, BufferPool::OnMessageFreed
+    // runs even if the send fails
+    zmq::message_t message(slot->data + offset, length, &BufferPool::OnMessageFreed, slot);
+    SendMessage(message, false);
+}
+
+bool Publisher::SendMessage(zmq::message_t& message, bool more) {
     try {
-        this->socket_.send(
-                zmq::message_t(data),
-                zmq::send_flags::dontwait);
+        auto res = this->socket_.send(
+                message,
+                more ? this->send_flags_ | zmq::send_flags::sndmore : this->send_flags_);
+        if (!res.has_value()) {
+            // EAGAIN, the subscriber queues are full or the send timed out
+            this->dropped_.fetch_add(1, std::memory_order_relaxed);
+            return false;
+        }
+        return true;
     } catch (std::exception &e) {
+        this->dropped_.fetch_add(1, std::memory_order_relaxed);
         LOGE(this->tag_.c_str(), "Error in publishing data : %s", e.what());
+        return false;
+    }
+}
+
+int Publisher::SendPacked(const BYTE* data, size_t length, bool multipart) {
+    if (multipart && !SupportsMultipart()) {
+        LOGE(this->tag_.c_str(), "Multipart batches need a publisher without a bounded queue");
+        return 0;
+    }
+    // a malformed batch is rejected before anything goes out, a multipart
+    // message must not be left open on the socket
+    size_t records = 0;
+    size_t offset = 0;
+    while (offset < length) {
+        uint32_t size;
+        if (length - offset < sizeof(uint32_t)) {
+            LOGE(this->tag_.c_str(), "Packed batch truncated after %zu messages", records);
+            return 0;
+        }
+        memcpy(&size, data + offset, sizeof(uint32_t));
+        offset += sizeof(uint32_t);
+        if (size > length - offset) {
+            LOGE(this->tag_.c_str(), "Packed batch truncated after %zu messages", records);
+            return 0;
+        }
+        offset += size;
+        records++;
+    }
+
+    int sent = 0;
+    offset = 0;
+    for (size_t record = 0; record < records; record++) {
+        uint32_t size;
+        memcpy(&size, data + offset, sizeof(uint32_t));
+        offset += sizeof(uint32_t);
+        bool last = record + 1 == records;
+        zmq::message_t message(data + offset, size);
+        offset += size;
+        if (SendMessage(message, multipart && !last)) {
+            sent++;
+        } else if (multipart) {
+            // a PUB socket drops a whole message for a full subscriber and
+            // never fails a part, only an error on the socket ends up here
+            if (!last) {
+                // ends the open message so the next publish is not glued onto it
+                zmq::message_t end;
+                SendMessage(end, false);
+            }
+            break;
+        }
     }
+    return sent;
+}
+
+bool Publisher::SupportsMultipart() const {
+    return !this->xpub_nodrop_;
+}
+
+uint64_t Publisher::Dropped() const {
+    return this->dropped_.load(std::memory_order_relaxed);
 }
 
 bool Publisher::close() {
@@ -79,13 +165,24 @@ bool Publisher::close() {
 // Subscriber related
 Subscriber::Subscriber(
         const std::string &address,
-        const std::string &topic) {
+        const std::string &topic,
+        SubscriberOverflow overflow,
+        int capacity)
+        : wakeup_fd_(eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC)),
+          overflow_(overflow),
+          capacity_(std::max(capacity, 1)),
+          dropped_(0) {
     try {
-        this->tag_ = "NativeZmqSubscriber[" + this->address_ + "]";
-
         this->address_ = address;
+        this->tag_ = "NativeZmqSubscriber[" + this->address_ + "]";
 
-        this->socket_ = std::make_unique<zmq::socket_t>(context_, zmq::socket_type::sub);
+        this->socket_ = std::make_unique<zmq::socket_t>(ZmqContext::Get(), zmq::socket_type::sub);
+        // queue options only apply to connections made after they are set
+        if (overflow == SubscriberOverflow::CONFLATE) {
+            this->socket_->set(zmq::sockopt::conflate, true);
+        } else if (overflow == SubscriberOverflow::SUSPEND) {
+            this->socket_->set(zmq::sockopt::rcvhwm, (int) this->capacity_);
+        }
         this->socket_->connect(address);
         this->socket_->set(zmq::sockopt::subscribe, topic);
 
@@ -95,6 +192,8 @@ Subscriber::Subscriber(
         this->poller_->events = ZMQ_POLLIN;
         this->poller_->revents = 0;
 
+        this->items_[0] = {*this->socket_, 0, ZMQ_POLLIN, 0};
+        this->items_[1] = {nullptr, this->wakeup_fd_, ZMQ_POLLIN, 0};
     } catch (std::exception &e) {
         LOGE(this->tag_.c_str(), "Error in initialization : %s", e.what());
     }
@@ -102,39 +201,130 @@ Subscriber::Subscriber(
 
 bytes_t Subscriber::listen() {
     bytes_t payload{};
-    zmq::message_t msg;
     zmq::poll(this->poller_.get(), 1, 100);
     if (this->poller_->revents & ZMQ_POLLIN) {
         try {
-            this->socket_->recv(msg);
+            this->socket_->recv(this->listen_msg_);
         } catch (std::exception &e) {
             LOGI(this->tag_.c_str(), "Connection to %s terminated!", this->address_.c_str());
             return payload;
         }
-        void *data_ptr = msg.data();
-        BYTE *bytes = static_cast<BYTE *>(data_ptr);
-        payload.data = bytes;
-        payload.size = msg.size();
+        payload.data = static_cast<BYTE *>(this->listen_msg_.data());
+        payload.size = this->listen_msg_.size();
         return payload;
     }
     return payload;
 }
 
+bool Subscriber::waitForMessage() {
+    this->items_[0].revents = 0;
+    this->items_[1].revents = 0;
+    zmq::poll(this->items_, 2, std::chrono::milliseconds(-1));
+    if (this->items_[1].revents & ZMQ_POLLIN) {
+        uint64_t count;
+        read(this->wakeup_fd_, &count, sizeof(count));
+        return false;
+    }
+    return true;
+}
+
+void Subscriber::drainPending() {
+    zmq::message_t msg;
+    while (this->socket_->recv(msg, zmq::recv_flags::dontwait)) {
+        this->pending_.push_back(std::move(msg));
+        if (this->pending_.size() > this->capacity_) {
+            this->pending_.pop_front();
+            this->dropped_.fetch_add(1, std::memory_order_relaxed);
+        }
+    }
+}
+
+int64_t Subscriber::receive(BYTE *buffer, size_t capacity) {
+    try {
+        zmq::message_t msg;
+        if (this->overflow_ == SubscriberOverflow::DROP_OLDEST) {
+            // everything that arrived since the last call competes for the
+            // [capacity] slots, the oldest messages lose
+            drainPending();
+            while (this->pending_.empty()) {
+                if (!waitForMessage()) return RECV_STATUS_CLOSED;
+                drainPending();
+            }
+            msg = std::move(this->pending_.front());
+            this->pending_.pop_front();
+        } else {
+            while (!this->socket_->recv(msg, zmq::recv_flags::dontwait)) {
+                if (!waitForMessage()) return RECV_STATUS_CLOSED;
+            }
+        }
+        size_t size = msg.size();
+        bool truncated = size > capacity;
+        memcpy(buffer, msg.data(), truncated ? capacity : size);
+        return PackRecvStatus(size, msg.more(), truncated);
+    } catch (std::exception &e) {
+        LOGE(this->tag_.c_str(), "Error in receiving : %s", e.what());
+        return RECV_STATUS_ERROR;
+    }
+}
+
+void Subscriber::wakeup() {
+    uint64_t one = 1;
+    write(this->wakeup_fd_, &one, sizeof(one));
+}
+
+uint64_t Subscriber::Dropped() const {
+    return this->dropped_.load(std::memory_order_relaxed);
+}
+
 bool Subscriber::close() {
-    this->socket_->disconnect(this->address_);
+    try {
+        this->socket_->disconnect(this->address_);
+    } catch (std::exception &e) {
+        LOGE(this->tag_.c_str(), "Error in closing subscriber : %s", e.what());
+    }
+    this->socket_->close();
+    this->pending_.clear();
+    if (this->wakeup_fd_ >= 0) {
+        ::close(this->wakeup_fd_);
+        this->wakeup_fd_ = -1;
+    }
     return true;
 }
 
 // Server related
 Server::Server(const std::string &address) {
     this->address_ = address;
+    this->connected_ = false;
+    this->reply_started_ = false;
+    this->ready_sent_ = false;
+    this->wakeup_fd_ = -1;
+    this->woken_ = false;
     this->tag_ = "NativeZmqServer";
 
-    this->socket_ = std::make_unique<zmq::socket_t>(this->context_, zmq::socket_type::rep);
+    this->socket_ = std::make_unique<zmq::socket_t>(ZmqContext::Get(), zmq::socket_type::rep);
     this->socket_->bind(address);
 
     LOGI(this->tag_.c_str(), "Created server on %s", this->address_.c_str());
 
+    initPoller();
+}
+
+Server::Server(zmq::context_t &context, const std::string &address) {
+    this->address_ = address;
+    this->connected_ = true;
+    this->reply_started_ = false;
+    this->ready_sent_ = false;
+    this->wakeup_fd_ = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+    this->woken_ = false;
+    this->tag_ = "NativeZmqServerWorker";
+
+    this->socket_ = std::make_unique<zmq::socket_t>(context, zmq::socket_type::dealer);
+    this->socket_->connect(address);
+
+    initPoller();
+}
+
+void Server::initPoller() {
     this->poller_ = std::make_unique<zmq::pollitem_t>();
     this->poller_->socket = *this->socket_;
     this->poller_->fd = 0;
@@ -175,6 +365,26 @@ seq_message_t Server::listen() {
     return message;
 }
 
+int64_t Server::receive(BYTE* buffer, size_t capacity) {
+    zmq::poll(this->poller_.get(), 1, 100);
+    if (!(this->poller_->revents & ZMQ_POLLIN)) {
+        return RECV_STATUS_TIMEOUT;
+    }
+    try {
+        auto res = this->socket_->recv(
+                zmq::mutable_buffer(buffer, capacity),
+                zmq::recv_flags::dontwait);
+        if (!res.has_value()) {
+            return RECV_STATUS_TIMEOUT;
+        }
+        bool more = this->socket_->get(zmq::sockopt::rcvmore);
+        return PackRecvStatus(res->untruncated_size, more, res->truncated());
+    } catch (std::exception &e) {
+        LOGE(this->tag_.c_str(), "Connection to %s terminated!", this->address_.c_str());
+        return RECV_STATUS_ERROR;
+    }
+}
+
 rpc_payload_t Server::listenRpc() {
     rpc_payload_t payload;
     bytes_t data{};
@@ -182,7 +392,7 @@ rpc_payload_t Server::listenRpc() {
     data.data = {};
     payload.data = data;
 
-    zmq::message_t msg1, msg2;
+    zmq::message_t msg1;
 
     std::string rpc_name;
 
@@ -195,11 +405,12 @@ rpc_payload_t Server::listenRpc() {
                 LOGE(this->tag_.c_str(), "Invalid RPC : %s", rpc_name.c_str());
                 return payload;
             }
-            auto res2 = this->socket_->recv(msg2);
-            void *data_ptr = msg2.data();
+            // kept as a member so that the payload stays valid until the next call
+            auto res2 = this->socket_->recv(this->rpc_msg_);
+            void *data_ptr = this->rpc_msg_.data();
             BYTE *bytes = static_cast<BYTE *>(data_ptr);
             data.data = bytes;
-            data.size = msg2.size();
+            data.size = this->rpc_msg_.size();
 
             payload.data = data;
             payload.rpc_name = rpc_name;
@@ -213,39 +424,123 @@ rpc_payload_t Server::listenRpc() {
     return payload;
 }
 
-bool Server::sendResponse(bytes_t &payload) {
-    try {
-        this->socket_->send(
-                zmq::message_t(payload.data, payload.size),
-                zmq::send_flags::dontwait);
-        return true;
-    } catch (std::exception &e) {
-        LOGE(this->tag_.c_str(), "Error in sending response data : %s", e.what());
-        return false;
+void Server::registerRpcs(const std::vector<std::string>& rpc_names) {
+    this->rpc_ids_.clear();
+    this->rpc_names_ = rpc_names;
+    for (size_t i = 0; i < this->rpc_names_.size(); i++) {
+        this->rpc_ids_[this->rpc_names_[i]] = (uint16_t) i;
     }
 }
 
-bool Server::sendResponse(const std::string& payload) {
+bool Server::pollRequest(long timeout) {
+    if (this->wakeup_fd_ < 0) {
+        zmq::poll(this->poller_.get(), 1, timeout);
+        return this->poller_->revents & ZMQ_POLLIN;
+    }
+    zmq::pollitem_t items[] = {
+            *this->poller_,
+            {nullptr, this->wakeup_fd_, ZMQ_POLLIN, 0}
+    };
+    zmq::poll(items, 2, timeout);
+    if (items[1].revents & ZMQ_POLLIN) {
+        flushDeferredReplies();
+    }
+    return items[0].revents & ZMQ_POLLIN;
+}
+
+bool Server::receiveEnvelope() {
+    // workers get [routing id..., empty delimiter, request frames...]
+    this->envelope_.clear();
+    this->reply_started_ = false;
+    while (true) {
+        zmq::message_t frame;
+        auto res = this->socket_->recv(frame, zmq::recv_flags::dontwait);
+        if (!res.has_value()) {
+            return false;
+        }
+        bool delimiter = frame.size() == 0;
+        bool more = frame.more();
+        this->envelope_.push_back(std::move(frame));
+        if (delimiter) {
+            return more;
+        }
+        if (!more) {
+            return false;
+        }
+    }
+}
+
+int64_t Server::receiveRpc(BYTE* buffer, size_t capacity) {
+    if (this->connected_ && !this->ready_sent_) {
+        // the broker routes exactly one request per READY
+        try {
+            this->socket_->send(zmq::str_buffer(BROKER_WORKER_READY), zmq::send_flags::dontwait);
+            this->ready_sent_ = true;
+        } catch (std::exception &e) {
+            LOGE(this->tag_.c_str(), "Error in announcing worker : %s", e.what());
+            return RECV_STATUS_ERROR;
+        }
+    }
+    // workers are woken through their eventfd, they never need a timeout
+    if (!pollRequest(this->wakeup_fd_ >= 0 ? -1 : 100)) {
+        return this->woken_.exchange(false) ? RECV_STATUS_CLOSED : RECV_STATUS_TIMEOUT;
+    }
     try {
-        this->socket_->send(
-                zmq::message_t(payload),
-                zmq::send_flags::dontwait);
-        return true;
+        if (this->connected_) {
+            this->ready_sent_ = false;
+            if (!receiveEnvelope()) {
+                return RECV_STATUS_MALFORMED;
+            }
+        }
+        char name[MAX_RPC_NAME_SIZE];
+        auto name_res = this->socket_->recv(
+                zmq::mutable_buffer(name, sizeof(name)),
+                zmq::recv_flags::dontwait);
+        if (!name_res.has_value()) {
+            return RECV_STATUS_TIMEOUT;
+        }
+        if (!this->socket_->get(zmq::sockopt::rcvmore)) {
+            return RECV_STATUS_MALFORMED;
+        }
+
+        auto payload_res = this->socket_->recv(
+                zmq::mutable_buffer(buffer, capacity),
+                zmq::recv_flags::none);
+        // drop any unexpected trailing frames so the next request starts clean
+        while (this->socket_->get(zmq::sockopt::rcvmore)) {
+            zmq::message_t trailing;
+            (void) this->socket_->recv(trailing);
+        }
+
+        if (name_res->truncated()) {
+            return RECV_STATUS_UNKNOWN_RPC;
+        }
+        auto it = this->rpc_ids_.find(std::string_view(name, name_res->size));
+        if (it == this->rpc_ids_.end()) {
+            return RECV_STATUS_UNKNOWN_RPC;
+        }
+        return PackRpcRecvStatus(it->second, payload_res->untruncated_size, payload_res->truncated());
     } catch (std::exception &e) {
-        LOGE(this->tag_.c_str(), "Error in sending response data : %s", e.what());
-        return false;
+        LOGE(this->tag_.c_str(), "Connection to %s terminated!", this->address_.c_str());
+        return RECV_STATUS_ERROR;
     }
 }
 
-bool Server::sendResponse(const std::string& payload, bool more) {
+bool Server::sendReply(zmq::const_buffer payload, bool more) {
     try {
+        if (this->connected_ && !this->reply_started_) {
+            for (auto &frame : this->envelope_) {
+                this->socket_->send(frame, zmq::send_flags::sndmore);
+            }
+            this->reply_started_ = true;
+        }
         zmq::send_flags send_flags = zmq::send_flags::dontwait;
-        if(more) {
+        if (more) {
             send_flags = zmq::send_flags::sndmore;
+        } else {
+            this->reply_started_ = false;
         }
-        this->socket_->send(
-                zmq::message_t(payload),
-                send_flags);
+        this->socket_->send(payload, send_flags);
         return true;
     } catch (std::exception &e) {
         LOGE(this->tag_.c_str(), "Error in sending response data : %s", e.what());
@@ -253,9 +548,88 @@ bool Server::sendResponse(const std::string& payload, bool more) {
     }
 }
 
+bool Server::sendResponse(bytes_t &payload) {
+    return sendReply(zmq::const_buffer(payload.data, payload.size), false);
+}
+
+bool Server::sendResponse(BYTE* data, size_t length) {
+    return sendReply(zmq::const_buffer(data, length), false);
+}
+
+bool Server::sendResponse(const std::string& payload) {
+    return sendReply(zmq::buffer(payload), false);
+}
+
+bool Server::sendResponse(const std::string& payload, bool more) {
+    return sendReply(zmq::buffer(payload), more);
+}
+
+uint64_t Server::deferReply() {
+    if (!this->connected_) {
+        return 0;
+    }
+    auto *pending = new pending_reply_t();
+    pending->envelope = std::move(this->envelope_);
+    this->envelope_.clear();
+    return (uint64_t) pending;
+}
+
+bool Server::sendDeferredResponse(uint64_t handle, BYTE* data, size_t length) {
+    if (handle == 0) {
+        return false;
+    }
+    std::unique_ptr<pending_reply_t> pending((pending_reply_t *) handle);
+    pending->payload = zmq::message_t(data, length);
+    {
+        std::lock_guard<std::mutex> lock(this->deferred_mutex_);
+        this->deferred_replies_.push_back(std::move(pending));
+    }
+    uint64_t one = 1;
+    return write(this->wakeup_fd_, &one, sizeof(one)) == sizeof(one);
+}
+
+void Server::wakeup() {
+    if (this->wakeup_fd_ < 0) return;
+    this->woken_ = true;
+    uint64_t one = 1;
+    (void) write(this->wakeup_fd_, &one, sizeof(one));
+}
+
+void Server::flushDeferredReplies() {
+    uint64_t count;
+    (void) read(this->wakeup_fd_, &count, sizeof(count));
+
+    std::deque<std::unique_ptr<pending_reply_t>> replies;
+    {
+        std::lock_guard<std::mutex> lock(this->deferred_mutex_);
+        replies.swap(this->deferred_replies_);
+    }
+    for (auto &reply : replies) {
+        try {
+            for (auto &frame : reply->envelope) {
+                this->socket_->send(frame, zmq::send_flags::sndmore);
+            }
+            this->socket_->send(reply->payload, zmq::send_flags::dontwait);
+        } catch (std::exception &e) {
+            LOGE(this->tag_.c_str(), "Error in sending deferred response : %s", e.what());
+        }
+    }
+}
+
 bool Server::close() {
-    this->socket_->disconnect(this->address_);
+    try {
+        if (this->connected_) {
+            this->socket_->disconnect(this->address_);
+        } else {
+            this->socket_->unbind(this->address_);
+        }
+    } catch (std::exception &e) {
+        LOGE(this->tag_.c_str(), "Error in closing server : %s", e.what());
+    }
     this->socket_->close();
-    this->context_.close();
+    if (this->wakeup_fd_ >= 0) {
+        ::close(this->wakeup_fd_);
+        this->wakeup_fd_ = -1;
+    }
     return true;
 }
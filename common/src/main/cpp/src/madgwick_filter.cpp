@@ -0,0 +1,158 @@
+#include "sensor/madgwick_filter.h"
+
+#include <cmath>
+
+// gain and duration of the convergence after Reset, the bias is only
+// estimated once the orientation settled
+#define INITIAL_BETA 2.5
+#define INITIAL_SECONDS 3.0
+
+static inline double InvSqrt(double x) {
+    return 1.0 / std::sqrt(x);
+}
+
+MadgwickFilter::MadgwickFilter(double beta, double zeta)
+        : beta_(beta),
+          zeta_(zeta) {
+    Reset();
+}
+
+void MadgwickFilter::Reset() {
+    this->q_[0] = 1.0;
+    this->q_[1] = 0.0;
+    this->q_[2] = 0.0;
+    this->q_[3] = 0.0;
+    this->bias_[0] = 0.0;
+    this->bias_[1] = 0.0;
+    this->bias_[2] = 0.0;
+    this->elapsed_ = 0.0;
+}
+
+void MadgwickFilter::Update(const double gyro[3], const double accel[3], const double *mag, double dt) {
+    double q0 = this->q_[0], q1 = this->q_[1], q2 = this->q_[2], q3 = this->q_[3];
+    double ax = accel[0], ay = accel[1], az = accel[2];
+    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+    bool has_accel = ax != 0.0 || ay != 0.0 || az != 0.0;
+    bool has_mag = mag != nullptr && (mag[0] != 0.0 || mag[1] != 0.0 || mag[2] != 0.0);
+
+    // objective function gradient, the direction the orientation has to move
+    // for gravity (and the magnetic field) to match the measurements
+    if (has_accel) {
+        double norm = InvSqrt(ax * ax + ay * ay + az * az);
+        ax *= norm;
+        ay *= norm;
+        az *= norm;
+
+        if (has_mag) {
+            double mx = mag[0], my = mag[1], mz = mag[2];
+            norm = InvSqrt(mx * mx + my * my + mz * mz);
+            mx *= norm;
+            my *= norm;
+            mz *= norm;
+
+            double _2q0mx = 2.0 * q0 * mx, _2q0my = 2.0 * q0 * my, _2q0mz = 2.0 * q0 * mz;
+            double _2q1mx = 2.0 * q1 * mx;
+            double _2q0 = 2.0 * q0, _2q1 = 2.0 * q1, _2q2 = 2.0 * q2, _2q3 = 2.0 * q3;
+            double _2q0q2 = 2.0 * q0 * q2, _2q2q3 = 2.0 * q2 * q3;
+            double q0q0 = q0 * q0, q0q1 = q0 * q1, q0q2 = q0 * q2, q0q3 = q0 * q3;
+            double q1q1 = q1 * q1, q1q2 = q1 * q2, q1q3 = q1 * q3;
+            double q2q2 = q2 * q2, q2q3 = q2 * q3, q3q3 = q3 * q3;
+
+            // earth frame magnetic field, only its horizontal norm and vertical part are kept
+            double hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2
+                        + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+            double hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1
+                        + my * q2q2 + _2q2 * mz * q3 - my * q3q3;
+            double _2bx = std::sqrt(hx * hx + hy * hy);
+            double _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1
+                          + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+            double _4bx = 2.0 * _2bx, _4bz = 2.0 * _2bz;
+
+            double fax = 2.0 * q1q3 - _2q0q2 - ax;
+            double fay = 2.0 * q0q1 + _2q2q3 - ay;
+            double faz = 1.0 - 2.0 * q1q1 - 2.0 * q2q2 - az;
+            double fmx = _2bx * (0.5 - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx;
+            double fmy = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my;
+            double fmz = _2bx * (q0q2 + q1q3) + _2bz * (0.5 - q1q1 - q2q2) - mz;
+
+            s0 = -_2q2 * fax + _2q1 * fay
+                 - _2bz * q2 * fmx + (-_2bx * q3 + _2bz * q1) * fmy + _2bx * q2 * fmz;
+            s1 = _2q3 * fax + _2q0 * fay - 4.0 * q1 * faz
+                 + _2bz * q3 * fmx + (_2bx * q2 + _2bz * q0) * fmy + (_2bx * q3 - _4bz * q1) * fmz;
+            s2 = -_2q0 * fax + _2q3 * fay - 4.0 * q2 * faz
+                 + (-_4bx * q2 - _2bz * q0) * fmx + (_2bx * q1 + _2bz * q3) * fmy
+                 + (_2bx * q0 - _4bz * q2) * fmz;
+            s3 = _2q1 * fax + _2q2 * fay
+                 + (-_4bx * q3 + _2bz * q1) * fmx + (-_2bx * q0 + _2bz * q2) * fmy + _2bx * q1 * fmz;
+        } else {
+            double _2q0 = 2.0 * q0, _2q1 = 2.0 * q1, _2q2 = 2.0 * q2, _2q3 = 2.0 * q3;
+            double _4q0 = 4.0 * q0, _4q1 = 4.0 * q1, _4q2 = 4.0 * q2;
+            double _8q1 = 8.0 * q1, _8q2 = 8.0 * q2;
+            double q0q0 = q0 * q0, q1q1 = q1 * q1, q2q2 = q2 * q2, q3q3 = q3 * q3;
+
+            s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+            s1 = _4q1 * q3q3 - _2q3 * ax + 4.0 * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1
+                 + _8q1 * q2q2 + _4q1 * az;
+            s2 = 4.0 * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1
+                 + _8q2 * q2q2 + _4q2 * az;
+            s3 = 4.0 * q1q1 * q3 - _2q1 * ax + 4.0 * q2q2 * q3 - _2q2 * ay;
+        }
+
+        double s_norm = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+        if (s_norm > 0.0) {
+            s_norm = InvSqrt(s_norm);
+            s0 *= s_norm;
+            s1 *= s_norm;
+            s2 *= s_norm;
+            s3 *= s_norm;
+        }
+    }
+
+    double beta = this->beta_;
+    if (this->elapsed_ < INITIAL_SECONDS) {
+        beta += (INITIAL_BETA - this->beta_) * (1.0 - this->elapsed_ / INITIAL_SECONDS);
+    } else if (has_accel && this->zeta_ > 0.0) {
+        // the gradient expressed as an angular velocity error is integrated as bias
+        this->bias_[0] += this->zeta_ * 2.0 * (q0 * s1 - q1 * s0 - q2 * s3 + q3 * s2) * dt;
+        this->bias_[1] += this->zeta_ * 2.0 * (q0 * s2 + q1 * s3 - q2 * s0 - q3 * s1) * dt;
+        this->bias_[2] += this->zeta_ * 2.0 * (q0 * s3 - q1 * s2 + q2 * s1 - q3 * s0) * dt;
+    }
+    this->elapsed_ += dt;
+
+    double gx = gyro[0] - this->bias_[0];
+    double gy = gyro[1] - this->bias_[1];
+    double gz = gyro[2] - this->bias_[2];
+
+    // rate of change of the orientation from the gyroscope, minus the gradient step
+    double q_dot0 = 0.5 * (-q1 * gx - q2 * gy - q3 * gz) - beta * s0;
+    double q_dot1 = 0.5 * (q0 * gx + q2 * gz - q3 * gy) - beta * s1;
+    double q_dot2 = 0.5 * (q0 * gy - q1 * gz + q3 * gx) - beta * s2;
+    double q_dot3 = 0.5 * (q0 * gz + q1 * gy - q2 * gx) - beta * s3;
+
+    q0 += q_dot0 * dt;
+    q1 += q_dot1 * dt;
+    q2 += q_dot2 * dt;
+    q3 += q_dot3 * dt;
+
+    double norm = InvSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+    this->q_[0] = q0 * norm;
+    this->q_[1] = q1 * norm;
+    this->q_[2] = q2 * norm;
+    this->q_[3] = q3 * norm;
+}
+
+void MadgwickFilter::Orientation(double out[4]) const {
+    // north-west-up to east-north-up is a 90 degree turn around up
+    const double c = M_SQRT1_2;
+    double q0 = this->q_[0], q1 = this->q_[1], q2 = this->q_[2], q3 = this->q_[3];
+    out[0] = c * (q1 - q2);
+    out[1] = c * (q2 + q1);
+    out[2] = c * (q3 + q0);
+    out[3] = c * (q0 - q3);
+}
+
+void MadgwickFilter::GyroBias(double out[3]) const {
+    out[0] = this->bias_[0];
+    out[1] = this->bias_[1];
+    out[2] = this->bias_[2];
+}
@@ -3,19 +3,88 @@
 //
 
 #include "ipc/ipc_transport.h"
+#include "ipc/rpc_broker.h"
+#include "ipc/shm_ring.h"
+#include "common.pb.h"
 #include <jni.h>
 
+// Classes and constructors used to build results, resolved once when the
+// library is loaded instead of on every received message.
+static jclass message_class_ = nullptr;
+static jmethodID message_constructor_ = nullptr;
+static jclass rpc_payload_class_ = nullptr;
+static jmethodID rpc_payload_constructor_ = nullptr;
+
+// Offsets and lengths come from java, a range outside of the buffer would make
+// the send read past its end.
+static bool InBounds(jlong capacity, jint offset, jint length) {
+    return offset >= 0 && length >= 0 && (jlong) offset + length <= capacity;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if (vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+
+    jclass message_class = env->FindClass("com/flomobility/anx/native/Message");
+    message_class_ = (jclass) env->NewGlobalRef(message_class);
+    env->DeleteLocalRef(message_class);
+    message_constructor_ = env->GetMethodID(message_class_, "<init>", "(ZZ[B)V");
+
+    jclass rpc_payload_class = env->FindClass("com/flomobility/anx/native/RpcPayload");
+    rpc_payload_class_ = (jclass) env->NewGlobalRef(rpc_payload_class);
+    env->DeleteLocalRef(rpc_payload_class);
+    rpc_payload_constructor_ = env->GetMethodID(
+            rpc_payload_class_, "<init>", "(Ljava/lang/String;[B)V");
+
+    return JNI_VERSION_1_6;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_flomobility_anx_native_NativeZmq_configureContext(
+        JNIEnv *env, jobject thiz,
+        jint io_threads,
+        jintArray cpu_affinity) {
+    jsize count = env->GetArrayLength(cpu_affinity);
+    std::vector<int> cpus(count);
+    env->GetIntArrayRegion(cpu_affinity, 0, count, (jint *) cpus.data());
+    return ZmqContext::Configure(io_threads, cpus);
+}
+
 extern "C"
 JNIEXPORT jlong JNICALL
 Java_com_flomobility_anx_native_NativeZmq_createPublisherInstance(
-        JNIEnv *env, jobject thiz, jstring address) {
+        JNIEnv *env, jobject thiz, jstring address,
+        jint sndhwm,
+        jboolean conflate,
+        jint linger_ms,
+        jint send_timeout_ms,
+        jboolean xpub_nodrop) {
     const char *cstr = env->GetStringUTFChars(address, NULL);
     std::string _address(cstr);
     env->ReleaseStringUTFChars(address, cstr);
-    auto *pub = new Publisher(_address);
+    publisher_options_t options;
+    options.sndhwm = sndhwm;
+    options.conflate = conflate;
+    options.linger_ms = linger_ms;
+    options.send_timeout_ms = send_timeout_ms;
+    options.xpub_nodrop = xpub_nodrop;
+    auto *pub = new Publisher(_address, options);
     return (jlong) pub;
 }
 
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_getDroppedCount(
+        JNIEnv *env, jobject thiz, jlong publisher_ptr) {
+    auto *pub = (Publisher *) publisher_ptr;
+    return (jlong) pub->Dropped();
+}
+
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_flomobility_anx_native_NativeZmq_sendData(
@@ -25,9 +94,107 @@ Java_com_flomobility_anx_native_NativeZmq_sendData(
     auto *pub = (Publisher *) publisher_ptr;
     jsize length = env->GetArrayLength(data);
     jbyte *jbyteData = env->GetByteArrayElements(data, NULL);
-    BYTE *byteData = new BYTE[length];
-    memcpy(byteData, jbyteData, length);
-    pub->SendData(byteData, length);
+    // zmq::message_t copies the payload, so the pinned array can be
+    // released right away without copying it back
+    pub->SendData((BYTE *) jbyteData, length);
+    env->ReleaseByteArrayElements(data, jbyteData, JNI_ABORT);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_flomobility_anx_native_NativeZmq_sendDirect(
+        JNIEnv *env, jobject thiz,
+        jlong publisher_ptr,
+        jobject buffer,
+        jint offset,
+        jint length) {
+    auto *pub = (Publisher *) publisher_ptr;
+    auto *data = (BYTE *) env->GetDirectBufferAddress(buffer);
+    if (data == nullptr) {
+        LOGE("NativeZmq", "sendDirect called with a non-direct buffer");
+        return;
+    }
+    if (!InBounds(env->GetDirectBufferCapacity(buffer), offset, length)) {
+        LOGE("NativeZmq", "sendDirect range %d+%d is out of the buffer", offset, length);
+        return;
+    }
+    pub->SendData(data + offset, length);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_flomobility_anx_native_NativeZmq_sendBatch(
+        JNIEnv *env, jobject thiz,
+        jlong publisher_ptr,
+        jobjectArray messages,
+        jboolean multipart) {
+    auto *pub = (Publisher *) publisher_ptr;
+    if (multipart && !pub->SupportsMultipart()) {
+        LOGE("NativeZmq", "Multipart batches need a publisher without a bounded queue");
+        return 0;
+    }
+    jsize count = env->GetArrayLength(messages);
+    jint sent = 0;
+    for (jsize i = 0; i < count; i++) {
+        auto data = (jbyteArray) env->GetObjectArrayElement(messages, i);
+        jsize length = env->GetArrayLength(data);
+        // copied once, straight into the zmq message
+        zmq::message_t message(length);
+        env->GetByteArrayRegion(data, 0, length, (jbyte *) message.data());
+        env->DeleteLocalRef(data);
+        if (pub->SendMessage(message, multipart && i < count - 1)) {
+            sent++;
+        } else if (multipart) {
+            break;
+        }
+    }
+    return sent;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_flomobility_anx_native_NativeZmq_sendPacked(
+        JNIEnv *env, jobject thiz,
+        jlong publisher_ptr,
+        jobject buffer,
+        jint offset,
+        jint length,
+        jboolean multipart) {
+    auto *pub = (Publisher *) publisher_ptr;
+    auto *data = (BYTE *) env->GetDirectBufferAddress(buffer);
+    if (data == nullptr) {
+        LOGE("NativeZmq", "sendPacked called with a non-direct buffer");
+        return 0;
+    }
+    if (!InBounds(env->GetDirectBufferCapacity(buffer), offset, length)) {
+        LOGE("NativeZmq", "sendPacked range %d+%d is out of the buffer", offset, length);
+        return 0;
+    }
+    return pub->SendPacked(data + offset, length, multipart);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_flomobility_anx_native_NativeZmq_sendPooled(
+        JNIEnv *env, jobject thiz,
+        jlong publisher_ptr,
+        jlong pool_ptr,
+        jint index,
+        jint offset,
+        jint length) {
+    auto *pub = (Publisher *) publisher_ptr;
+    auto *pool = (BufferPool *) pool_ptr;
+    // checked before the slot is handed over, it stays acquired by the caller
+    if (!InBounds((jlong) pool->Capacity(), offset, length)) {
+        LOGE("NativeZmq", "sendPooled range %d+%d is out of the buffer", offset, length);
+        return;
+    }
+    BufferPool::slot_t *slot = pool->BeginSend(index);
+    if (slot == nullptr) {
+        LOGE("NativeZmq", "Buffer %d was not acquired before sending", index);
+        return;
+    }
+    pub->SendData(slot, offset, length);
 }
 
 extern "C"
@@ -36,7 +203,7 @@ Java_com_flomobility_anx_native_NativeZmq_closePublisher(
         JNIEnv *env, jobject thiz, jlong publisher_ptr) {
     auto *pub = (Publisher *) publisher_ptr;
     bool status = pub->close();
-    free(pub);
+    delete pub;
     return status;
 }
 
@@ -45,16 +212,18 @@ JNIEXPORT jlong JNICALL
 Java_com_flomobility_anx_native_NativeZmq_createSubscriberInstance(
         JNIEnv *env,
         jobject thiz,
-        jstring address, jstring topic) {
+        jstring address, jstring topic,
+        jint overflow,
+        jint capacity) {
     const char *cstr = env->GetStringUTFChars(address, NULL);
     std::string _address(cstr);
     env->ReleaseStringUTFChars(address, cstr);
 
     const char *cstr_topic = env->GetStringUTFChars(topic, NULL);
-    std::string _topic(cstr);
-    env->ReleaseStringUTFChars(address, cstr_topic);
+    std::string _topic(cstr_topic);
+    env->ReleaseStringUTFChars(topic, cstr_topic);
 
-    auto *sub = new Subscriber(_address, _topic);
+    auto *sub = new Subscriber(_address, _topic, (SubscriberOverflow) overflow, capacity);
     return (jlong) sub;
 }
 
@@ -80,10 +249,46 @@ Java_com_flomobility_anx_native_NativeZmq_closeSubscriber(
         jlong subscriber_ptr) {
     auto *sub = (Subscriber *) subscriber_ptr;
     bool status = sub->close();
-    free(sub);
+    delete sub;
     return status;
 }
 
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_receiveSubscribed(
+        JNIEnv *env,
+        jobject thiz,
+        jlong subscriber_ptr,
+        jobject buffer) {
+    auto *sub = (Subscriber *) subscriber_ptr;
+    auto *data = (BYTE *) env->GetDirectBufferAddress(buffer);
+    if (data == nullptr) {
+        LOGE("NativeZmq", "receiveSubscribed called with a non-direct buffer");
+        return RECV_STATUS_ERROR;
+    }
+    return sub->receive(data, env->GetDirectBufferCapacity(buffer));
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_flomobility_anx_native_NativeZmq_wakeupSubscriber(
+        JNIEnv *env,
+        jobject thiz,
+        jlong subscriber_ptr) {
+    auto *sub = (Subscriber *) subscriber_ptr;
+    sub->wakeup();
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_getSubscriberDroppedCount(
+        JNIEnv *env,
+        jobject thiz,
+        jlong subscriber_ptr) {
+    auto *sub = (Subscriber *) subscriber_ptr;
+    return (jlong) sub->Dropped();
+}
+
 extern "C"
 JNIEXPORT jlong JNICALL
 Java_com_flomobility_anx_native_NativeZmq_createServerInstance(
@@ -110,14 +315,26 @@ Java_com_flomobility_anx_native_NativeZmq_listenServerRequests(
 
     // Copy the byte array to the jbyteArray
     env->SetByteArrayRegion(result, 0, (int)bytes.size, (jbyte *)(bytes.data));
-    jclass clazz = env->FindClass("com/flomobility/anx/native/Message");
-    jmethodID midConstructor = env->GetMethodID(
-            clazz, "<init>",
-            "(ZZ[B)V");
-    jobject message = env->NewObject(clazz, midConstructor, msg.success, msg.more, result);
+    jobject message = env->NewObject(
+            message_class_, message_constructor_, msg.success, msg.more, result);
     free(bytes.data);
     return message;
 }
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_receive(
+        JNIEnv *env,
+        jobject thiz,
+        jlong server_ptr,
+        jobject buffer) {
+    auto *server = (Server *) server_ptr;
+    auto *data = (BYTE *) env->GetDirectBufferAddress(buffer);
+    if (data == nullptr) {
+        return RECV_STATUS_ERROR;
+    }
+    return server->receive(data, (size_t) env->GetDirectBufferCapacity(buffer));
+}
+
 extern "C"
 JNIEXPORT jboolean JNICALL
 Java_com_flomobility_anx_native_NativeZmq_closeServer(
@@ -126,7 +343,7 @@ Java_com_flomobility_anx_native_NativeZmq_closeServer(
         jlong server_ptr) {
     auto *server = (Server *) server_ptr;
     bool status = server->close();
-    free(server);
+    delete server;
     return status;
 }
 
@@ -146,14 +363,46 @@ Java_com_flomobility_anx_native_NativeZmq_listenForRpcs(
     // Copy the byte array to the jbyteArray
     env->SetByteArrayRegion(data, 0, bytes.size, reinterpret_cast<jbyte *>(bytes.data));
 
-    jclass clazz = env->FindClass("com/flomobility/anx/native/RpcPayload");
-    jmethodID midConstructor = env->GetMethodID(
-            clazz, "<init>",
-            "(Ljava/lang/String;[B)V");
-    jobject rpcPayload = env->NewObject(clazz, midConstructor, rpc_name, data);
+    jobject rpcPayload = env->NewObject(
+            rpc_payload_class_, rpc_payload_constructor_, rpc_name, data);
     return rpcPayload;
 }
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_flomobility_anx_native_NativeZmq_registerRpcs(
+        JNIEnv *env,
+        jobject thiz,
+        jlong server_ptr,
+        jobjectArray rpc_names) {
+    auto *server = (Server *) server_ptr;
+    std::vector<std::string> names;
+    jsize count = env->GetArrayLength(rpc_names);
+    for (jsize i = 0; i < count; i++) {
+        auto name = (jstring) env->GetObjectArrayElement(rpc_names, i);
+        const char *cstr = env->GetStringUTFChars(name, NULL);
+        names.emplace_back(cstr);
+        env->ReleaseStringUTFChars(name, cstr);
+        env->DeleteLocalRef(name);
+    }
+    server->registerRpcs(names);
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_receiveRpc(
+        JNIEnv *env,
+        jobject thiz,
+        jlong server_ptr,
+        jobject buffer) {
+    auto *server = (Server *) server_ptr;
+    auto *data = (BYTE *) env->GetDirectBufferAddress(buffer);
+    if (data == nullptr) {
+        return RECV_STATUS_ERROR;
+    }
+    return server->receiveRpc(data, (size_t) env->GetDirectBufferCapacity(buffer));
+}
+
 extern "C"
 JNIEXPORT jboolean JNICALL
 Java_com_flomobility_anx_native_NativeZmq_sendServerResponse(
@@ -164,12 +413,261 @@ Java_com_flomobility_anx_native_NativeZmq_sendServerResponse(
 
     jsize length = env->GetArrayLength(data);
     jbyte *jbyteData = env->GetByteArrayElements(data, NULL);
-    BYTE *byteData = new BYTE[length];
-    memcpy(byteData, jbyteData, length);
+    bool status = server->sendResponse((BYTE *) jbyteData, length);
+    env->ReleaseByteArrayElements(data, jbyteData, JNI_ABORT);
+    return status;
+}
 
-    bytes_t payload{};
-    payload.data = byteData;
-    payload.size = length;
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_flomobility_anx_native_NativeZmq_sendServerResponseDirect(
+        JNIEnv *env,
+        jobject thiz,
+        jlong server_ptr,
+        jobject buffer,
+        jint offset,
+        jint length) {
+    auto server = (Server *) server_ptr;
+    auto *data = (BYTE *) env->GetDirectBufferAddress(buffer);
+    if (data == nullptr) {
+        return false;
+    }
+    if (!InBounds(env->GetDirectBufferCapacity(buffer), offset, length)) {
+        LOGE("NativeZmq", "sendServerResponseDirect range %d+%d is out of the buffer", offset, length);
+        return false;
+    }
+    return server->sendResponse(data + offset, length);
+}
+
+// Buffer pool related
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_createBufferPool(
+        JNIEnv *env,
+        jobject thiz,
+        jint count, jint capacity) {
+    auto *pool = new BufferPool(count, capacity);
+    return (jlong) pool;
+}
 
-    return server->sendResponse(payload);
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_flomobility_anx_native_NativeZmq_getPoolBuffer(
+        JNIEnv *env,
+        jobject thiz,
+        jlong pool_ptr, jint index) {
+    auto *pool = (BufferPool *) pool_ptr;
+    return env->NewDirectByteBuffer(pool->Data(index), (jlong) pool->Capacity());
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_flomobility_anx_native_NativeZmq_acquirePoolBuffer(
+        JNIEnv *env,
+        jobject thiz,
+        jlong pool_ptr) {
+    auto *pool = (BufferPool *) pool_ptr;
+    return pool->Acquire();
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_flomobility_anx_native_NativeZmq_releasePoolBuffer(
+        JNIEnv *env,
+        jobject thiz,
+        jlong pool_ptr, jint index) {
+    auto *pool = (BufferPool *) pool_ptr;
+    pool->Release(index);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_flomobility_anx_native_NativeZmq_destroyBufferPool(
+        JNIEnv *env,
+        jobject thiz,
+        jlong pool_ptr) {
+    auto *pool = (BufferPool *) pool_ptr;
+    pool->Destroy();
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_flomobility_anx_native_NativeZmq_wakeupServer(
+        JNIEnv *env,
+        jobject thiz,
+        jlong server_ptr) {
+    auto *server = (Server *) server_ptr;
+    server->wakeup();
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_deferReply(
+        JNIEnv *env,
+        jobject thiz,
+        jlong server_ptr) {
+    auto *server = (Server *) server_ptr;
+    return (jlong) server->deferReply();
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_flomobility_anx_native_NativeZmq_sendDeferredResponse(
+        JNIEnv *env,
+        jobject thiz,
+        jlong server_ptr,
+        jlong reply_handle,
+        jbyteArray data) {
+    auto *server = (Server *) server_ptr;
+    jsize length = env->GetArrayLength(data);
+    jbyte *jbyteData = env->GetByteArrayElements(data, NULL);
+    bool status = server->sendDeferredResponse((uint64_t) reply_handle, (BYTE *) jbyteData, length);
+    env->ReleaseByteArrayElements(data, jbyteData, JNI_ABORT);
+    return status;
+}
+
+// RPC broker related
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_createRpcBroker(
+        JNIEnv *env,
+        jobject thiz,
+        jstring address) {
+    const char *cstr = env->GetStringUTFChars(address, NULL);
+    std::string _address(cstr);
+    env->ReleaseStringUTFChars(address, cstr);
+
+    try {
+        auto *broker = new RpcBroker(_address);
+        broker->start();
+        return (jlong) broker;
+    } catch (std::exception &e) {
+        LOGE("NativeZmq", "Error in creating RPC broker : %s", e.what());
+        return 0L;
+    }
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_createWorkerInstance(
+        JNIEnv *env,
+        jobject thiz,
+        jlong broker_ptr) {
+    auto *broker = (RpcBroker *) broker_ptr;
+    auto *server = new Server(broker->context(), broker->backendAddress());
+    return (jlong) server;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_flomobility_anx_native_NativeZmq_closeRpcBroker(
+        JNIEnv *env,
+        jobject thiz,
+        jlong broker_ptr) {
+    auto *broker = (RpcBroker *) broker_ptr;
+    bool status = broker->close();
+    delete broker;
+    return status;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_createShmRing(
+        JNIEnv *env,
+        jobject thiz,
+        jstring name,
+        jstring socket_path,
+        jint slot_count,
+        jint slot_size) {
+    const char *name_cstr = env->GetStringUTFChars(name, NULL);
+    std::string _name(name_cstr);
+    env->ReleaseStringUTFChars(name, name_cstr);
+    const char *path_cstr = env->GetStringUTFChars(socket_path, NULL);
+    std::string _socket_path(path_cstr);
+    env->ReleaseStringUTFChars(socket_path, path_cstr);
+    try {
+        auto *ring = new ShmRingWriter(_name, _socket_path, slot_count, slot_size);
+        return (jlong) ring;
+    } catch (std::exception &e) {
+        LOGE("NativeZmq", "Error in creating shm ring : %s", e.what());
+        return 0;
+    }
+}
+
+/**
+ * Publishes the anx.ShmFrame descriptor of a frame written to a ring.
+ * */
+static jlong publishShmFrame(Publisher *pub, const shm_frame_t &frame) {
+    anx::ShmFrame descriptor;
+    descriptor.set_slot(frame.slot);
+    descriptor.set_sequence(frame.sequence);
+    descriptor.set_size(frame.size);
+    descriptor.set_timestamp_ns(frame.timestamp_ns);
+    BYTE bytes[64];
+    int size = (int) descriptor.ByteSizeLong();
+    descriptor.SerializeToArray(bytes, size);
+    pub->SendData(bytes, size);
+    return (jlong) frame.sequence;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_shmPublish(
+        JNIEnv *env,
+        jobject thiz,
+        jlong ring_ptr,
+        jlong publisher_ptr,
+        jobject buffer,
+        jint offset,
+        jint length,
+        jlong timestamp_ns) {
+    auto *ring = (ShmRingWriter *) ring_ptr;
+    auto *data = (BYTE *) env->GetDirectBufferAddress(buffer);
+    if (data == nullptr) {
+        LOGE("NativeZmq", "shmPublish called with a non-direct buffer");
+        return -1;
+    }
+    if (!InBounds(env->GetDirectBufferCapacity(buffer), offset, length)) {
+        LOGE("NativeZmq", "shmPublish range %d+%d is out of the buffer", offset, length);
+        return -1;
+    }
+    shm_frame_t frame{};
+    if (!ring->Write(data + offset, length, timestamp_ns, &frame)) {
+        return -1;
+    }
+    return publishShmFrame((Publisher *) publisher_ptr, frame);
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeZmq_shmPublishBytes(
+        JNIEnv *env,
+        jobject thiz,
+        jlong ring_ptr,
+        jlong publisher_ptr,
+        jbyteArray data,
+        jlong timestamp_ns) {
+    auto *ring = (ShmRingWriter *) ring_ptr;
+    jsize length = env->GetArrayLength(data);
+    shm_frame_t frame{};
+    // copied straight from the java heap into the ring
+    auto *bytes = (BYTE *) env->GetPrimitiveArrayCritical(data, NULL);
+    bool written = ring->Write(bytes, length, timestamp_ns, &frame);
+    env->ReleasePrimitiveArrayCritical(data, bytes, JNI_ABORT);
+    if (!written) {
+        return -1;
+    }
+    return publishShmFrame((Publisher *) publisher_ptr, frame);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_flomobility_anx_native_NativeZmq_closeShmRing(
+        JNIEnv *env,
+        jobject thiz,
+        jlong ring_ptr) {
+    auto *ring = (ShmRingWriter *) ring_ptr;
+    bool status = ring->close();
+    delete ring;
+    return status;
 }
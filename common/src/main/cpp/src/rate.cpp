@@ -4,35 +4,98 @@
 
 #include "rate.h"
 
-Rate::Rate(uint16_t hz)
-        : start_(std::chrono::duration_cast<std::chrono::milliseconds>(std::chrono::system_clock::now().time_since_epoch()).count()),
-          expected_cycle_time_(1000 / hz),
-          actual_cycle_time_(0L) {}
-
-uint64_t Rate::get_stamp_in_ms() {
-    auto stamp = std::chrono::duration_cast<std::chrono::milliseconds>(std::chrono::system_clock::now().time_since_epoch()).count();
-    return stamp;
+#include <cerrno>
+
+#define NS_PER_SEC 1000000000LL
+
+Rate::Rate(uint16_t hz, RateOverrunPolicy policy)
+        : hz_(hz > 0 ? hz : 1),
+          policy_(policy),
+          start_ns_(0),
+          cycle_(0) {
+    reset();
 }
 
-void Rate::sleep() {
-    auto end = start_ + expected_cycle_time_;
-    auto actual_end = get_stamp_in_ms();
+int64_t Rate::Now() {
+    timespec now{};
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * NS_PER_SEC + now.tv_nsec;
+}
 
-    if (actual_end < start_) {
-        end = actual_end + expected_cycle_time_;
-    }
+int64_t Rate::Deadline(uint64_t cycle) const {
+    return this->start_ns_ + (int64_t) (cycle * NS_PER_SEC / this->hz_);
+}
+
+void Rate::reset() {
+    this->start_ns_ = Now();
+    this->cycle_ = 0;
+    this->cycles_.store(0, std::memory_order_relaxed);
+    this->overruns_.store(0, std::memory_order_relaxed);
+    this->missed_.store(0, std::memory_order_relaxed);
+    this->last_latency_ns_.store(0, std::memory_order_relaxed);
+    this->max_latency_ns_.store(0, std::memory_order_relaxed);
+    this->total_latency_ns_.store(0, std::memory_order_relaxed);
+    this->waits_.store(0, std::memory_order_relaxed);
+}
 
-    auto sleep_duration = end - actual_end;
-    actual_cycle_time_ = actual_end - start_;
+bool Rate::sleep() {
+    this->cycle_++;
+    this->cycles_.fetch_add(1, std::memory_order_relaxed);
+    int64_t deadline = Deadline(this->cycle_);
+    int64_t now = Now();
 
-    start_ = end;
+    if (now < deadline) {
+        timespec ts{};
+        ts.tv_sec = deadline / NS_PER_SEC;
+        ts.tv_nsec = deadline % NS_PER_SEC;
+        // an absolute deadline is simply waited for again after a signal
+        while (clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &ts, nullptr) == EINTR);
 
-    if (sleep_duration <= 0L) {
-        if(actual_end > end + expected_cycle_time_) {
-            start_ = actual_end;
+        int64_t latency = Now() - deadline;
+        this->last_latency_ns_.store(latency, std::memory_order_relaxed);
+        this->total_latency_ns_.fetch_add(latency, std::memory_order_relaxed);
+        this->waits_.fetch_add(1, std::memory_order_relaxed);
+        if (latency > this->max_latency_ns_.load(std::memory_order_relaxed)) {
+            this->max_latency_ns_.store(latency, std::memory_order_relaxed);
         }
-        return;
+        return true;
     }
 
-    std::this_thread::sleep_for(std::chrono::milliseconds(sleep_duration));
+    this->overruns_.fetch_add(1, std::memory_order_relaxed);
+    switch (this->policy_) {
+        case RateOverrunPolicy::SKIP: {
+            // last tick at or before now, the next call waits for the one after
+            auto elapsed = (uint64_t) ((now - this->start_ns_) * this->hz_ / NS_PER_SEC);
+            if (elapsed > this->cycle_) {
+                this->missed_.fetch_add(elapsed - this->cycle_, std::memory_order_relaxed);
+                this->cycle_ = elapsed;
+            }
+            break;
+        }
+        case RateOverrunPolicy::CATCH_UP:
+            break;
+        case RateOverrunPolicy::RESET:
+            this->start_ns_ = now;
+            this->cycle_ = 0;
+            break;
+    }
+    return false;
+}
+
+rate_stats_t Rate::Stats() const {
+    rate_stats_t stats{};
+    stats.cycles = this->cycles_.load(std::memory_order_relaxed);
+    stats.overruns = this->overruns_.load(std::memory_order_relaxed);
+    stats.missed = this->missed_.load(std::memory_order_relaxed);
+    stats.last_wakeup_latency_ns = this->last_latency_ns_.load(std::memory_order_relaxed);
+    stats.max_wakeup_latency_ns = this->max_latency_ns_.load(std::memory_order_relaxed);
+    uint64_t waits = this->waits_.load(std::memory_order_relaxed);
+    stats.mean_wakeup_latency_ns = waits > 0
+            ? this->total_latency_ns_.load(std::memory_order_relaxed) / (int64_t) waits
+            : 0;
+    return stats;
+}
+
+int64_t Rate::PeriodNs() const {
+    return NS_PER_SEC / this->hz_;
 }
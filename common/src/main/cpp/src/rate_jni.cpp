@@ -0,0 +1,63 @@
+#include <jni.h>
+#include "rate.h"
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_flomobility_anx_native_NativeRate_createRate(
+        JNIEnv *env,
+        jobject thiz,
+        jint hz, jint overrun_policy) {
+    auto *rate = new Rate((uint16_t) hz, (RateOverrunPolicy) overrun_policy);
+    return (jlong) rate;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_flomobility_anx_native_NativeRate_sleep(
+        JNIEnv *env,
+        jobject thiz,
+        jlong rate_ptr) {
+    auto *rate = (Rate *) rate_ptr;
+    return rate->sleep();
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_flomobility_anx_native_NativeRate_reset(
+        JNIEnv *env,
+        jobject thiz,
+        jlong rate_ptr) {
+    auto *rate = (Rate *) rate_ptr;
+    rate->reset();
+}
+
+extern "C"
+JNIEXPORT jlongArray JNICALL
+Java_com_flomobility_anx_native_NativeRate_getStats(
+        JNIEnv *env,
+        jobject thiz,
+        jlong rate_ptr) {
+    auto *rate = (Rate *) rate_ptr;
+    rate_stats_t stats = rate->Stats();
+    jlong values[] = {
+            (jlong) stats.cycles,
+            (jlong) stats.overruns,
+            (jlong) stats.missed,
+            (jlong) stats.last_wakeup_latency_ns,
+            (jlong) stats.max_wakeup_latency_ns,
+            (jlong) stats.mean_wakeup_latency_ns
+    };
+    jlongArray array = env->NewLongArray(6);
+    env->SetLongArrayRegion(array, 0, 6, values);
+    return array;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_flomobility_anx_native_NativeRate_destroyRate(
+        JNIEnv *env,
+        jobject thiz,
+        jlong rate_ptr) {
+    auto *rate = (Rate *) rate_ptr;
+    delete rate;
+}
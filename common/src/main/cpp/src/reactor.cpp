@@ -0,0 +1,160 @@
+#include "ipc/reactor.h"
+
+#include <future>
+#include <sys/eventfd.h>
+#include <unistd.h>
+
+Reactor &Reactor::Shared() {
+    // intentionally leaked like the shared zmq context, see ZmqContext
+    static Reactor *reactor = [] {
+        auto *r = new Reactor();
+        r->start();
+        return r;
+    }();
+    return *reactor;
+}
+
+Reactor::Reactor()
+        : items_dirty_(true),
+          wakeup_fd_(eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC)),
+          running_(false),
+          tag_("NativeReactor") {
+}
+
+Reactor::~Reactor() {
+    stop();
+    ::close(this->wakeup_fd_);
+}
+
+void Reactor::start() {
+    if (this->running_.exchange(true)) return;
+    this->thread_ = std::make_unique<std::thread>(&Reactor::run, this);
+}
+
+void Reactor::stop() {
+    if (!this->running_.exchange(false)) return;
+    wakeup();
+    if (this->thread_ != nullptr && this->thread_->joinable()) {
+        this->thread_->join();
+    }
+    this->thread_ = nullptr;
+}
+
+void Reactor::add(zmq::socket_t &socket, handler_t handler) {
+    void *handle = socket.handle();
+    post([this, handle, handler = std::move(handler)]() mutable {
+        this->entries_.push_back({handle, 0, std::move(handler)});
+        this->items_dirty_ = true;
+    });
+}
+
+void Reactor::add(int fd, handler_t handler) {
+    post([this, fd, handler = std::move(handler)]() mutable {
+        this->entries_.push_back({nullptr, fd, std::move(handler)});
+        this->items_dirty_ = true;
+    });
+}
+
+void Reactor::remove(zmq::socket_t &socket) {
+    removeEntry(socket.handle(), 0);
+}
+
+void Reactor::remove(int fd) {
+    removeEntry(nullptr, fd);
+}
+
+void Reactor::removeEntry(void *socket, int fd) {
+    auto erase = [this, socket, fd]() {
+        for (auto it = this->entries_.begin(); it != this->entries_.end(); ++it) {
+            if (it->socket == socket && (socket != nullptr || it->fd == fd)) {
+                this->entries_.erase(it);
+                this->items_dirty_ = true;
+                return;
+            }
+        }
+    };
+    if (onReactorThread() || !this->running_) {
+        erase();
+        return;
+    }
+    auto done = std::make_shared<std::promise<void>>();
+    std::future<void> removed = done->get_future();
+    post([erase, done]() {
+        erase();
+        done->set_value();
+    });
+    removed.wait();
+}
+
+void Reactor::post(handler_t task) {
+    {
+        std::lock_guard<std::mutex> lock(this->mutex_);
+        this->pending_.push_back(std::move(task));
+    }
+    wakeup();
+}
+
+void Reactor::wakeup() {
+    uint64_t one = 1;
+    write(this->wakeup_fd_, &one, sizeof(one));
+}
+
+bool Reactor::onReactorThread() const {
+    return this->thread_id_.load() == std::this_thread::get_id();
+}
+
+void Reactor::runPending() {
+    uint64_t count;
+    read(this->wakeup_fd_, &count, sizeof(count));
+    std::vector<handler_t> tasks;
+    {
+        std::lock_guard<std::mutex> lock(this->mutex_);
+        tasks.swap(this->pending_);
+    }
+    for (auto &task : tasks) {
+        try {
+            task();
+        } catch (std::exception &e) {
+            LOGE(this->tag_.c_str(), "Error in posted task : %s", e.what());
+        }
+    }
+}
+
+void Reactor::run() {
+    this->thread_id_ = std::this_thread::get_id();
+    LOGI(this->tag_.c_str(), "Reactor running");
+    while (this->running_) {
+        if (this->items_dirty_) {
+            // slot 0 is always the wakeup eventfd
+            this->items_.clear();
+            this->items_.push_back({nullptr, this->wakeup_fd_, ZMQ_POLLIN, 0});
+            for (auto &entry : this->entries_) {
+                this->items_.push_back({entry.socket, entry.fd, ZMQ_POLLIN, 0});
+            }
+            this->items_dirty_ = false;
+        }
+        try {
+            zmq::poll(this->items_.data(), this->items_.size(), std::chrono::milliseconds(-1));
+        } catch (zmq::error_t &e) {
+            if (e.num() == EINTR) continue;
+            LOGE(this->tag_.c_str(), "Error in poll : %s", e.what());
+            break;
+        }
+        // entries_ only changes in runPending, so it still matches items_ here
+        for (size_t i = 1; i < this->items_.size(); i++) {
+            if (!(this->items_[i].revents & ZMQ_POLLIN)) continue;
+            try {
+                this->entries_[i - 1].handler();
+            } catch (std::exception &e) {
+                LOGE(this->tag_.c_str(), "Error in handler : %s", e.what());
+            }
+            // a handler removed a registration, poll again with fresh items
+            if (this->items_dirty_) break;
+        }
+        if (this->items_[0].revents & ZMQ_POLLIN) {
+            runPending();
+        }
+    }
+    this->thread_id_ = std::thread::id();
+    LOGI(this->tag_.c_str(), "Reactor stopped");
+}
@@ -0,0 +1,132 @@
+#include "ipc/rpc_broker.h"
+
+// suffixed with the frontend address, inproc names are shared by every
+// endpoint of the process wide context
+#define BROKER_BACKEND_ADDRESS "inproc://rpc_workers/"
+#define BROKER_CONTROL_ADDRESS "inproc://rpc_broker_control/"
+
+RpcBroker::RpcBroker(const std::string &address)
+        : context_(ZmqContext::Get()),
+          frontend_(context_, zmq::socket_type::router),
+          backend_(context_, zmq::socket_type::router),
+          control_(context_, zmq::socket_type::pair),
+          control_listener_(context_, zmq::socket_type::pair),
+          address_(address),
+          backend_address_(BROKER_BACKEND_ADDRESS + address),
+          tag_("NativeZmqRpcBroker") {
+    // fail the send instead of dropping a request routed to a worker that left
+    this->backend_.set(zmq::sockopt::router_mandatory, 1);
+    this->frontend_.bind(this->address_);
+    this->backend_.bind(this->backend_address_);
+    this->control_.bind(BROKER_CONTROL_ADDRESS + address);
+    this->control_listener_.connect(BROKER_CONTROL_ADDRESS + address);
+
+    LOGI(this->tag_.c_str(), "Created RPC broker on %s", this->address_.c_str());
+}
+
+RpcBroker::~RpcBroker() {
+    if (this->proxy_thread_ != nullptr) {
+        close();
+    }
+}
+
+void RpcBroker::start() {
+    this->proxy_thread_ = std::make_unique<std::thread>(&RpcBroker::proxy, this);
+}
+
+void RpcBroker::proxy() {
+    // a request received while every idle worker turned out to be gone
+    std::vector<zmq::message_t> pending;
+    try {
+        while (true) {
+            zmq::pollitem_t items[] = {
+                    {this->control_listener_, 0, ZMQ_POLLIN, 0},
+                    {this->backend_, 0, ZMQ_POLLIN, 0},
+                    {this->frontend_, 0, ZMQ_POLLIN, 0}
+            };
+            // clients are only read while a worker is free to take their request
+            bool accepting = pending.empty() && !this->idle_workers_.empty();
+            zmq::poll(items, accepting ? 3 : 2, std::chrono::milliseconds(-1));
+
+            if (items[0].revents & ZMQ_POLLIN) {
+                // TERMINATE
+                break;
+            }
+            if (items[1].revents & ZMQ_POLLIN) {
+                std::vector<zmq::message_t> frames;
+                (void) zmq::recv_multipart(this->backend_, std::back_inserter(frames));
+                if (frames.size() == 2) {
+                    // [worker id, READY]
+                    this->idle_workers_.push_back(std::move(frames[0]));
+                } else if (frames.size() > 2) {
+                    // [worker id, client envelope..., reply], the client gets the rest
+                    for (size_t i = 1; i < frames.size(); i++) {
+                        this->frontend_.send(
+                                frames[i],
+                                i + 1 < frames.size() ? zmq::send_flags::sndmore : zmq::send_flags::dontwait);
+                    }
+                }
+            }
+            if (!pending.empty()) {
+                if (routeRequest(pending)) {
+                    pending.clear();
+                }
+            } else if (accepting && (items[2].revents & ZMQ_POLLIN)) {
+                (void) zmq::recv_multipart(this->frontend_, std::back_inserter(pending));
+                if (routeRequest(pending)) {
+                    pending.clear();
+                }
+            }
+        }
+    } catch (std::exception &e) {
+        LOGE(this->tag_.c_str(), "Error in proxy : %s", e.what());
+    }
+}
+
+bool RpcBroker::routeRequest(std::vector<zmq::message_t> &request) {
+    while (!this->idle_workers_.empty()) {
+        zmq::message_t worker = std::move(this->idle_workers_.front());
+        this->idle_workers_.pop_front();
+        try {
+            if (!this->backend_.send(worker, zmq::send_flags::sndmore | zmq::send_flags::dontwait)) {
+                continue;
+            }
+        } catch (zmq::error_t &e) {
+            // EHOSTUNREACH, the worker disconnected since it was ready
+            continue;
+        }
+        for (size_t i = 0; i < request.size(); i++) {
+            this->backend_.send(
+                    request[i],
+                    i + 1 < request.size() ? zmq::send_flags::sndmore : zmq::send_flags::none);
+        }
+        return true;
+    }
+    return false;
+}
+
+bool RpcBroker::close() {
+    try {
+        if (this->proxy_thread_ != nullptr) {
+            this->control_.send(zmq::str_buffer("TERMINATE"), zmq::send_flags::none);
+            this->proxy_thread_->join();
+            this->proxy_thread_ = nullptr;
+        }
+        this->frontend_.close();
+        this->backend_.close();
+        this->control_.close();
+        this->control_listener_.close();
+        return true;
+    } catch (std::exception &e) {
+        LOGE(this->tag_.c_str(), "Error in closing broker : %s", e.what());
+        return false;
+    }
+}
+
+zmq::context_t &RpcBroker::context() {
+    return this->context_;
+}
+
+const std::string &RpcBroker::backendAddress() const {
+    return this->backend_address_;
+}
@@ -0,0 +1,199 @@
+#include "sensor/sensor_asset.h"
+
+#include <algorithm>
+
+#include "utils.h"
+
+#define TAG "NativeSensorAsset"
+
+// a slot is busy until libzmq wrote the event to every subscriber
+#define POOL_SLOT_COUNT 16
+
+struct sensor_kind_t {
+    int type;
+    // published on device_<name>
+    const char *name;
+    // ASensorEvent::data values published, in their order
+    size_t value_count;
+};
+
+// every sensor the asset publishes, the Kotlin side lists them through
+// SensorAsset::Describe, so adding one is adding a line here
+static const sensor_kind_t SENSOR_KINDS[] = {
+        {ASENSOR_TYPE_MAGNETIC_FIELD,       "magnetometer",         3},
+        {ASENSOR_TYPE_LIGHT,                "light",                1},
+        {ASENSOR_TYPE_PRESSURE,             "barometer",            1},
+        {ASENSOR_TYPE_PROXIMITY,            "proximity",            1},
+        {ASENSOR_TYPE_GRAVITY,              "gravity",              3},
+        {ASENSOR_TYPE_LINEAR_ACCELERATION,  "linear_acceleration",  3},
+        {ASENSOR_TYPE_RELATIVE_HUMIDITY,    "humidity",             1},
+        {ASENSOR_TYPE_AMBIENT_TEMPERATURE,  "temperature",          1},
+        {ASENSOR_TYPE_GAME_ROTATION_VECTOR, "game_rotation_vector", 4},
+};
+
+static const sensor_kind_t *FindKind(int type) {
+    for (const auto &kind : SENSOR_KINDS) {
+        if (kind.type == type) {
+            return &kind;
+        }
+    }
+    return nullptr;
+}
+
+SensorStream::SensorStream(int type, size_t value_count, const std::string &address)
+        : type_(type),
+          value_count_(value_count),
+          address_(address),
+          pool_(new BufferPool(POOL_SLOT_COUNT, MAX_SIZE)),
+          is_running_(false) {
+    this->message_.set_type(type);
+    for (size_t i = 0; i < value_count; i++) {
+        this->message_.add_values(0);
+    }
+    try {
+        // like the IMU streams, subscribers that only want the latest event set
+        // ZMQ_CONFLATE on their own socket
+        this->publisher_ = std::make_unique<Publisher>(address);
+        // events are delivered on the looper of this thread
+        this->sensor_manager_ = std::make_unique<NdkSensorManager>();
+        this->sensor_manager_->setListener(this);
+    } catch (std::exception &e) {
+        LOGE(TAG, "Error in creating sensor %d stream : %s", type, e.what());
+    }
+}
+
+SensorStream::~SensorStream() {
+    Stop();
+    // in-flight slots keep the memory alive until libzmq releases them
+    this->pool_->Destroy();
+}
+
+void SensorStream::Start(uint16_t fps, int64_t max_report_latency_us) {
+    Stop();
+    if (this->sensor_manager_ == nullptr || this->publisher_ == nullptr) {
+        return;
+    }
+    this->sensor_manager_->registerSensor(
+            {this->type_}, (int32_t) (1000000 / std::max<uint16_t>(fps, 1)),
+            max_report_latency_us);
+    this->is_running_ = true;
+    LOGI(TAG, "Publishing sensor %d on %s at %d hz", this->type_, this->address_.c_str(), fps);
+}
+
+void SensorStream::Stop() {
+    if (!this->is_running_) {
+        return;
+    }
+    this->is_running_ = false;
+    this->sensor_manager_->unregister();
+}
+
+void SensorStream::onSensorEvents(ASensorEvent *events, size_t count) {
+    if (!this->is_running_) {
+        return;
+    }
+    for (size_t i = 0; i < count; i++) {
+        if (events[i].type == this->type_) {
+            Publish(events[i]);
+        }
+    }
+}
+
+void SensorStream::Publish(const ASensorEvent &event) {
+    try {
+        uint64_t publish_ts = BootTimeNs();
+
+        int32_t index = this->pool_->Acquire();
+        if (index < 0) {
+            // every slot is still queued in libzmq, fall back to a copying send
+            uint8_t buffer[MAX_SIZE];
+            size_t size = Encode(event, publish_ts, buffer, sizeof(buffer));
+            this->publisher_->SendData(buffer, (int) size);
+            return;
+        }
+        size_t size = Encode(event, publish_ts, this->pool_->Data(index), this->pool_->Capacity());
+        this->publisher_->SendData(this->pool_->BeginSend(index), 0, size);
+    } catch (std::exception &e) {
+        LOGE(TAG, "Error in publishing sensor %d : %s", this->type_, e.what());
+    }
+}
+
+size_t SensorStream::Encode(const ASensorEvent &event, uint64_t publish_ts,
+                            uint8_t *out, size_t capacity) {
+    for (size_t i = 0; i < this->value_count_; i++) {
+        this->message_.set_values((int) i, event.data[i]);
+    }
+    this->message_.set_timestamp_ns(event.timestamp);
+    this->message_.set_publish_timestamp_ns(publish_ts);
+
+    // computes and caches the sizes once, SerializeToArray would do it again
+    size_t size = this->message_.ByteSizeLong();
+    if (size > capacity) {
+        return 0;
+    }
+    this->message_.SerializeWithCachedSizesToArray(out);
+    return size;
+}
+
+SensorAsset::~SensorAsset() {
+    Stop(0);
+}
+
+std::vector<sensor_info_t> SensorAsset::Describe() {
+    std::vector<sensor_info_t> sensors;
+    ASensorManager *sensor_manager = ASensorManager_getInstance();
+    for (const auto &kind : SENSOR_KINDS) {
+        const ASensor *sensor = ASensorManager_getDefaultSensor(sensor_manager, kind.type);
+        if (sensor == nullptr) {
+            continue;
+        }
+        int reporting_mode = ASensor_getReportingMode(sensor);
+        // a one shot sensor disables itself after its event, it is not a stream
+        if (reporting_mode == AREPORTING_MODE_ONE_SHOT) {
+            continue;
+        }
+        sensor_info_t info{};
+        info.type = kind.type;
+        info.name = kind.name;
+        info.min_delay_us = ASensor_getMinDelay(sensor);
+        info.fifo_max_event_count = ASensor_getFifoMaxEventCount(sensor);
+        info.fifo_reserved_event_count = ASensor_getFifoReservedEventCount(sensor);
+        info.reporting_mode = reporting_mode;
+        sensors.push_back(info);
+    }
+    return sensors;
+}
+
+const char *SensorAsset::Name(int type) {
+    const sensor_kind_t *kind = FindKind(type);
+    return kind != nullptr ? kind->name : nullptr;
+}
+
+bool SensorAsset::Start(int type, uint16_t fps, int64_t max_report_latency_us,
+                        const std::string &address) {
+    const sensor_kind_t *kind = FindKind(type);
+    if (kind == nullptr) {
+        LOGE(TAG, "Sensor %d is not supported", type);
+        return false;
+    }
+    if (ASensorManager_getDefaultSensor(ASensorManager_getInstance(), type) == nullptr) {
+        LOGE(TAG, "Device has no sensor %d", type);
+        return false;
+    }
+    auto it = this->streams_.find(type);
+    if (it == this->streams_.end()) {
+        it = this->streams_.emplace(
+                type, std::make_unique<SensorStream>(type, kind->value_count, address)).first;
+    }
+    // registers the sensor again with the new options
+    it->second->Start(fps, max_report_latency_us);
+    return true;
+}
+
+void SensorAsset::Stop(int type) {
+    if (type == 0) {
+        this->streams_.clear();
+        return;
+    }
+    this->streams_.erase(type);
+}
@@ -5,38 +5,148 @@
 #include <jni.h>
 #include <sstream>
 #include <memory>
+#include <algorithm>
 #include "sensor/imu.h"
+#include "sensor/sensor_asset.h"
 
 #define TAG "SensorListener"
 
 std::unique_ptr<Imu> device_imu_;
+std::unique_ptr<SensorAsset> device_sensors_;
+
+static std::string ToString(JNIEnv *env, jstring string) {
+    const char *cstr = env->GetStringUTFChars(string, NULL);
+    std::string _string(cstr);
+    env->ReleaseStringUTFChars(string, cstr);
+    return _string;
+}
 
 extern "C"
 JNIEXPORT jlong JNICALL
 Java_com_flomobility_anx_native_NativeSensors_initImu(
+        JNIEnv *env,
+        jobject thiz) {
+    // the sensor events are delivered on the looper of the calling thread
+    if (device_imu_ == nullptr) {
+        device_imu_ = std::make_unique<Imu>();
+    }
+    return (jlong) device_imu_.get();
+}
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_flomobility_anx_native_NativeSensors_startImuStream(
         JNIEnv *env,
         jobject thiz,
         jint fps,
-        jstring address) {
-    const char *cstr = env->GetStringUTFChars(address, NULL);
-    std::string _address(cstr);
-    env->ReleaseStringUTFChars(address, cstr);
+        jstring address,
+        jstring legacy_address,
+        jint publish_mode,
+        jint trigger_sensor,
+        jint batch_size,
+        jint max_batch_latency_us,
+        jint encoding,
+        jint orientation_source) {
+    imu_stream_options_t options;
+    options.fps = (uint16_t) fps;
+    options.mode = (ImuPublishMode) publish_mode;
+    options.trigger_sensor = trigger_sensor;
+    options.batch_size = (uint32_t) batch_size;
+    options.max_batch_latency_us = (int64_t) max_batch_latency_us;
+    options.encoding = (ImuEncoding) encoding;
+    options.orientation_source = (ImuOrientationSource) orientation_source;
 
-    device_imu_ = std::make_unique<Imu>(/*fps*/fps, _address);
-    return (jlong) device_imu_.get();
+    return device_imu_->startStream(
+            options, ToString(env, address),
+            legacy_address != nullptr ? ToString(env, legacy_address) : "");
 }
 extern "C"
 JNIEXPORT void JNICALL
-Java_com_flomobility_anx_native_NativeSensors_startImu(
+Java_com_flomobility_anx_native_NativeSensors_stopImuStream(
         JNIEnv *env,
-        jobject thiz) {
-    device_imu_->start();
-
+        jobject thiz,
+        jint fps) {
+    if (device_imu_ != nullptr) {
+        device_imu_->stopStream((uint16_t) fps);
+    }
 }
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_flomobility_anx_native_NativeSensors_stopImu(
         JNIEnv *env,
         jobject thiz) {
-    device_imu_->stop();
+    if (device_imu_ != nullptr) {
+        device_imu_->stop();
+    }
+}
+extern "C"
+JNIEXPORT jbyteArray JNICALL
+Java_com_flomobility_anx_native_NativeSensors_getImuHistory(
+        JNIEnv *env,
+        jobject thiz,
+        jlong since_ns,
+        jint max_samples,
+        jboolean fused_orientation) {
+    // called from the rpc thread, the history is read without locking
+    std::vector<uint8_t> samples;
+    if (device_imu_ != nullptr) {
+        device_imu_->readHistory(since_ns, (size_t) std::max(max_samples, 0),
+                                 fused_orientation, samples);
+    }
+    jbyteArray array = env->NewByteArray((jsize) samples.size());
+    env->SetByteArrayRegion(array, 0, (jsize) samples.size(), (const jbyte *) samples.data());
+    return array;
+}
+extern "C"
+JNIEXPORT jintArray JNICALL
+Java_com_flomobility_anx_native_NativeSensors_describeSensors(
+        JNIEnv *env,
+        jobject thiz) {
+    std::vector<sensor_info_t> sensors = SensorAsset::Describe();
+    // SENSOR_INFO_FIELDS values per sensor, in the order of NativeSensors
+    std::vector<jint> values;
+    for (const auto &sensor : sensors) {
+        values.push_back(sensor.type);
+        values.push_back(sensor.min_delay_us);
+        values.push_back(sensor.fifo_max_event_count);
+        values.push_back(sensor.fifo_reserved_event_count);
+        values.push_back(sensor.reporting_mode);
+    }
+    jintArray array = env->NewIntArray((jsize) values.size());
+    env->SetIntArrayRegion(array, 0, (jsize) values.size(), values.data());
+    return array;
+}
+extern "C"
+JNIEXPORT jstring JNICALL
+Java_com_flomobility_anx_native_NativeSensors_getSensorName(
+        JNIEnv *env,
+        jobject thiz,
+        jint type) {
+    const char *name = SensorAsset::Name(type);
+    return name != nullptr ? env->NewStringUTF(name) : nullptr;
+}
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_flomobility_anx_native_NativeSensors_startSensor(
+        JNIEnv *env,
+        jobject thiz,
+        jint type,
+        jint fps,
+        jint max_report_latency_us,
+        jstring address) {
+    // the sensor events are delivered on the looper of the calling thread
+    if (device_sensors_ == nullptr) {
+        device_sensors_ = std::make_unique<SensorAsset>();
+    }
+    return device_sensors_->Start(type, (uint16_t) fps, (int64_t) max_report_latency_us,
+                                  ToString(env, address));
+}
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_flomobility_anx_native_NativeSensors_stopSensor(
+        JNIEnv *env,
+        jobject thiz,
+        jint type) {
+    if (device_sensors_ != nullptr) {
+        device_sensors_->Stop(type);
+    }
 }
@@ -0,0 +1,339 @@
+#include "ipc/shm_ring.h"
+
+#include <cerrno>
+#include <cstring>
+#include <new>
+#include <stdexcept>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <sys/un.h>
+#include <unistd.h>
+
+#ifndef MFD_CLOEXEC
+#define MFD_CLOEXEC 0x0001U
+#endif
+#ifndef MFD_ALLOW_SEALING
+#define MFD_ALLOW_SEALING 0x0002U
+#endif
+#ifndef F_ADD_SEALS
+#define F_ADD_SEALS 1033
+#define F_SEAL_SEAL 0x0001
+#define F_SEAL_SHRINK 0x0002
+#define F_SEAL_GROW 0x0004
+#endif
+#ifndef F_SEAL_FUTURE_WRITE
+#define F_SEAL_FUTURE_WRITE 0x0010
+#endif
+
+namespace {
+
+    size_t alignUp(size_t value, size_t alignment) {
+        return (value + alignment - 1) & ~(alignment - 1);
+    }
+
+    int createMemfd(const std::string& name) {
+        // memfd_create only got a libc wrapper in API 30
+        return (int) syscall(__NR_memfd_create, name.c_str(), MFD_CLOEXEC | MFD_ALLOW_SEALING);
+    }
+
+    size_t slotsOffset() {
+        return alignUp(sizeof(shm_ring_header_t), 64);
+    }
+
+    bool fillSocketAddress(const std::string& path, sockaddr_un* addr) {
+        memset(addr, 0, sizeof(sockaddr_un));
+        addr->sun_family = AF_UNIX;
+        if (path.size() >= sizeof(addr->sun_path)) return false;
+        memcpy(addr->sun_path, path.c_str(), path.size());
+        return true;
+    }
+
+}
+
+ShmRingWriter::ShmRingWriter(const std::string& name, const std::string& socket_path,
+                             uint32_t slot_count, uint32_t slot_size)
+        : memfd_(-1),
+          listen_fd_(-1),
+          map_size_(0),
+          map_(nullptr),
+          header_(nullptr),
+          next_sequence_(0),
+          socket_path_(socket_path),
+          running_(false),
+          tag_("NativeZmqShmRingWriter") {
+    uint32_t stride = alignUp(sizeof(shm_slot_header_t) + slot_size, 64);
+    map_size_ = slotsOffset() + (size_t) stride * slot_count;
+
+    memfd_ = createMemfd(name);
+    if (memfd_ < 0 || ftruncate(memfd_, (off_t) map_size_) != 0) {
+        std::string error = strerror(errno);
+        if (memfd_ >= 0) ::close(memfd_);
+        throw std::runtime_error("memfd setup failed : " + error);
+    }
+    void* map = mmap(nullptr, map_size_, PROT_READ | PROT_WRITE, MAP_SHARED, memfd_, 0);
+    if (map == MAP_FAILED) {
+        ::close(memfd_);
+        throw std::runtime_error(std::string("mmap failed : ") + strerror(errno));
+    }
+    map_ = static_cast<BYTE*>(map);
+
+    // readers get the same fd, they must neither resize the ring under the
+    // writer nor map it writable. F_SEAL_FUTURE_WRITE keeps the mapping above
+    // writable, it needs Linux 5.1 or a kernel with the Android backport.
+    if (fcntl(memfd_, F_ADD_SEALS, F_SEAL_SHRINK | F_SEAL_GROW) != 0) {
+        LOGW(this->tag_.c_str(), "Could not seal ring size : %s", strerror(errno));
+    }
+    if (fcntl(memfd_, F_ADD_SEALS, F_SEAL_FUTURE_WRITE) != 0) {
+        LOGW(this->tag_.c_str(), "Could not seal ring writes : %s", strerror(errno));
+    }
+    (void) fcntl(memfd_, F_ADD_SEALS, F_SEAL_SEAL);
+
+    // the memfd starts zeroed, every slot sequence reads as never written
+    header_ = new (map_) shm_ring_header_t();
+    header_->magic = SHM_RING_MAGIC;
+    header_->version = SHM_RING_VERSION;
+    header_->slot_count = slot_count;
+    header_->slot_size = slot_size;
+    header_->slot_stride = stride;
+    header_->write_sequence.store(0, std::memory_order_relaxed);
+
+    sockaddr_un addr{};
+    if (!fillSocketAddress(socket_path_, &addr)) {
+        close();
+        throw std::runtime_error("socket path too long : " + socket_path_);
+    }
+    unlink(socket_path_.c_str());
+    listen_fd_ = socket(AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0);
+    if (listen_fd_ < 0
+        || bind(listen_fd_, (sockaddr*) &addr, sizeof(addr)) != 0
+        || listen(listen_fd_, 8) != 0) {
+        std::string error = strerror(errno);
+        close();
+        throw std::runtime_error("fd socket setup failed : " + error);
+    }
+    running_ = true;
+    fd_thread_ = std::make_unique<std::thread>(&ShmRingWriter::serveFd, this);
+    LOGI(this->tag_.c_str(), "Ring of %u x %u bytes served on %s",
+         slot_count, slot_size, socket_path_.c_str());
+}
+
+ShmRingWriter::~ShmRingWriter() {
+    close();
+}
+
+void ShmRingWriter::serveFd() {
+    while (running_) {
+        int client = accept4(listen_fd_, nullptr, nullptr, SOCK_CLOEXEC);
+        if (client < 0) {
+            if (errno == EINTR) continue;
+            break;
+        }
+        char byte = 0;
+        iovec iov{&byte, 1};
+        char control[CMSG_SPACE(sizeof(int))] = {};
+        msghdr msg{};
+        msg.msg_iov = &iov;
+        msg.msg_iovlen = 1;
+        msg.msg_control = control;
+        msg.msg_controllen = sizeof(control);
+        cmsghdr* cmsg = CMSG_FIRSTHDR(&msg);
+        cmsg->cmsg_level = SOL_SOCKET;
+        cmsg->cmsg_type = SCM_RIGHTS;
+        cmsg->cmsg_len = CMSG_LEN(sizeof(int));
+        memcpy(CMSG_DATA(cmsg), &memfd_, sizeof(int));
+        if (sendmsg(client, &msg, MSG_NOSIGNAL) < 0) {
+            LOGE(this->tag_.c_str(), "Error in sending ring fd : %s", strerror(errno));
+        }
+        ::close(client);
+    }
+}
+
+shm_slot_header_t* ShmRingWriter::slot(uint32_t index) {
+    size_t offset = slotsOffset() + (size_t) index * header_->slot_stride;
+    return reinterpret_cast<shm_slot_header_t*>(map_ + offset);
+}
+
+bool ShmRingWriter::Write(const BYTE* data, size_t length, uint64_t timestamp_ns, shm_frame_t* frame) {
+    if (length > header_->slot_size) {
+        LOGE(this->tag_.c_str(), "Frame of %zu bytes does not fit a %u byte slot",
+             length, header_->slot_size);
+        return false;
+    }
+    uint64_t sequence = next_sequence_++;
+    auto index = (uint32_t) (sequence % header_->slot_count);
+    shm_slot_header_t* s = slot(index);
+
+    s->sequence.store(2 * sequence + 1, std::memory_order_relaxed);
+    std::atomic_thread_fence(std::memory_order_release);
+    memcpy(reinterpret_cast<BYTE*>(s + 1), data, length);
+    s->timestamp_ns = timestamp_ns;
+    s->size = (uint32_t) length;
+    s->sequence.store(2 * sequence + 2, std::memory_order_release);
+    header_->write_sequence.store(sequence + 1, std::memory_order_release);
+
+    frame->slot = index;
+    frame->sequence = sequence;
+    frame->size = (uint32_t) length;
+    frame->timestamp_ns = timestamp_ns;
+    return true;
+}
+
+uint32_t ShmRingWriter::SlotCount() const {
+    return header_->slot_count;
+}
+
+uint32_t ShmRingWriter::SlotSize() const {
+    return header_->slot_size;
+}
+
+bool ShmRingWriter::close() {
+    running_ = false;
+    if (listen_fd_ >= 0) {
+        // wakes up accept() in the fd thread
+        shutdown(listen_fd_, SHUT_RDWR);
+    }
+    if (fd_thread_ && fd_thread_->joinable()) {
+        fd_thread_->join();
+    }
+    fd_thread_.reset();
+    if (listen_fd_ >= 0) {
+        ::close(listen_fd_);
+        unlink(socket_path_.c_str());
+        listen_fd_ = -1;
+    }
+    if (map_ != nullptr) {
+        munmap(map_, map_size_);
+        map_ = nullptr;
+        header_ = nullptr;
+    }
+    if (memfd_ >= 0) {
+        ::close(memfd_);
+        memfd_ = -1;
+    }
+    return true;
+}
+
+ShmRingReader::ShmRingReader(const std::string& socket_path)
+        : map_size_(0),
+          map_(nullptr),
+          header_(nullptr),
+          slot_count_(0),
+          slot_size_(0),
+          slot_stride_(0),
+          tag_("NativeZmqShmRingReader") {
+    sockaddr_un addr{};
+    if (!fillSocketAddress(socket_path, &addr)) {
+        throw std::runtime_error("socket path too long : " + socket_path);
+    }
+    int sock = socket(AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0);
+    if (sock < 0 || connect(sock, (sockaddr*) &addr, sizeof(addr)) != 0) {
+        std::string error = strerror(errno);
+        if (sock >= 0) ::close(sock);
+        throw std::runtime_error("Could not reach ring at " + socket_path + " : " + error);
+    }
+    char byte;
+    iovec iov{&byte, 1};
+    char control[CMSG_SPACE(sizeof(int))] = {};
+    msghdr msg{};
+    msg.msg_iov = &iov;
+    msg.msg_iovlen = 1;
+    msg.msg_control = control;
+    msg.msg_controllen = sizeof(control);
+    ssize_t received = recvmsg(sock, &msg, MSG_CMSG_CLOEXEC);
+    ::close(sock);
+    cmsghdr* cmsg = CMSG_FIRSTHDR(&msg);
+    if (received <= 0 || cmsg == nullptr || cmsg->cmsg_type != SCM_RIGHTS) {
+        throw std::runtime_error("No ring fd received from " + socket_path);
+    }
+    int fd;
+    memcpy(&fd, CMSG_DATA(cmsg), sizeof(int));
+
+    struct stat st{};
+    if (fstat(fd, &st) != 0 || st.st_size < (off_t) slotsOffset()) {
+        ::close(fd);
+        throw std::runtime_error("Ring at " + socket_path + " is too small");
+    }
+    map_size_ = (size_t) st.st_size;
+    void* map = mmap(nullptr, map_size_, PROT_READ, MAP_SHARED, fd, 0);
+    // the mapping keeps the memory alive
+    ::close(fd);
+    if (map == MAP_FAILED) {
+        throw std::runtime_error(std::string("mmap failed : ") + strerror(errno));
+    }
+    map_ = static_cast<const BYTE*>(map);
+    header_ = reinterpret_cast<const shm_ring_header_t*>(map_);
+    if (header_->magic != SHM_RING_MAGIC || header_->version != SHM_RING_VERSION) {
+        close();
+        throw std::runtime_error("Unsupported ring at " + socket_path);
+    }
+    slot_count_ = header_->slot_count;
+    slot_size_ = header_->slot_size;
+    slot_stride_ = header_->slot_stride;
+    // every slot the header describes must lie within the mapping, Read trusts it
+    uint64_t slots_size = (uint64_t) slot_stride_ * slot_count_;
+    if (slot_count_ == 0
+        || slot_stride_ < sizeof(shm_slot_header_t) + (uint64_t) slot_size_
+        || slots_size > map_size_ - slotsOffset()) {
+        close();
+        throw std::runtime_error("Ring at " + socket_path + " does not match its header");
+    }
+}
+
+ShmRingReader::~ShmRingReader() {
+    close();
+}
+
+const shm_slot_header_t* ShmRingReader::slot(uint32_t index) const {
+    size_t offset = slotsOffset() + (size_t) index * slot_stride_;
+    return reinterpret_cast<const shm_slot_header_t*>(map_ + offset);
+}
+
+int64_t ShmRingReader::Read(const shm_frame_t& frame, BYTE* dst, size_t capacity) {
+    if (frame.slot >= slot_count_ || frame.size > slot_size_) {
+        return SHM_READ_INVALID;
+    }
+    if (frame.size > capacity) {
+        return SHM_READ_TRUNCATED;
+    }
+    const shm_slot_header_t* s = slot(frame.slot);
+    uint64_t expected = 2 * frame.sequence + 2;
+    if (s->sequence.load(std::memory_order_acquire) != expected) {
+        return SHM_READ_LAPPED;
+    }
+    memcpy(dst, reinterpret_cast<const BYTE*>(s + 1), frame.size);
+    std::atomic_thread_fence(std::memory_order_acquire);
+    if (s->sequence.load(std::memory_order_relaxed) != expected) {
+        return SHM_READ_LAPPED;
+    }
+    return frame.size;
+}
+
+const BYTE* ShmRingReader::Peek(const shm_frame_t& frame) {
+    if (frame.slot >= slot_count_ || frame.size > slot_size_ || !Validate(frame)) {
+        return nullptr;
+    }
+    return reinterpret_cast<const BYTE*>(slot(frame.slot) + 1);
+}
+
+bool ShmRingReader::Validate(const shm_frame_t& frame) {
+    if (frame.slot >= slot_count_) return false;
+    std::atomic_thread_fence(std::memory_order_acquire);
+    return slot(frame.slot)->sequence.load(std::memory_order_acquire) == 2 * frame.sequence + 2;
+}
+
+uint64_t ShmRingReader::Lag(const shm_frame_t& frame) const {
+    uint64_t written = header_->write_sequence.load(std::memory_order_acquire);
+    return written > frame.sequence + 1 ? written - frame.sequence - 1 : 0;
+}
+
+bool ShmRingReader::close() {
+    if (map_ != nullptr) {
+        munmap(const_cast<BYTE*>(map_), map_size_);
+        map_ = nullptr;
+        header_ = nullptr;
+    }
+    return true;
+}
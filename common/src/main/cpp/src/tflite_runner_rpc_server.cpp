@@ -9,181 +9,211 @@
 TfLiteRunnerRpcServer::TfLiteRunnerRpcServer(
         const std::string &address,
         TfliteRunner::DelegateType delegate):
-        is_running_(false),
-        socket_(ctx_, zmq::socket_type::rep) {
+        socket_(ZmqContext::Get(), zmq::socket_type::rep),
+        is_running_(false) {
     this->delegate_ = delegate;
     this->socket_.bind(address);
-    this->poll_.socket = this->socket_;
-    this->poll_.fd = 0;
-    this->poll_.events = ZMQ_POLLIN;
-    this->poll_.revents = 0;
 }
 
 TfLiteRunnerRpcServer::~TfLiteRunnerRpcServer() {
-    this->is_running_ = false;
-    this->server_thread_->join();
+    if (this->server_thread_ != nullptr) {
+        {
+            std::lock_guard<std::mutex> lock(this->mutex_);
+            this->is_running_ = false;
+        }
+        this->requests_cv_.notify_one();
+        // finishes a request in progress, its reply is posted before the removal below
+        this->server_thread_->join();
+        this->server_thread_ = nullptr;
+        // waits for the posted replies, the handlers never run afterwards
+        Reactor::Shared().remove(this->socket_);
+    }
 }
 
 void TfLiteRunnerRpcServer::Start() {
     this->is_running_ = true;
     this->server_thread_ = std::make_unique<std::thread>(&TfLiteRunnerRpcServer::Loop, this);
+    Reactor::Shared().add(this->socket_, [this]() { ReceiveRequest(); });
+    LOGI(TAG, "TfLiteRunner RPC Server running");
+}
+
+void TfLiteRunnerRpcServer::ReceiveRequest() {
+    try {
+        // a REP socket is not readable again until the reply is sent, so at most
+        // one request is queued
+        std::vector<zmq::message_t> frames;
+        if (!zmq::recv_multipart(this->socket_, std::back_inserter(frames), zmq::recv_flags::dontwait)) {
+            return;
+        }
+        request_t request;
+        request.rpc_name = frames[0].to_string();
+        if (frames.size() > 1) {
+            request.payload = frames[1].to_string();
+        }
+        {
+            std::lock_guard<std::mutex> lock(this->mutex_);
+            this->requests_.push_back(std::move(request));
+        }
+        this->requests_cv_.notify_one();
+    } catch (std::exception &e) {
+        LOGE(TAG, "Error in receiving request : %s", e.what());
+    }
+}
+
+void TfLiteRunnerRpcServer::SendReply(std::vector<std::string> reply) {
+    Reactor::Shared().post([this, reply = std::move(reply)]() {
+        for (size_t i = 0; i < reply.size(); i++) {
+            this->socket_.send(
+                    zmq::message_t(reply[i]),
+                    i + 1 < reply.size() ? zmq::send_flags::sndmore : zmq::send_flags::none);
+        }
+    });
 }
 
 void TfLiteRunnerRpcServer::Loop() {
-    LOGI(TAG, "TfLiteRunner RPC Server running");
-    while(this->is_running_) {
-        try {
-            zmq::message_t req;
-            zmq::poll(&this->poll_, 1, TIMEOUT_IN_MS);
-
-            if (this->poll_.revents & ZMQ_POLLIN) {
-                this->socket_.recv(&req);
-                std::string rpc_name = req.to_string();
-
-//                if (!req.more()) {
-//                    std::stringstream ss;
-//                    ss << "RPC " << rpc_name << "has no payload";
-//                    LOGE(TAG, "%s", ss.str().c_str());
+    while (true) {
+        request_t request;
+        {
+            std::unique_lock<std::mutex> lock(this->mutex_);
+            this->requests_cv_.wait(lock, [this]() {
+                return !this->is_running_ || !this->requests_.empty();
+            });
+            if (!this->is_running_) break;
+            request = std::move(this->requests_.front());
+            this->requests_.pop_front();
+        }
+        std::vector<std::string> reply = HandleRequest(request);
+        if (!reply.empty()) {
+            SendReply(std::move(reply));
+        }
+    }
+    // the model was loaded on this thread, release it here too
+    UnloadModel();
+}
+
+std::vector<std::string> TfLiteRunnerRpcServer::HandleRequest(const request_t &request) {
+    try {
+        const std::string &rpc_name = request.rpc_name;
+
+//        if (request.payload.empty()) {
+//            std::stringstream ss;
+//            ss << "RPC " << rpc_name << "has no payload";
+//            LOGE(TAG, "%s", ss.str().c_str());
 //
-//                    anx::StdResponse res;
-//                    res.set_success(false);
-//                    res.set_message(ss.str());
+//            anx::StdResponse res;
+//            res.set_success(false);
+//            res.set_message(ss.str());
 //
-//                    socket_.send(
-//                            zmq::message_t(res.SerializeAsString()),
-//                            zmq::send_flags::none);
-//                    continue;
-//                }
-
-                LOGI(TAG, "Received rpc %s", rpc_name.c_str());
-
-                if (rpc_name == LOAD_MODEL_RPC) {
-                    zmq::message_t data_msg;
-
-                    socket_.recv(&data_msg);
-                    std::string payload_str = data_msg.to_string();
-
-                    UnloadModel();
-
-                    this->tflite_runners_.emplace_back();
-
-                    anx::Payload payload;
-                    payload.ParseFromString(payload_str);
-                    TfliteRunner::ModelMeta model_meta = this->tflite_runners_[0].LoadModel(
-                            (char *)(payload.payload().data()),
-                            payload.payload().size(),
-                            this->delegate_);
-
-                    anx::StdResponse res;
-                    res.set_success(true);
-                    socket_.send(
-                            zmq::message_t(res.SerializeAsString()),
-                            zmq::send_flags::sndmore);
-
-                    anx::ModelMeta meta;
-                    // populate input meta
-                    for(auto & input_tensor : model_meta.input_tensors) {
-                        anx::TensorMeta* tensor_meta = meta.add_input_tensors();
-
-                        tensor_meta->set_dtype(input_tensor.dtype);
-                        for(int dim : input_tensor.dims) {
-                            tensor_meta->add_dims(dim);
-                        }
-                    }
-
-                    // populate output meta
-                    for(auto & output_tensor : model_meta.output_tensors) {
-                        anx::TensorMeta* tensor_meta = meta.add_output_tensors();
-
-                        tensor_meta->set_dtype(output_tensor.dtype);
-                        for(int dim : output_tensor.dims) {
-                            tensor_meta->add_dims(dim);
-                        }
-                    }
-
-                    socket_.send(
-                            zmq::message_t(meta.SerializeAsString()),
-                            zmq::send_flags::none);
-                    continue;
+//            return {res.SerializeAsString()};
+//        }
+
+        LOGI(TAG, "Received rpc %s", rpc_name.c_str());
+
+        if (rpc_name == LOAD_MODEL_RPC) {
+            UnloadModel();
+
+            this->tflite_runners_.emplace_back();
+
+            anx::Payload payload;
+            payload.ParseFromString(request.payload);
+            TfliteRunner::ModelMeta model_meta = this->tflite_runners_[0].LoadModel(
+                    (char *)(payload.payload().data()),
+                    payload.payload().size(),
+                    this->delegate_);
+
+            anx::StdResponse res;
+            res.set_success(true);
+
+            anx::ModelMeta meta;
+            // populate input meta
+            for(auto & input_tensor : model_meta.input_tensors) {
+                anx::TensorMeta* tensor_meta = meta.add_input_tensors();
+
+                tensor_meta->set_dtype(input_tensor.dtype);
+                for(int dim : input_tensor.dims) {
+                    tensor_meta->add_dims(dim);
                 }
+            }
 
-                if (rpc_name == INVOKE_MODEL_RPC) {
-                    try {
-                        zmq::message_t data_msg;
-
-                        socket_.recv(&data_msg);
-                        std::string payload_str = data_msg.to_string();
-
-                        anx::PayloadArray payload;
-                        payload.ParseFromString(payload_str);
-
-                        if(payload.payloads_size() != this->tflite_runners_[0].input_tensors_.size()) {
-                            LOGE(TAG, "Received %d input tensors, but expected %ld", payload.payloads_size(), this->tflite_runners_[0].input_tensors_.size());
-                            continue;
-                        }
-
-                        for(int i = 0; i < payload.payloads_size(); i++) {
-                            // 1. Set Input tensor
-                            memcpy(this->tflite_runners_[0].input_tensors_[i]->data.data,
-                                   payload.payloads(i).data(),
-                                   this->tflite_runners_[0].input_tensors_[i]->bytes
-                            );
-                        }
-
-                        // 2. Invoke Model
-                        this->tflite_runners_[0].InvokeModel();
-
-                        // 3. Get Output tensor
-                        anx::PayloadArray output_payload;
-                        for(auto & output_tensor : this->tflite_runners_[0].output_tensors_) {
-                            // populate the payload
-                            output_payload.add_payloads(
-                                    output_tensor->data.data,
-                                    output_tensor->bytes);
-                        }
-
-                        std::string rep_string;
-                        output_payload.SerializeToString(&rep_string);
-                        socket_.send(zmq::message_t(rep_string), zmq::send_flags::none);
-                    } catch (std::exception &e) {
-                        LOGE(TAG, "Error in Invoking model : %s", e.what());
-                    }
-                    continue;
+            // populate output meta
+            for(auto & output_tensor : model_meta.output_tensors) {
+                anx::TensorMeta* tensor_meta = meta.add_output_tensors();
+
+                tensor_meta->set_dtype(output_tensor.dtype);
+                for(int dim : output_tensor.dims) {
+                    tensor_meta->add_dims(dim);
                 }
+            }
 
-                if (rpc_name == UNLOAD_MODEL_RPC) {
-                    zmq::message_t data_msg;
+            return {res.SerializeAsString(), meta.SerializeAsString()};
+        }
 
-                    socket_.recv(&data_msg);
+        if (rpc_name == INVOKE_MODEL_RPC) {
+            try {
+                anx::PayloadArray payload;
+                payload.ParseFromString(request.payload);
 
-                    UnloadModel();
+                if(payload.payloads_size() != this->tflite_runners_[0].input_tensors_.size()) {
+                    LOGE(TAG, "Received %d input tensors, but expected %ld", payload.payloads_size(), this->tflite_runners_[0].input_tensors_.size());
+                    return {};
+                }
 
-                    anx::StdResponse res;
-                    res.set_success(true);
-                    res.set_message("");
-                    socket_.send(zmq::message_t(res.SerializeAsString()), zmq::send_flags::none);
-                    continue;
+                for(int i = 0; i < payload.payloads_size(); i++) {
+                    // 1. Set Input tensor
+                    memcpy(this->tflite_runners_[0].input_tensors_[i]->data.data,
+                           payload.payloads(i).data(),
+                           this->tflite_runners_[0].input_tensors_[i]->bytes
+                    );
                 }
 
-                // unknown RPC
-                std::stringstream ss;
-                ss << "Unknown RPC : " << rpc_name;
-                std::string res_str;
-                ss.str(res_str);
-                LOGE(TAG, "%s", res_str.c_str());
+                // 2. Invoke Model
+                this->tflite_runners_[0].InvokeModel();
 
-                anx::StdResponse res;
-                res.set_success(false);
-                res.set_message(res_str.c_str(), res_str.size());
+                // 3. Get Output tensor
+                anx::PayloadArray output_payload;
+                for(auto & output_tensor : this->tflite_runners_[0].output_tensors_) {
+                    // populate the payload
+                    output_payload.add_payloads(
+                            output_tensor->data.data,
+                            output_tensor->bytes);
+                }
 
                 std::string rep_string;
-                res.SerializeToString(&rep_string);
-                socket_.send(zmq::message_t(rep_string), zmq::send_flags::none);
+                output_payload.SerializeToString(&rep_string);
+                return {rep_string};
+            } catch (std::exception &e) {
+                LOGE(TAG, "Error in Invoking model : %s", e.what());
             }
-        } catch (std::exception &e) {
-            LOGE(TAG, "Error in Loop : %s", e.what());
+            return {};
         }
+
+        if (rpc_name == UNLOAD_MODEL_RPC) {
+            UnloadModel();
+
+            anx::StdResponse res;
+            res.set_success(true);
+            res.set_message("");
+            return {res.SerializeAsString()};
+        }
+
+        // unknown RPC
+        std::stringstream ss;
+        ss << "Unknown RPC : " << rpc_name;
+        std::string res_str;
+        ss.str(res_str);
+        LOGE(TAG, "%s", res_str.c_str());
+
+        anx::StdResponse res;
+        res.set_success(false);
+        res.set_message(res_str.c_str(), res_str.size());
+
+        std::string rep_string;
+        res.SerializeToString(&rep_string);
+        return {rep_string};
+    } catch (std::exception &e) {
+        LOGE(TAG, "Error in handling request : %s", e.what());
     }
+    return {};
 }
 
 void TfLiteRunnerRpcServer::UnloadModel() {
@@ -0,0 +1,39 @@
+#include "ipc/zmq_context.h"
+
+#define TAG "NativeZmqContext"
+
+std::mutex ZmqContext::mutex_;
+bool ZmqContext::started_ = false;
+
+zmq::context_t &ZmqContext::instance() {
+    // intentionally leaked, terminating the context at exit would block on
+    // any socket still open
+    static auto *context = new zmq::context_t(ZMQ_CONTEXT_DEFAULT_IO_THREADS);
+    return *context;
+}
+
+bool ZmqContext::Configure(int io_threads, const std::vector<int> &cpu_affinity) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (started_) {
+        LOGE(TAG, "Context already in use, keeping the current configuration");
+        return false;
+    }
+    try {
+        zmq::context_t &context = instance();
+        context.set(zmq::ctxopt::io_threads, io_threads);
+        for (int cpu : cpu_affinity) {
+            context.set(zmq::ctxopt::thread_affinity_cpu_add, cpu);
+        }
+        LOGI(TAG, "Configured %d I/O threads on %zu cpus", io_threads, cpu_affinity.size());
+        return true;
+    } catch (std::exception &e) {
+        LOGE(TAG, "Error in configuring context : %s", e.what());
+        return false;
+    }
+}
+
+zmq::context_t &ZmqContext::Get() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    started_ = true;
+    return instance();
+}
@@ -0,0 +1,29 @@
+package com.flomobility.anx.native
+
+object NativeRate {
+
+    init {
+        System.loadLibrary("anx")
+    }
+
+    const val OVERRUN_SKIP = 0
+    const val OVERRUN_CATCH_UP = 1
+    const val OVERRUN_RESET = 2
+
+    external fun createRate(hz: Int, overrunPolicy: Int): Long
+
+    /**
+     * Blocks until the next deadline, returns false without waiting if it already passed.
+     * */
+    external fun sleep(ratePtr: Long): Boolean
+
+    external fun reset(ratePtr: Long)
+
+    /**
+     * [cycles, overruns, missed, last, max and mean wakeup latency in ns]
+     * */
+    external fun getStats(ratePtr: Long): LongArray
+
+    external fun destroyRate(ratePtr: Long)
+
+}
@@ -6,10 +6,105 @@ object NativeSensors {
         System.loadLibrary("anx")
     }
 
-    external fun initImu(fps: Int, address: String): Long
+    const val IMU_PUBLISH_TIMER = 0
+    const val IMU_PUBLISH_ON_SENSOR_EVENT = 1
+    const val IMU_PUBLISH_BATCH = 2
 
-    external fun startImu()
+    const val IMU_ENCODING_PROTOBUF = 0
+    const val IMU_ENCODING_PACKED_F32 = 1
+    const val IMU_PACKED_SIZE = 140
 
+    const val IMU_ORIENTATION_ROTATION_VECTOR = 0
+    const val IMU_ORIENTATION_FUSION = 1
+    const val IMU_ORIENTATION_FUSION_WITH_MAGNETOMETER = 2
+
+    /**
+     * Values per sensor returned by [describeSensors], in this order.
+     * */
+    const val SENSOR_INFO_TYPE = 0
+    const val SENSOR_INFO_MIN_DELAY_US = 1
+    const val SENSOR_INFO_FIFO_MAX_EVENT_COUNT = 2
+    const val SENSOR_INFO_FIFO_RESERVED_EVENT_COUNT = 3
+    const val SENSOR_INFO_REPORTING_MODE = 4
+    const val SENSOR_INFO_FIELDS = 5
+
+    /**
+     * Creates the native IMU once, sensor events are delivered on the looper
+     * of the calling thread which must make every other IMU call too.
+     * */
+    external fun initImu(): Long
+
+    /**
+     * Starts the stream at [fps] on [address], or adds a client to it if it already
+     * runs with its options kept. The sensors run at the highest started fps.
+     * @param legacyAddress endpoint following the last started stream, null for none
+     * @param publishMode [IMU_PUBLISH_TIMER], [IMU_PUBLISH_ON_SENSOR_EVENT] or [IMU_PUBLISH_BATCH]
+     * @param triggerSensor android.hardware.Sensor type whose events are published
+     * in [IMU_PUBLISH_ON_SENSOR_EVENT] mode
+     * @param batchSize gyroscope samples per message in [IMU_PUBLISH_BATCH] mode, 0 for the default
+     * @param maxBatchLatencyUs how long the sensor hub may hold samples in [IMU_PUBLISH_BATCH] mode
+     * @param encoding [IMU_ENCODING_PROTOBUF] or [IMU_ENCODING_PACKED_F32], ignored in
+     * [IMU_PUBLISH_BATCH] mode
+     * @param orientationSource [IMU_ORIENTATION_ROTATION_VECTOR], [IMU_ORIENTATION_FUSION] or
+     * [IMU_ORIENTATION_FUSION_WITH_MAGNETOMETER], ignored in [IMU_PUBLISH_BATCH] mode
+     * */
+    external fun startImuStream(
+        fps: Int,
+        address: String,
+        legacyAddress: String?,
+        publishMode: Int,
+        triggerSensor: Int,
+        batchSize: Int,
+        maxBatchLatencyUs: Int,
+        encoding: Int,
+        orientationSource: Int
+    ): Boolean
+
+    /**
+     * Removes a client from the stream at [fps], the stream stops with its last client.
+     * */
+    external fun stopImuStream(fps: Int)
+
+    /**
+     * Stops every stream.
+     * */
     external fun stopImu()
 
+    /**
+     * Recent IMU samples, one per gyroscope event while a stream runs, as
+     * [IMU_ENCODING_PACKED_F32] records of [IMU_PACKED_SIZE] bytes, oldest first.
+     * Callable from any thread.
+     * @param sinceNs only samples with a later gyroscope timestamp, CLOCK_BOOTTIME
+     * @param maxSamples the newest ones if more are kept, 0 for all
+     * */
+    external fun getImuHistory(sinceNs: Long, maxSamples: Int, fusedOrientation: Boolean): ByteArray
+
+    /**
+     * Queries the NDK for every sensor the native asset can publish and the device
+     * has, [SENSOR_INFO_FIELDS] values per sensor. The native asset holds the only
+     * list of supported sensors. Callable from any thread.
+     * */
+    external fun describeSensors(): IntArray
+
+    /**
+     * Name of the device_<name> endpoint of [type], null if the native asset does
+     * not publish it.
+     * @param type android.hardware.Sensor type
+     * */
+    external fun getSensorName(type: Int): String?
+
+    /**
+     * Publishes [type] on [address] as anx.SensorData at [fps], restarting it if it
+     * already runs. Events are delivered on the looper of the calling thread which
+     * must make every other sensor call too.
+     * @param maxReportLatencyUs how long the sensor hub may hold events in its FIFO
+     * @return false if the sensor is missing or not supported
+     * */
+    external fun startSensor(type: Int, fps: Int, maxReportLatencyUs: Int, address: String): Boolean
+
+    /**
+     * Stops [type], 0 stops every sensor.
+     * */
+    external fun stopSensor(type: Int)
+
 }
@@ -1,23 +1,86 @@
 package com.flomobility.anx.native
 
+import java.nio.ByteBuffer
+
 object NativeZmq {
 
     init {
         System.loadLibrary("anx")
     }
 
-    external fun createPublisherInstance(address: String): Long
+    /**
+     * Sets the I/O threads of the context shared by every endpoint of the process and
+     * the CPUs they may run on (empty for no affinity). Must be called before the first
+     * endpoint is created, returns false otherwise.
+     * */
+    external fun configureContext(ioThreads: Int, cpuAffinity: IntArray): Boolean
+
+    external fun createPublisherInstance(
+        address: String,
+        sndHwm: Int,
+        conflate: Boolean,
+        lingerMs: Int,
+        sendTimeoutMs: Int,
+        xpubNoDrop: Boolean
+    ): Long
+
+    /**
+     * Number of messages the publisher could not queue for its subscribers.
+     * */
+    external fun getDroppedCount(publisherPtr: Long): Long
 
     external fun sendData(publisherPtr: Long, data: ByteArray)
 
+    /**
+     * Publishes [length] bytes of a direct [buffer] starting at [offset], the payload
+     * is copied once into the zmq message.
+     * */
+    external fun sendDirect(publisherPtr: Long, buffer: ByteBuffer, offset: Int, length: Int)
+
+    /**
+     * Publishes an acquired buffer of a native buffer pool without copying it.
+     * */
+    external fun sendPooled(publisherPtr: Long, poolPtr: Long, index: Int, offset: Int, length: Int)
+
+    /**
+     * Publishes every array of [messages] in a single JNI call, as separate messages
+     * or as the parts of one multipart message.
+     * @return the number of messages sent
+     * */
+    external fun sendBatch(publisherPtr: Long, messages: Array<ByteArray>, multipart: Boolean): Int
+
+    /**
+     * Publishes a batch packed in a direct [buffer] as [uint32 little endian length][payload]
+     * records, see [com.flomobility.anx.native.zmq.MessageBatch].
+     * @return the number of messages sent
+     * */
+    external fun sendPacked(publisherPtr: Long, buffer: ByteBuffer, offset: Int, length: Int, multipart: Boolean): Int
+
     external fun closePublisher(publisherPtr: Long): Boolean
 
 
     // Subscriber related
-    external fun createSubscriberInstance(address: String, topic: String): Long
+    /**
+     * @param overflow ordinal of [com.flomobility.anx.native.zmq.Subscriber.Overflow]
+     * @param capacity messages kept for a slow receiver, ignored when conflating
+     * */
+    external fun createSubscriberInstance(address: String, topic: String, overflow: Int, capacity: Int): Long
 
     external fun listen(subscriberPtr: Long): ByteArray
 
+    /**
+     * Blocks until a message arrives and copies it into a direct [buffer], returns a
+     * status decoded by [RecvStatus], [RecvStatus.CLOSED] after [wakeupSubscriber].
+     * */
+    external fun receiveSubscribed(subscriberPtr: Long, buffer: ByteBuffer): Long
+
+    /**
+     * Interrupts a blocked [receiveSubscribed], callable from any thread.
+     * */
+    external fun wakeupSubscriber(subscriberPtr: Long)
+
+    external fun getSubscriberDroppedCount(subscriberPtr: Long): Long
+
     external fun closeSubscriber(subscriberPtr: Long): Boolean
 
     // Server related
@@ -25,10 +88,94 @@ object NativeZmq {
 
     external fun listenServerRequests(serverPtr: Long): Message
 
+    /**
+     * Receives the next frame into a direct [buffer] without allocating.
+     * @return packed receive status, decode it with [RecvStatus]
+     * */
+    external fun receive(serverPtr: Long, buffer: ByteBuffer): Long
+
     external fun listenForRpcs(serverPtr: Long): RpcPayload
 
+    /**
+     * Registers the RPC names served by a server, the index of a name being the id
+     * reported by [receiveRpc].
+     * */
+    external fun registerRpcs(serverPtr: Long, rpcNames: Array<String>)
+
+    /**
+     * Receives a whole [name, payload] RPC request in one call, the payload is written
+     * into a direct [buffer] and the name resolved against the registered table.
+     * @return packed receive status, decode it with [RecvStatus]
+     * */
+    external fun receiveRpc(serverPtr: Long, buffer: ByteBuffer): Long
+
     external fun sendServerResponse(serverPtr: Long, data: ByteArray): Boolean
 
+    external fun sendServerResponseDirect(serverPtr: Long, buffer: ByteBuffer, offset: Int, length: Int): Boolean
+
     external fun closeServer(serverPtr: Long): Boolean
 
+    /**
+     * Detaches the last request received by a broker worker so it can be answered later.
+     * @return handle of the pending reply, 0 if the server is not a broker worker
+     * */
+    external fun deferReply(serverPtr: Long): Long
+
+    /**
+     * Makes a broker worker blocked in [receiveRpc] return [RecvStatus.CLOSED], safe to
+     * call from any thread.
+     * */
+    external fun wakeupServer(serverPtr: Long)
+
+    /**
+     * Answers a request detached with [deferReply], safe to call from any thread.
+     * */
+    external fun sendDeferredResponse(serverPtr: Long, replyHandle: Long, data: ByteArray): Boolean
+
+    // RPC broker related
+    external fun createRpcBroker(address: String): Long
+
+    /**
+     * Creates a server connected to the worker side of a broker, use it like any server
+     * created with [createServerInstance].
+     * */
+    external fun createWorkerInstance(brokerPtr: Long): Long
+
+    external fun closeRpcBroker(brokerPtr: Long): Boolean
+
+    // Buffer pool related
+    external fun createBufferPool(count: Int, capacity: Int): Long
+
+    external fun getPoolBuffer(poolPtr: Long, index: Int): ByteBuffer
+
+    external fun acquirePoolBuffer(poolPtr: Long): Int
+
+    external fun releasePoolBuffer(poolPtr: Long, index: Int)
+
+    external fun destroyBufferPool(poolPtr: Long)
+
+    // Shared memory ring related
+    /**
+     * Creates a memfd ring of [slotCount] slots of [slotSize] bytes whose fd is served
+     * on the unix socket [socketPath], returns 0 on failure.
+     * */
+    external fun createShmRing(name: String, socketPath: String, slotCount: Int, slotSize: Int): Long
+
+    /**
+     * Writes a frame to the ring and publishes its descriptor on the publisher.
+     * @return the sequence of the frame, or -1 if it does not fit in a slot
+     * */
+    external fun shmPublish(
+        ringPtr: Long,
+        publisherPtr: Long,
+        buffer: ByteBuffer,
+        offset: Int,
+        length: Int,
+        timestampNs: Long
+    ): Long
+
+    external fun shmPublishBytes(ringPtr: Long, publisherPtr: Long, data: ByteArray, timestampNs: Long): Long
+
+    external fun closeShmRing(ringPtr: Long): Boolean
+
 }
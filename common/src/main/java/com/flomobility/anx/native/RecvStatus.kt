@@ -0,0 +1,33 @@
+package com.flomobility.anx.native
+
+/**
+ * Decodes the packed status returned by the allocation-free receive calls of [NativeZmq].
+ *
+ * bits 0-31 hold the frame size, bit 32 is set when more frames follow and bit 33
+ * when the frame did not fit in the supplied buffer. Negative values mean nothing
+ * was received.
+ *
+ * Statuses of [NativeZmq.receiveRpc] also carry the id of the received RPC in bits 40-55.
+ * */
+object RecvStatus {
+
+    const val TIMEOUT = -1L
+    const val ERROR = -2L
+    const val UNKNOWN_RPC = -3L
+    const val MALFORMED = -4L
+    const val CLOSED = -5L
+
+    private const val MORE_BIT = 1L shl 32
+    private const val TRUNCATED_BIT = 1L shl 33
+    private const val RPC_ID_SHIFT = 40
+
+    fun isReceived(status: Long): Boolean = status >= 0
+
+    fun size(status: Long): Int = (status and 0xFFFFFFFFL).toInt()
+
+    fun hasMore(status: Long): Boolean = (status and MORE_BIT) != 0L
+
+    fun isTruncated(status: Long): Boolean = (status and TRUNCATED_BIT) != 0L
+
+    fun rpcId(status: Long): Int = ((status ushr RPC_ID_SHIFT) and 0xFFFFL).toInt()
+}
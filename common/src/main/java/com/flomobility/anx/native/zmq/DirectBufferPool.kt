@@ -0,0 +1,53 @@
+package com.flomobility.anx.native.zmq
+
+import com.flomobility.anx.native.NativeZmq
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Pool of natively allocated direct buffers that a [Publisher] hands to zmq without copying.
+ *
+ * A buffer is owned by zmq from the moment it is published until it has been written
+ * out to every subscriber, [acquire] never returns a buffer in that state.
+ * */
+class DirectBufferPool(
+    val count: Int,
+    val capacity: Int
+) {
+
+    private var poolPtr: Long = NativeZmq.createBufferPool(count, capacity)
+
+    private val buffers = Array(count) { index ->
+        PooledBuffer(index, NativeZmq.getPoolBuffer(poolPtr, index).order(ByteOrder.LITTLE_ENDIAN))
+    }
+
+    internal val nativePtr: Long
+        get() = poolPtr
+
+    /**
+     * @return a cleared buffer ready to be written, or null if all buffers are in use
+     * */
+    fun acquire(): PooledBuffer? {
+        val index = NativeZmq.acquirePoolBuffer(poolPtr)
+        if (index < 0) return null
+        return buffers[index].apply { buffer.clear() }
+    }
+
+    /**
+     * Returns a buffer that was acquired but is not going to be published.
+     * */
+    fun release(buffer: PooledBuffer) {
+        NativeZmq.releasePoolBuffer(poolPtr, buffer.index)
+    }
+
+    fun close() {
+        if (poolPtr == 0L) return
+        NativeZmq.destroyBufferPool(poolPtr)
+        poolPtr = 0L
+    }
+
+    class PooledBuffer internal constructor(
+        val index: Int,
+        val buffer: ByteBuffer
+    )
+}
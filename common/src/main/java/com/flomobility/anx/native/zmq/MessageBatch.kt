@@ -0,0 +1,34 @@
+package com.flomobility.anx.native.zmq
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Reusable direct buffer collecting messages as [uint32 little endian length][payload]
+ * records, to be published in a single call with [Publisher.publishBatch].
+ * */
+class MessageBatch(capacity: Int) {
+
+    val buffer: ByteBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN)
+
+    var count = 0
+        private set
+
+    /**
+     * Appends [length] bytes of [bytes] starting at [offset].
+     * @return false if the batch has no room left for the message
+     * */
+    fun add(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size): Boolean {
+        if (buffer.remaining() < Int.SIZE_BYTES + length) return false
+        buffer.putInt(length)
+        buffer.put(bytes, offset, length)
+        count++
+        return true
+    }
+
+    fun clear() {
+        buffer.clear()
+        count = 0
+    }
+
+}
@@ -1,21 +1,97 @@
 package com.flomobility.anx.native.zmq
 
 import com.flomobility.anx.native.NativeZmq
+import java.nio.ByteBuffer
 
 class Publisher {
 
     private var publisherPtr: Long = 0L
 
-    fun init(address: String) {
-        publisherPtr = NativeZmq.createPublisherInstance(address)
+    private var options = PublisherOptions()
+
+    internal val nativePtr: Long
+        get() = publisherPtr
+
+    fun init(address: String, options: PublisherOptions = PublisherOptions()) {
+        this.options = options
+        publisherPtr = NativeZmq.createPublisherInstance(
+            address,
+            options.sndHwm,
+            options.conflate,
+            options.lingerMs,
+            options.sendTimeoutMs,
+            options.xpubNoDrop
+        )
     }
 
+    /**
+     * Messages dropped so far because the subscribers could not keep up, see
+     * [PublisherOptions.xpubNoDrop].
+     * */
+    val droppedCount: Long
+        get() = NativeZmq.getDroppedCount(publisherPtr)
+
     fun publish(bytes: ByteArray) {
         NativeZmq.sendData(publisherPtr, bytes)
     }
 
+    /**
+     * Publishes the bytes between the position and the limit of a direct [buffer].
+     * */
+    fun publish(buffer: ByteBuffer) {
+        publish(buffer, buffer.position(), buffer.remaining())
+    }
+
+    fun publish(buffer: ByteBuffer, offset: Int, length: Int) {
+        require(buffer.isDirect) { "Only direct buffers can be published" }
+        require(offset >= 0 && length >= 0 && offset.toLong() + length <= buffer.capacity()) {
+            "Range $offset+$length is out of a buffer of ${buffer.capacity()} bytes"
+        }
+        NativeZmq.sendDirect(publisherPtr, buffer, offset, length)
+    }
+
+    /**
+     * Publishes the bytes written to a buffer acquired from [pool] without copying them.
+     * The buffer must not be touched afterwards, acquire a new one for the next message.
+     * */
+    fun publish(pool: DirectBufferPool, pooled: DirectBufferPool.PooledBuffer) {
+        val buffer = pooled.buffer
+        NativeZmq.sendPooled(publisherPtr, pool.nativePtr, pooled.index, buffer.position(), buffer.remaining())
+    }
+
+    /**
+     * Publishes [messages] crossing JNI once for the whole batch. With [multipart] the
+     * batch is delivered to subscribers atomically as one multipart message, which a
+     * publisher with [PublisherOptions.xpubNoDrop] cannot do.
+     * @return the number of messages sent
+     * */
+    fun publishBatch(messages: List<ByteArray>, multipart: Boolean = false): Int {
+        requireMultipartSupport(multipart)
+        if (messages.isEmpty()) return 0
+        return NativeZmq.sendBatch(publisherPtr, messages.toTypedArray(), multipart)
+    }
+
+    /**
+     * Publishes the messages packed in [batch] crossing JNI once, the batch can be
+     * cleared and refilled as soon as this returns.
+     * @return the number of messages sent
+     * */
+    fun publishBatch(batch: MessageBatch, multipart: Boolean = false): Int {
+        requireMultipartSupport(multipart)
+        if (batch.count == 0) return 0
+        val buffer = batch.buffer
+        return NativeZmq.sendPacked(publisherPtr, buffer, 0, buffer.position(), multipart)
+    }
+
     fun close() {
         NativeZmq.closePublisher(publisherPtr)
     }
 
+    private fun requireMultipartSupport(multipart: Boolean) {
+        // a full subscriber queue would fail a part and leave a cut-off message queued
+        require(!multipart || !options.xpubNoDrop) {
+            "Multipart batches cannot be published with a bounded queue"
+        }
+    }
+
 }
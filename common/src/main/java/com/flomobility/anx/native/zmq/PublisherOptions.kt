@@ -0,0 +1,39 @@
+package com.flomobility.anx.native.zmq
+
+/**
+ * Delivery policy of a [Publisher], the defaults match libzmq's PUB socket.
+ *
+ * @param sndHwm messages queued per subscriber before new ones are dropped
+ * @param conflate keep only the latest message per subscriber in the publisher's
+ * queue. Messages already in the subscriber's receive queue and the socket buffers
+ * still pile up, a latest-value subscriber sets ZMQ_CONFLATE on its own socket, see
+ * [Subscriber.Overflow.CONFLATE]
+ * @param lingerMs how long pending messages are kept on close, -1 until delivered
+ * @param sendTimeoutMs how long a send waits for room, 0 never blocks and -1 blocks
+ * @param xpubNoDrop report full subscriber queues instead of silently dropping, so
+ * [Publisher.droppedCount] also accounts for high-water mark drops. Single part
+ * messages only, and a message is dropped for every subscriber as soon as one of
+ * them is full
+ * */
+data class PublisherOptions(
+    val sndHwm: Int = 1000,
+    val conflate: Boolean = false,
+    val lingerMs: Int = -1,
+    val sendTimeoutMs: Int = 0,
+    val xpubNoDrop: Boolean = false
+) {
+
+    companion object {
+        /**
+         * Never queues more than the newest message per subscriber on the publisher
+         * side, pair it with conflating subscribers for control loops.
+         * */
+        val LATEST_VALUE = PublisherOptions(conflate = true)
+
+        /**
+         * Keeps up to [size] messages per subscriber and counts everything beyond.
+         * */
+        fun boundedQueue(size: Int) = PublisherOptions(sndHwm = size, xpubNoDrop = true)
+    }
+
+}
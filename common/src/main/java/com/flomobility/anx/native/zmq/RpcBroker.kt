@@ -0,0 +1,28 @@
+package com.flomobility.anx.native.zmq
+
+import com.flomobility.anx.native.NativeZmq
+
+/**
+ * ROUTER/ROUTER front-end that distributes the requests received on an address over
+ * every [RpcServer] initialized with it, so that RPCs are served in parallel. A request
+ * only goes to a worker waiting in [RpcServer.receive], never behind a busy one.
+ *
+ * Close all the workers before closing the broker.
+ * */
+class RpcBroker {
+
+    private var brokerPtr: Long = 0L
+
+    internal val nativePtr: Long
+        get() = brokerPtr
+
+    fun init(address: String) {
+        brokerPtr = NativeZmq.createRpcBroker(address)
+        check(brokerPtr != 0L) { "Could not create RPC broker on $address" }
+    }
+
+    fun close(): Boolean {
+        return NativeZmq.closeRpcBroker(brokerPtr)
+    }
+
+}
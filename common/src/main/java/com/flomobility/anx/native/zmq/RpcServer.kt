@@ -1,26 +1,94 @@
 package com.flomobility.anx.native.zmq
 
 import com.flomobility.anx.native.NativeZmq
+import com.flomobility.anx.native.RecvStatus
 import com.flomobility.anx.native.RpcPayload
+import java.nio.ByteBuffer
 
 class RpcServer {
 
+    @Volatile
     private var serverPtr: Long = 0L
 
     fun init(address: String) {
         serverPtr = NativeZmq.createServerInstance(address)
     }
 
+    /**
+     * Initializes the server as one of the workers of [broker] instead of binding an address.
+     * */
+    fun init(broker: RpcBroker) {
+        serverPtr = NativeZmq.createWorkerInstance(broker.nativePtr)
+    }
+
+    /**
+     * Registers the served RPC names, the id of an RPC is the index of its name.
+     * */
+    fun register(rpcNames: List<String>) {
+        NativeZmq.registerRpcs(serverPtr, rpcNames.toTypedArray())
+    }
+
     fun listen(): RpcPayload {
         return NativeZmq.listenForRpcs(serverPtr)
     }
 
+    /**
+     * Receives the next request with a single native call. On success the payload
+     * is in [buffer], positioned at 0 with its limit set to the payload size, and
+     * [RecvStatus.rpcId] gives the id of the requested RPC.
+     *
+     * @return packed receive status, decode it with [RecvStatus]
+     * */
+    fun receive(buffer: ByteBuffer): Long {
+        val status = NativeZmq.receiveRpc(serverPtr, buffer)
+        if (RecvStatus.isReceived(status)) {
+            buffer.clear()
+            buffer.limit(minOf(RecvStatus.size(status), buffer.capacity()))
+        }
+        return status
+    }
+
     fun send(byteArray: ByteArray) {
         NativeZmq.sendServerResponse(serverPtr, byteArray)
     }
 
+    /**
+     * Sends the bytes between the position and the limit of a direct [buffer].
+     * */
+    fun send(buffer: ByteBuffer) {
+        NativeZmq.sendServerResponseDirect(serverPtr, buffer, buffer.position(), buffer.remaining())
+    }
+
+    /**
+     * Keeps the last received request open so the worker can move on to the next one,
+     * answer it with [sendDeferred] from any thread. Only broker workers support it.
+     *
+     * @return handle of the pending reply
+     * */
+    fun deferReply(): Long {
+        val handle = NativeZmq.deferReply(serverPtr)
+        check(handle != 0L) { "Replies can only be deferred by broker workers" }
+        return handle
+    }
+
+    fun sendDeferred(replyHandle: Long, byteArray: ByteArray) {
+        NativeZmq.sendDeferredResponse(serverPtr, replyHandle, byteArray)
+    }
+
+    /**
+     * Interrupts a [receive] blocked waiting for requests, safe to call from any thread.
+     * Broker workers block without a timeout, this is how they are stopped.
+     * */
+    fun wakeup() {
+        val ptr = serverPtr
+        if (ptr != 0L) NativeZmq.wakeupServer(ptr)
+    }
+
     fun close(): Boolean {
-        return NativeZmq.closeServer(serverPtr)
+        val ptr = serverPtr
+        if (ptr == 0L) return false
+        serverPtr = 0L
+        return NativeZmq.closeServer(ptr)
     }
 
 }
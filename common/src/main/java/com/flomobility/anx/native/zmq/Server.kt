@@ -2,7 +2,8 @@ package com.flomobility.anx.native.zmq
 
 import com.flomobility.anx.native.Message
 import com.flomobility.anx.native.NativeZmq
-import com.flomobility.anx.native.RpcPayload
+import com.flomobility.anx.native.RecvStatus
+import java.nio.ByteBuffer
 
 class Server {
 
@@ -16,10 +17,32 @@ class Server {
         return NativeZmq.listenServerRequests(serverPtr)
     }
 
+    /**
+     * Receives the next frame into a reusable direct [buffer]. On success the buffer
+     * is positioned at 0 with its limit set to the frame size.
+     *
+     * @return packed receive status, decode it with [RecvStatus]
+     * */
+    fun receive(buffer: ByteBuffer): Long {
+        val status = NativeZmq.receive(serverPtr, buffer)
+        if (RecvStatus.isReceived(status)) {
+            buffer.clear()
+            buffer.limit(minOf(RecvStatus.size(status), buffer.capacity()))
+        }
+        return status
+    }
+
     fun send(byteArray: ByteArray) {
         NativeZmq.sendServerResponse(serverPtr, byteArray)
     }
 
+    /**
+     * Sends the bytes between the position and the limit of a direct [buffer].
+     * */
+    fun send(buffer: ByteBuffer) {
+        NativeZmq.sendServerResponseDirect(serverPtr, buffer, buffer.position(), buffer.remaining())
+    }
+
     fun close(): Boolean {
         return NativeZmq.closeServer(serverPtr)
     }
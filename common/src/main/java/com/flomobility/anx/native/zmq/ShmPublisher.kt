@@ -0,0 +1,50 @@
+package com.flomobility.anx.native.zmq
+
+import android.os.SystemClock
+import com.flomobility.anx.native.NativeZmq
+import java.nio.ByteBuffer
+
+/**
+ * Publisher for high bandwidth streams such as camera frames.
+ *
+ * Frames are copied once into a memfd backed ring shared with the subscribers,
+ * ZMQ only carries an anx.ShmFrame descriptor (slot, sequence, size, timestamp).
+ * Subscribers receive the ring fd on [ringPath] and map it once, a subscriber
+ * more than [slotCount] frames behind detects it was lapped and drops the frame.
+ * */
+class ShmPublisher {
+
+    private var ringPtr: Long = 0L
+
+    private val publisher = Publisher()
+
+    fun init(address: String, ringPath: String, slotCount: Int, slotSize: Int) {
+        ringPtr = NativeZmq.createShmRing(ringPath.substringAfterLast('/'), ringPath, slotCount, slotSize)
+        check(ringPtr != 0L) { "Could not create shared memory ring at $ringPath" }
+        publisher.init(address)
+    }
+
+    /**
+     * Publishes the bytes between the position and the limit of a direct [buffer].
+     * @return the sequence of the frame, or -1 if it does not fit in a slot
+     * */
+    fun publish(buffer: ByteBuffer, timestampNs: Long = SystemClock.elapsedRealtimeNanos()): Long {
+        require(buffer.isDirect) { "Only direct buffers can be published" }
+        return NativeZmq.shmPublish(
+            ringPtr, publisher.nativePtr, buffer, buffer.position(), buffer.remaining(), timestampNs
+        )
+    }
+
+    fun publish(bytes: ByteArray, timestampNs: Long = SystemClock.elapsedRealtimeNanos()): Long {
+        return NativeZmq.shmPublishBytes(ringPtr, publisher.nativePtr, bytes, timestampNs)
+    }
+
+    fun close() {
+        publisher.close()
+        if (ringPtr != 0L) {
+            NativeZmq.closeShmRing(ringPtr)
+            ringPtr = 0L
+        }
+    }
+
+}
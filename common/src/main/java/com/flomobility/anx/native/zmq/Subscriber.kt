@@ -0,0 +1,123 @@
+package com.flomobility.anx.native.zmq
+
+import com.flomobility.anx.native.NativeZmq
+import com.flomobility.anx.native.RecvStatus
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import timber.log.Timber
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Subscribes to a stream published on [address], e.g. device_imu or device_gnss.
+ *
+ * [messages] is cold, every collection connects its own native subscriber that
+ * blocks in native code until a message arrives instead of polling, and is
+ * closed when the collection ends. The receive loop runs on [Dispatchers.IO] for
+ * the whole collection and hands each message over to the collector directly.
+ *
+ * @param overflow what happens to messages arriving while the collector is busy
+ * @param capacity messages kept for a busy collector, ignored for [Overflow.CONFLATE]
+ * @param maxMessageSize size of the receive buffer, larger messages are skipped
+ * */
+class Subscriber(
+    private val address: String,
+    private val topic: String = "",
+    private val overflow: Overflow = Overflow.SUSPEND,
+    private val capacity: Int = DEFAULT_CAPACITY,
+    private val maxMessageSize: Int = DEFAULT_MAX_MESSAGE_SIZE
+) {
+
+    enum class Overflow {
+        /**
+         * Queue up to capacity messages, the publisher drops beyond that.
+         * */
+        SUSPEND,
+
+        /**
+         * Keep the latest capacity messages and discard older ones.
+         * */
+        DROP_OLDEST,
+
+        /**
+         * Only ever deliver the latest message.
+         * */
+        CONFLATE
+    }
+
+    /**
+     * Emits every received message in a direct buffer positioned over the payload.
+     * Buffers are reused for later messages, one is only valid until the collector
+     * returns, copy it to keep it longer. Do not add a buffer() or flowOn() downstream
+     * for the same reason, buffering is done natively by [overflow].
+     * */
+    fun messages(): Flow<ByteBuffer> = flow {
+        val subscriberPtr = NativeZmq.createSubscriberInstance(
+            address, topic, overflow.ordinal, capacity
+        )
+        // the hand-over to the collector is a rendezvous, so while the collector reads
+        // one buffer the next message is received into the other
+        val buffers = Array(2) {
+            ByteBuffer.allocateDirect(maxMessageSize).order(ByteOrder.LITTLE_ENDIAN)
+        }
+        var next = 0
+        try {
+            coroutineScope {
+                // the receive below does not see cancellation, wake it up instead
+                val watcher = launch(start = CoroutineStart.UNDISPATCHED) {
+                    try {
+                        awaitCancellation()
+                    } finally {
+                        NativeZmq.wakeupSubscriber(subscriberPtr)
+                    }
+                }
+                try {
+                    while (true) {
+                        val buffer = buffers[next]
+                        val status = NativeZmq.receiveSubscribed(subscriberPtr, buffer)
+                        when {
+                            status == RecvStatus.CLOSED -> break
+                            !RecvStatus.isReceived(status) -> {
+                                Timber.tag(TAG).e("Receive failed on $address")
+                                break
+                            }
+                            RecvStatus.isTruncated(status) -> {
+                                Timber.tag(TAG)
+                                    .w("Skipped a ${RecvStatus.size(status)} byte message on $address")
+                            }
+                            else -> {
+                                buffer.clear()
+                                buffer.limit(RecvStatus.size(status))
+                                emit(buffer)
+                                next = 1 - next
+                            }
+                        }
+                    }
+                } finally {
+                    withContext(NonCancellable) { watcher.cancelAndJoin() }
+                }
+            }
+        } finally {
+            NativeZmq.closeSubscriber(subscriberPtr)
+        }
+    }.buffer(Channel.RENDEZVOUS).flowOn(Dispatchers.IO)
+
+    companion object {
+        private const val TAG = "Subscriber"
+
+        const val DEFAULT_CAPACITY = 1000
+        const val DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024
+    }
+
+}
@@ -17,6 +17,15 @@ object AddressUtils {
         return "ipc://$ipcDir"
     }
 
+    /**
+     * Path of the unix socket handing out the fd of the shared memory ring [name].
+     * */
+    fun getShmRingPath(context: Context, name: String): String {
+        val ipcDir = "${context.filesDir}/ipc"
+        if(!dirExists(ipcDir)) createDir(ipcDir)
+        return "$ipcDir/$name.ring"
+    }
+
     private fun dirExists(dir: String): Boolean {
         val file = File(dir)
         return file.isDirectory
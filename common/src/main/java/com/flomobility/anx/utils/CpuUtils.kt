@@ -0,0 +1,37 @@
+package com.flomobility.anx.utils
+
+import java.io.File
+
+object CpuUtils {
+
+    private const val CPU_DIR = "/sys/devices/system/cpu"
+
+    /**
+     * CPUs of the slowest cluster, by their maximum frequency, for background threads
+     * that should stay off the big cores. Empty if every CPU runs at the same maximum
+     * frequency or it cannot be read, the scheduler then decides.
+     * */
+    fun getEfficiencyCores(): IntArray {
+        val maxFrequencies = sortedMapOf<Int, Long>()
+        var cpu = 0
+        while (true) {
+            val cpuDir = File("$CPU_DIR/cpu$cpu")
+            if (!cpuDir.isDirectory) break
+            readLong(File(cpuDir, "cpufreq/cpuinfo_max_freq"))?.let { maxFrequencies[cpu] = it }
+            cpu++
+        }
+        if (maxFrequencies.isEmpty()) return intArrayOf()
+        val slowest = maxFrequencies.values.minOrNull()!!
+        val efficiency = maxFrequencies.filterValues { it == slowest }.keys
+        if (efficiency.size == maxFrequencies.size) return intArrayOf()
+        return efficiency.toIntArray()
+    }
+
+    private fun readLong(file: File): Long? {
+        return try {
+            file.readText().trim().toLongOrNull()
+        } catch (e: Exception) {
+            null
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.flomobility.anx.utils
+
+import android.os.SystemClock
+import com.flomobility.anx.native.zmq.Subscriber
+import com.flomobility.anx.proto.Assets
+import kotlinx.coroutines.flow.take
+
+/**
+ * Measures the latency of the device_imu stream from a subscriber's point of view.
+ *
+ * Sensor timestamps, the publish timestamp and the receive time all use
+ * CLOCK_BOOTTIME, so both delays are measured on a single clock:
+ * - sensor to publish: publish timestamp minus the newest sensor timestamp of the sample
+ * - publish to subscriber: receive time minus the publish timestamp
+ * */
+class ImuLatencyProbe(private val address: String) {
+
+    data class Distribution(
+        val count: Int,
+        val p50Us: Double,
+        val p90Us: Double,
+        val p99Us: Double,
+        val maxUs: Double
+    ) {
+        override fun toString(): String {
+            return "n=$count p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus".format(
+                p50Us, p90Us, p99Us, maxUs
+            )
+        }
+    }
+
+    data class Report(
+        val sensorToPublish: Distribution,
+        val publishToSubscriber: Distribution
+    )
+
+    /**
+     * Collects [samples] IMU messages and returns both delay distributions.
+     * */
+    suspend fun measure(samples: Int = DEFAULT_SAMPLES): Report {
+        val sensorToPublish = LongArray(samples)
+        val publishToSubscriber = LongArray(samples)
+        var count = 0
+        Subscriber(address).messages().take(samples).collect { buffer ->
+            val receivedNs = SystemClock.elapsedRealtimeNanos()
+            val data = Assets.ImuData.parseFrom(buffer)
+            val publishNs = data.publishTimestampNs
+            sensorToPublish[count] = publishNs - newestSensorTimestamp(data)
+            publishToSubscriber[count] = receivedNs - publishNs
+            count++
+        }
+        return Report(
+            sensorToPublish = distribution(sensorToPublish, count),
+            publishToSubscriber = distribution(publishToSubscriber, count)
+        )
+    }
+
+    private fun newestSensorTimestamp(data: Assets.ImuData): Long {
+        return maxOf(
+            maxOf(
+                data.raw.accelerationTimestampNs,
+                data.raw.angularVelocityTimestampNs,
+                data.raw.magneticFieldTimestampNs
+            ),
+            maxOf(
+                data.filtered.accelerationTimestampNs,
+                data.filtered.angularVelocityTimestampNs,
+                data.filtered.orientationTimestampNs
+            )
+        )
+    }
+
+    private fun distribution(samplesNs: LongArray, count: Int): Distribution {
+        if (count == 0) return Distribution(0, 0.0, 0.0, 0.0, 0.0)
+        val sorted = samplesNs.copyOf(count).apply { sort() }
+        fun percentileUs(p: Double) = sorted[((count - 1) * p).toInt()] / 1000.0
+        return Distribution(
+            count = count,
+            p50Us = percentileUs(0.50),
+            p90Us = percentileUs(0.90),
+            p99Us = percentileUs(0.99),
+            maxUs = sorted[count - 1] / 1000.0
+        )
+    }
+
+    companion object {
+        const val DEFAULT_SAMPLES = 1000
+    }
+
+}
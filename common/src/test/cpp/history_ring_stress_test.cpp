@@ -0,0 +1,182 @@
+// Host stress test for HistoryRing: a writer laps a small ring while readers
+// ask for random since_ns and max windows, every value a reader returns must
+// be intact, in order, newer than since_ns and within max. Also checks the
+// truncation rules on a ring that is not written concurrently.
+//
+// g++ -std=c++17 -O2 -pthread -I../../main/cpp/include history_ring_stress_test.cpp -o history_ring_stress_test
+// ./history_ring_stress_test [writes]
+//
+
+#include <atomic>
+#include <cstdio>
+#include <cstdlib>
+#include <memory>
+#include <thread>
+#include <vector>
+
+#include "history_ring.h"
+
+static const size_t RING_SIZE = 64;
+static const int64_t TIMESTAMP_STEP = 10;
+static const int READERS = 3;
+
+// same shape as imu_data_t, every field of a written value holds its
+// sequence number so a mix of two values is easy to spot
+struct sample_t {
+    double values[16];
+    int64_t timestamps[6];
+    uint64_t sequence;
+};
+
+typedef HistoryRing<sample_t, RING_SIZE> ring_t;
+
+static int failures = 0;
+
+static void check(bool condition, const char *what) {
+    if (!condition) {
+        printf("FAILED: %s\n", what);
+        failures++;
+    }
+}
+
+static int64_t timestampOf(uint64_t sequence) {
+    return (int64_t) sequence * TIMESTAMP_STEP;
+}
+
+static sample_t sampleOf(uint64_t sequence) {
+    sample_t sample{};
+    for (double &value : sample.values) value = (double) sequence;
+    for (int64_t &timestamp : sample.timestamps) timestamp = (int64_t) sequence;
+    sample.sequence = sequence;
+    return sample;
+}
+
+static bool intact(const sample_t &sample) {
+    for (double value : sample.values) {
+        if (value != (double) sample.sequence) return false;
+    }
+    for (int64_t timestamp : sample.timestamps) {
+        if (timestamp != (int64_t) sample.sequence) return false;
+    }
+    return true;
+}
+
+// values [first, last] in order and intact
+static bool holds(const sample_t *out, size_t count, uint64_t first, uint64_t last) {
+    if (count != last - first + 1) return false;
+    for (size_t i = 0; i < count; i++) {
+        if (out[i].sequence != first + i || !intact(out[i])) return false;
+    }
+    return true;
+}
+
+static void checkTruncation() {
+    auto ring = std::make_unique<ring_t>();
+    std::vector<sample_t> out(2 * RING_SIZE);
+
+    check(ring->Read(-1, out.size(), out.data()) == 0, "an empty ring reads nothing");
+
+    for (uint64_t sequence = 1; sequence <= 10; sequence++) {
+        ring->Write(timestampOf(sequence), sampleOf(sequence));
+    }
+    size_t count = ring->Read(-1, out.size(), out.data());
+    check(holds(out.data(), count, 1, 10), "every value is read back oldest first");
+    count = ring->Read(timestampOf(4), out.size(), out.data());
+    check(holds(out.data(), count, 5, 10), "since_ns excludes the value written at it");
+    count = ring->Read(timestampOf(4) + 1, out.size(), out.data());
+    check(holds(out.data(), count, 5, 10), "since_ns between two values");
+    count = ring->Read(timestampOf(10), out.size(), out.data());
+    check(count == 0, "nothing is newer than the newest value");
+    count = ring->Read(-1, 3, out.data());
+    check(holds(out.data(), count, 8, 10), "max keeps the newest values");
+    count = ring->Read(timestampOf(6), 3, out.data());
+    check(holds(out.data(), count, 8, 10), "max applies after since_ns");
+    count = ring->Read(timestampOf(8), 3, out.data());
+    check(holds(out.data(), count, 9, 10), "since_ns applies under max");
+    count = ring->Read(-1, 0, out.data());
+    check(count == 0, "max 0 reads nothing");
+
+    // lap the ring, only the newest RING_SIZE values are left
+    uint64_t last = 3 * RING_SIZE + 5;
+    for (uint64_t sequence = 11; sequence <= last; sequence++) {
+        ring->Write(timestampOf(sequence), sampleOf(sequence));
+    }
+    count = ring->Read(-1, out.size(), out.data());
+    check(holds(out.data(), count, last - RING_SIZE + 1, last), "a lapped ring keeps the newest values");
+    count = ring->Read(timestampOf(5), out.size(), out.data());
+    check(holds(out.data(), count, last - RING_SIZE + 1, last), "since_ns before the ring reads all of it");
+    count = ring->Read(timestampOf(last - 7), out.size(), out.data());
+    check(holds(out.data(), count, last - 6, last), "since_ns inside a lapped ring");
+    count = ring->Read(-1, RING_SIZE, out.data());
+    check(holds(out.data(), count, last - RING_SIZE + 1, last), "max equal to the ring");
+    count = ring->Read(-1, 5, out.data());
+    check(holds(out.data(), count, last - 4, last), "max inside a lapped ring");
+}
+
+static void stress(uint64_t writes) {
+    auto ring = std::make_unique<ring_t>();
+    std::atomic<uint64_t> written(0);
+    std::atomic<uint64_t> reads(0), empty(0), torn(0), disordered(0), outside(0), stale(0);
+
+    std::vector<std::thread> readers;
+    for (int reader = 0; reader < READERS; reader++) {
+        readers.emplace_back([&, reader]() {
+            std::vector<sample_t> out(2 * RING_SIZE);
+            uint64_t state = 88172645463325252ULL + reader;
+            while (written.load(std::memory_order_acquire) < writes) {
+                state ^= state << 13;
+                state ^= state >> 7;
+                state ^= state << 17;
+                uint64_t newest = written.load(std::memory_order_acquire);
+                // anywhere from the newest value to two laps behind it, or everything
+                uint64_t behind = state % (2 * RING_SIZE);
+                int64_t since_ns = (state & 1) || behind > newest
+                                   ? -1 : timestampOf(newest - behind);
+                size_t max = 1 + (state >> 8) % out.size();
+
+                size_t count = ring->Read(since_ns, max, out.data());
+                reads++;
+                if (count == 0) {
+                    empty++;
+                    continue;
+                }
+                if (count > max || count > RING_SIZE) outside++;
+                for (size_t i = 0; i < count; i++) {
+                    if (!intact(out[i])) torn++;
+                    if (i > 0 && out[i].sequence != out[i - 1].sequence + 1) disordered++;
+                    if (timestampOf(out[i].sequence) <= since_ns) outside++;
+                }
+                // the newest value when the read started is never skipped
+                if (out[count - 1].sequence < newest) stale++;
+            }
+        });
+    }
+
+    for (uint64_t sequence = 1; sequence <= writes; sequence++) {
+        ring->Write(timestampOf(sequence), sampleOf(sequence));
+        written.store(sequence, std::memory_order_release);
+    }
+    for (std::thread &reader : readers) {
+        reader.join();
+    }
+
+    printf("writes=%llu reads=%llu empty=%llu torn=%llu disordered=%llu outside=%llu stale=%llu\n",
+           (unsigned long long) writes, (unsigned long long) reads.load(),
+           (unsigned long long) empty.load(), (unsigned long long) torn.load(),
+           (unsigned long long) disordered.load(), (unsigned long long) outside.load(),
+           (unsigned long long) stale.load());
+    check(torn == 0, "no torn value is returned");
+    check(disordered == 0, "values are consecutive and oldest first");
+    check(outside == 0, "values respect since_ns and max");
+    check(stale == 0, "reads end with the newest value");
+}
+
+int main(int argc, char **argv) {
+    const uint64_t writes = argc > 1 ? strtoull(argv[1], nullptr, 10) : 5000000ULL;
+
+    checkTruncation();
+    stress(writes);
+
+    printf(failures == 0 ? "PASS\n" : "FAIL\n");
+    return failures == 0 ? 0 : 1;
+}
@@ -0,0 +1,123 @@
+// Host microbenchmark counting heap allocations per encoded IMU sample, the
+// way Imu::publish used to build anx::ImuData against ImuEncoder.
+//
+// Needs the generated protos and a host libprotobuf of the same version, from common/src/main/cpp:
+// protoc -I../../../../api_docs/anx --cpp_out=anx ../../../../api_docs/anx/*.proto
+// g++ -std=c++17 -O2 -Iinclude -Ianx ../../test/cpp/imu_encoder_alloc_benchmark.cpp
+//     src/imu_encoder.cpp anx/assets.pb.cc anx/common.pb.cc -lprotobuf -o imu_encoder_alloc_benchmark
+// ./imu_encoder_alloc_benchmark [samples]
+//
+
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <memory>
+#include <new>
+#include <string>
+
+#include "sensor/imu_encoder.h"
+
+static size_t allocations = 0;
+
+void *operator new(size_t size) {
+    allocations++;
+    void *ptr = malloc(size);
+    if (ptr == nullptr) throw std::bad_alloc();
+    return ptr;
+}
+
+void operator delete(void *ptr) noexcept {
+    free(ptr);
+}
+
+void operator delete(void *ptr, size_t) noexcept {
+    free(ptr);
+}
+
+static void Fill(imu_data_t &sample, uint64_t i) {
+    for (int axis = 0; axis < 3; axis++) {
+        sample.raw.acceleration[axis] = 9.81 + i * 1e-3 + axis;
+        sample.raw.angular_velocity[axis] = 0.01 * i + axis;
+        sample.raw.magnetic_field_u_tesla[axis] = 42.0 + axis;
+        sample.filtered.acceleration[axis] = 9.8 + i * 1e-3 + axis;
+        sample.filtered.angular_velocity[axis] = 0.02 * i + axis;
+    }
+    for (int axis = 0; axis < 4; axis++) {
+        sample.filtered.orientation[axis] = 0.5;
+    }
+    int64_t ts = 1000000000LL + (int64_t) i * 5000000LL;
+    sample.raw.acceleration_ts = sample.raw.angular_velocity_ts = sample.raw.magnetic_field_ts = ts;
+    sample.filtered.acceleration_ts = sample.filtered.angular_velocity_ts = ts;
+    sample.filtered.orientation_ts = ts;
+}
+
+// the previous Imu::publish, plus the copy zmq::message_t(const std::string&) made
+static size_t EncodePerSample(const imu_data_t &sample, uint64_t publish_ts) {
+    anx::ImuData data;
+    data.mutable_raw()->mutable_acceleration()->set_x(sample.raw.acceleration[0]);
+    data.mutable_raw()->mutable_acceleration()->set_y(sample.raw.acceleration[1]);
+    data.mutable_raw()->mutable_acceleration()->set_z(sample.raw.acceleration[2]);
+    data.mutable_raw()->mutable_angular_velocity()->set_x(sample.raw.angular_velocity[0]);
+    data.mutable_raw()->mutable_angular_velocity()->set_y(sample.raw.angular_velocity[1]);
+    data.mutable_raw()->mutable_angular_velocity()->set_z(sample.raw.angular_velocity[2]);
+    data.mutable_raw()->mutable_magnetic_field_in_micro_tesla()->set_x(sample.raw.magnetic_field_u_tesla[0]);
+    data.mutable_raw()->mutable_magnetic_field_in_micro_tesla()->set_y(sample.raw.magnetic_field_u_tesla[1]);
+    data.mutable_raw()->mutable_magnetic_field_in_micro_tesla()->set_z(sample.raw.magnetic_field_u_tesla[2]);
+    data.mutable_filtered()->mutable_acceleration()->set_x(sample.filtered.acceleration[0]);
+    data.mutable_filtered()->mutable_acceleration()->set_y(sample.filtered.acceleration[1]);
+    data.mutable_filtered()->mutable_acceleration()->set_z(sample.filtered.acceleration[2]);
+    data.mutable_filtered()->mutable_angular_velocity()->set_x(sample.filtered.angular_velocity[0]);
+    data.mutable_filtered()->mutable_angular_velocity()->set_y(sample.filtered.angular_velocity[1]);
+    data.mutable_filtered()->mutable_angular_velocity()->set_z(sample.filtered.angular_velocity[2]);
+    data.mutable_filtered()->mutable_orientation()->set_x(sample.filtered.orientation[0]);
+    data.mutable_filtered()->mutable_orientation()->set_y(sample.filtered.orientation[1]);
+    data.mutable_filtered()->mutable_orientation()->set_z(sample.filtered.orientation[2]);
+    data.mutable_filtered()->mutable_orientation()->set_w(sample.filtered.orientation[3]);
+    data.mutable_raw()->set_acceleration_timestamp_ns(sample.raw.acceleration_ts);
+    data.mutable_raw()->set_angular_velocity_timestamp_ns(sample.raw.angular_velocity_ts);
+    data.mutable_raw()->set_magnetic_field_timestamp_ns(sample.raw.magnetic_field_ts);
+    data.mutable_filtered()->set_acceleration_timestamp_ns(sample.filtered.acceleration_ts);
+    data.mutable_filtered()->set_angular_velocity_timestamp_ns(sample.filtered.angular_velocity_ts);
+    data.mutable_filtered()->set_orientation_timestamp_ns(sample.filtered.orientation_ts);
+    data.set_publish_timestamp_ns(publish_ts);
+
+    std::string payload;
+    data.SerializeToString(&payload);
+    std::unique_ptr<uint8_t[]> message(new uint8_t[payload.size()]);
+    memcpy(message.get(), payload.data(), payload.size());
+    return payload.size();
+}
+
+template<typename F>
+static void Run(const char *name, uint64_t samples, F encode) {
+    imu_data_t sample{};
+    size_t bytes = 0;
+    size_t start_allocations = allocations;
+    auto start = std::chrono::steady_clock::now();
+    for (uint64_t i = 0; i < samples; i++) {
+        Fill(sample, i);
+        bytes += encode(sample, i);
+    }
+    auto elapsed = std::chrono::steady_clock::now() - start;
+    printf("%-16s allocs/sample=%.2f ns/sample=%.1f bytes/sample=%.1f\n",
+           name,
+           (double) (allocations - start_allocations) / samples,
+           (double) std::chrono::duration_cast<std::chrono::nanoseconds>(elapsed).count() / samples,
+           (double) bytes / samples);
+}
+
+int main(int argc, char **argv) {
+    const uint64_t samples = argc > 1 ? strtoull(argv[1], nullptr, 10) : 1000000ULL;
+
+    Run("per sample", samples, [](const imu_data_t &sample, uint64_t ts) {
+        return EncodePerSample(sample, ts);
+    });
+
+    ImuEncoder encoder;
+    static uint8_t buffer[ImuEncoder::MAX_SIZE];
+    Run("ImuEncoder", samples, [&encoder](const imu_data_t &sample, uint64_t ts) {
+        return encoder.Encode(sample, ts, buffer, sizeof(buffer));
+    });
+    return 0;
+}
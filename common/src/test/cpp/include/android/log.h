@@ -0,0 +1,17 @@
+// Host stand-in for the NDK log header, lets the host tests build native
+// sources that log through utils.h.
+
+#ifndef ANX_TEST_ANDROID_LOG_H
+#define ANX_TEST_ANDROID_LOG_H
+
+#include <cstdio>
+
+#define ANDROID_LOG_DEBUG 3
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_WARN 5
+#define ANDROID_LOG_ERROR 6
+
+#define __android_log_print(prio, tag, ...) \
+    (fprintf(stderr, "%s: ", tag), fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+
+#endif //ANX_TEST_ANDROID_LOG_H
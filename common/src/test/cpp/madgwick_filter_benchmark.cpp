@@ -0,0 +1,184 @@
+// Accuracy and CPU cost of MadgwickFilter on a recording or a synthetic trajectory.
+//
+// g++ -std=c++17 -O2 -I../../main/cpp/include madgwick_filter_benchmark.cpp
+//     ../../main/cpp/src/madgwick_filter.cpp -o madgwick_filter_benchmark
+// ./madgwick_filter_benchmark [recording.csv]
+//
+// A recording has one line per gyroscope sample with a reference orientation, e.g.
+// logged from device_imu with the ROTATION_VECTOR orientation source:
+// timestamp_ns,gx,gy,gz,ax,ay,az,mx,my,mz,qx,qy,qz,qw
+// gyroscope in rad/s uncalibrated, magnetic field bias corrected, orientation
+// device to east-north-up. Without a recording a 10 minute synthetic trajectory
+// at 200 hz with a known gyroscope bias and sensor noise is used.
+//
+
+#include <chrono>
+#include <cmath>
+#include <cstdio>
+#include <random>
+#include <vector>
+
+#include "sensor/madgwick_filter.h"
+
+struct sample_t {
+    int64_t timestamp_ns;
+    double gyro[3];
+    double accel[3];
+    double mag[3];
+    // x, y, z, w
+    double truth[4];
+};
+
+// a (x) b, quaternions as x, y, z, w
+static void Multiply(const double a[4], const double b[4], double out[4]) {
+    double x = a[3] * b[0] + a[0] * b[3] + a[1] * b[2] - a[2] * b[1];
+    double y = a[3] * b[1] - a[0] * b[2] + a[1] * b[3] + a[2] * b[0];
+    double z = a[3] * b[2] + a[0] * b[1] - a[1] * b[0] + a[2] * b[3];
+    double w = a[3] * b[3] - a[0] * b[0] - a[1] * b[1] - a[2] * b[2];
+    out[0] = x;
+    out[1] = y;
+    out[2] = z;
+    out[3] = w;
+}
+
+// world vector into device coordinates for the device to world orientation q
+static void ToDevice(const double q[4], const double v[3], double out[3]) {
+    double conj[4] = {-q[0], -q[1], -q[2], q[3]};
+    double vq[4] = {v[0], v[1], v[2], 0.0};
+    double tmp[4], res[4];
+    Multiply(conj, vq, tmp);
+    Multiply(tmp, q, res);
+    out[0] = res[0];
+    out[1] = res[1];
+    out[2] = res[2];
+}
+
+static double AngleDeg(const double a[4], const double b[4]) {
+    double dot = std::fabs(a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3]);
+    return 2.0 * std::acos(std::fmin(1.0, dot)) * 180.0 / M_PI;
+}
+
+// angle between the up axis as seen by both orientations, ignores the yaw
+static double TiltDeg(const double a[4], const double b[4]) {
+    const double up[3] = {0.0, 0.0, 1.0};
+    double ua[3], ub[3];
+    ToDevice(a, up, ua);
+    ToDevice(b, up, ub);
+    double dot = ua[0] * ub[0] + ua[1] * ub[1] + ua[2] * ub[2];
+    return std::acos(std::fmax(-1.0, std::fmin(1.0, dot))) * 180.0 / M_PI;
+}
+
+static std::vector<sample_t> Synthetic(const double bias[3]) {
+    const double hz = 200.0;
+    const double dt = 1.0 / hz;
+    const double gravity[3] = {0.0, 0.0, 9.81};
+    // micro tesla, east-north-up with a downward inclination
+    const double field[3] = {0.0, 22.0, -40.0};
+    std::mt19937 rng(42);
+    std::normal_distribution<double> gyro_noise(0.0, 0.003);
+    std::normal_distribution<double> accel_noise(0.0, 0.03);
+    std::normal_distribution<double> mag_noise(0.0, 0.4);
+
+    std::vector<sample_t> samples;
+    double q[4] = {0.0, 0.0, 0.0, 1.0};
+    for (int i = 0; i < (int) (600 * hz); i++) {
+        double t = i * dt;
+        // slow tilting and turning with still periods
+        double still = std::fmod(t, 60.0) < 20.0 ? 0.0 : 1.0;
+        double w[3] = {
+                still * 0.6 * std::sin(0.7 * t),
+                still * 0.5 * std::sin(0.45 * t + 1.0),
+                still * 0.8 * std::sin(0.23 * t + 2.0)
+        };
+        double wq[4] = {w[0], w[1], w[2], 0.0};
+        double dq[4];
+        Multiply(q, wq, dq);
+        for (int k = 0; k < 4; k++) q[k] += 0.5 * dq[k] * dt;
+        double norm = std::sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        for (double &k : q) k /= norm;
+
+        sample_t sample{};
+        sample.timestamp_ns = (int64_t) (t * 1e9);
+        ToDevice(q, gravity, sample.accel);
+        ToDevice(q, field, sample.mag);
+        for (int k = 0; k < 3; k++) {
+            sample.gyro[k] = w[k] + bias[k] + gyro_noise(rng);
+            sample.accel[k] += accel_noise(rng);
+            sample.mag[k] += mag_noise(rng);
+        }
+        for (int k = 0; k < 4; k++) sample.truth[k] = q[k];
+        samples.push_back(sample);
+    }
+    return samples;
+}
+
+static std::vector<sample_t> Load(const char *path) {
+    std::vector<sample_t> samples;
+    FILE *file = fopen(path, "r");
+    if (file == nullptr) {
+        perror(path);
+        return samples;
+    }
+    sample_t s{};
+    long long ts;
+    while (fscanf(file, "%lld,%lf,%lf,%lf,%lf,%lf,%lf,%lf,%lf,%lf,%lf,%lf,%lf,%lf",
+                  &ts, &s.gyro[0], &s.gyro[1], &s.gyro[2], &s.accel[0], &s.accel[1], &s.accel[2],
+                  &s.mag[0], &s.mag[1], &s.mag[2],
+                  &s.truth[0], &s.truth[1], &s.truth[2], &s.truth[3]) == 14) {
+        s.timestamp_ns = ts;
+        samples.push_back(s);
+    }
+    fclose(file);
+    return samples;
+}
+
+static void Run(const char *name, const std::vector<sample_t> &samples, bool use_mag,
+                const double *true_bias) {
+    MadgwickFilter filter;
+    double sum_error = 0.0, max_error = 0.0;
+    size_t counted = 0;
+    int64_t start_ts = samples.front().timestamp_ns;
+    // error after the first 10 s of convergence
+    const int64_t settle_ns = 10000000000LL;
+
+    auto start = std::chrono::steady_clock::now();
+    for (size_t i = 1; i < samples.size(); i++) {
+        const sample_t &s = samples[i];
+        double dt = (s.timestamp_ns - samples[i - 1].timestamp_ns) * 1e-9;
+        filter.Update(s.gyro, s.accel, use_mag ? s.mag : nullptr, dt);
+        if (s.timestamp_ns - start_ts < settle_ns) continue;
+
+        double q[4];
+        filter.Orientation(q);
+        double error = use_mag ? AngleDeg(q, s.truth) : TiltDeg(q, s.truth);
+        sum_error += error;
+        max_error = std::fmax(max_error, error);
+        counted++;
+    }
+    auto elapsed = std::chrono::steady_clock::now() - start;
+
+    double bias[3];
+    filter.GyroBias(bias);
+    printf("%-22s %s error mean=%.2f deg max=%.2f deg, %.1f ns/update, bias=(%.4f %.4f %.4f)",
+           name, use_mag ? "orientation" : "tilt", sum_error / counted, max_error,
+           (double) std::chrono::duration_cast<std::chrono::nanoseconds>(elapsed).count()
+           / samples.size(),
+           bias[0], bias[1], bias[2]);
+    if (true_bias != nullptr) {
+        printf(" true=(%.4f %.4f %.4f)", true_bias[0], true_bias[1], true_bias[2]);
+    }
+    printf("\n");
+}
+
+int main(int argc, char **argv) {
+    const double bias[3] = {0.01, -0.02, 0.015};
+    std::vector<sample_t> samples = argc > 1 ? Load(argv[1]) : Synthetic(bias);
+    if (samples.size() < 2) {
+        fprintf(stderr, "no samples\n");
+        return 1;
+    }
+    printf("%zu samples\n", samples.size());
+    Run("gyro + accel", samples, false, argc > 1 ? nullptr : bias);
+    Run("gyro + accel + mag", samples, true, argc > 1 ? nullptr : bias);
+    return 0;
+}
@@ -0,0 +1,252 @@
+// Host stress test for ShmRingWriter and ShmRingReader: a writer laps a small
+// ring while a reader follows the frame descriptors from behind, every frame
+// the reader accepts must be intact. Also checks the fd seals and that a
+// reader refuses a ring whose header does not match its size.
+//
+// g++ -std=c++17 -O2 -pthread -Iinclude -I../../main/cpp/include shm_ring_stress_test.cpp
+//     ../../main/cpp/src/shm_ring.cpp -o shm_ring_stress_test
+// ./shm_ring_stress_test [frames]
+//
+
+#include <atomic>
+#include <cerrno>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <new>
+#include <thread>
+#include <vector>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <sys/syscall.h>
+#include <sys/un.h>
+#include <unistd.h>
+
+#include "ipc/shm_ring.h"
+
+static const uint32_t SLOT_COUNT = 8;
+static const uint32_t SLOT_SIZE = 4096;
+
+static int failures = 0;
+
+static void check(bool condition, const char *what) {
+    if (!condition) {
+        printf("FAILED: %s\n", what);
+        failures++;
+    }
+}
+
+// every word of a frame holds its sequence, its length depends on it too
+static size_t frameLength(uint64_t sequence) {
+    return 8 * (1 + sequence % (SLOT_SIZE / 8));
+}
+
+static void fillFrame(uint64_t sequence, uint64_t *words) {
+    for (size_t i = 0; i < frameLength(sequence) / 8; i++) words[i] = sequence;
+}
+
+static bool intact(uint64_t sequence, const BYTE *data, size_t length) {
+    if (length != frameLength(sequence)) return false;
+    for (size_t i = 0; i < length / 8; i++) {
+        uint64_t word;
+        memcpy(&word, data + i * 8, 8);
+        if (word != sequence) return false;
+    }
+    return true;
+}
+
+static int receiveFd(const char *path) {
+    sockaddr_un addr{};
+    addr.sun_family = AF_UNIX;
+    strncpy(addr.sun_path, path, sizeof(addr.sun_path) - 1);
+    int sock = socket(AF_UNIX, SOCK_STREAM, 0);
+    if (connect(sock, (sockaddr *) &addr, sizeof(addr)) != 0) {
+        close(sock);
+        return -1;
+    }
+    char byte;
+    iovec iov{&byte, 1};
+    char control[CMSG_SPACE(sizeof(int))] = {};
+    msghdr msg{};
+    msg.msg_iov = &iov;
+    msg.msg_iovlen = 1;
+    msg.msg_control = control;
+    msg.msg_controllen = sizeof(control);
+    int fd = -1;
+    if (recvmsg(sock, &msg, 0) > 0 && CMSG_FIRSTHDR(&msg) != nullptr) {
+        memcpy(&fd, CMSG_DATA(CMSG_FIRSTHDR(&msg)), sizeof(int));
+    }
+    close(sock);
+    return fd;
+}
+
+// serves [fd] to a single reader, the way ShmRingWriter does
+static std::thread serveFdOnce(const char *path, int fd) {
+    sockaddr_un addr{};
+    addr.sun_family = AF_UNIX;
+    strncpy(addr.sun_path, path, sizeof(addr.sun_path) - 1);
+    unlink(path);
+    int listen_fd = socket(AF_UNIX, SOCK_STREAM, 0);
+    bind(listen_fd, (sockaddr *) &addr, sizeof(addr));
+    listen(listen_fd, 1);
+    return std::thread([listen_fd, fd, path]() {
+        int client = accept(listen_fd, nullptr, nullptr);
+        char byte = 0;
+        iovec iov{&byte, 1};
+        char control[CMSG_SPACE(sizeof(int))] = {};
+        msghdr msg{};
+        msg.msg_iov = &iov;
+        msg.msg_iovlen = 1;
+        msg.msg_control = control;
+        msg.msg_controllen = sizeof(control);
+        cmsghdr *cmsg = CMSG_FIRSTHDR(&msg);
+        cmsg->cmsg_level = SOL_SOCKET;
+        cmsg->cmsg_type = SCM_RIGHTS;
+        cmsg->cmsg_len = CMSG_LEN(sizeof(int));
+        memcpy(CMSG_DATA(cmsg), &fd, sizeof(int));
+        sendmsg(client, &msg, MSG_NOSIGNAL);
+        close(client);
+        close(listen_fd);
+        unlink(path);
+    });
+}
+
+static void stress(ShmRingWriter &writer, ShmRingReader &reader, uint64_t frames) {
+    std::vector<shm_frame_t> descriptors(frames);
+    std::atomic<uint64_t> published(0);
+
+    std::thread producer([&]() {
+        std::vector<uint64_t> words(SLOT_SIZE / 8);
+        for (uint64_t sequence = 0; sequence < frames; sequence++) {
+            fillFrame(sequence, words.data());
+            writer.Write((const BYTE *) words.data(), frameLength(sequence), sequence,
+                         &descriptors[sequence]);
+            published.store(sequence + 1, std::memory_order_release);
+        }
+    });
+
+    std::vector<BYTE> copy(SLOT_SIZE);
+    uint64_t reads = 0, lapped = 0, torn = 0, peeks = 0, peeks_lapped = 0;
+    uint64_t state = 88172645463325252ULL;
+    uint64_t count;
+    while ((count = published.load(std::memory_order_acquire)) < frames) {
+        if (count == 0) continue;
+        // anywhere from the newest frame to two laps behind it
+        state ^= state << 13;
+        state ^= state >> 7;
+        state ^= state << 17;
+        uint64_t behind = state % (2 * SLOT_COUNT);
+        const shm_frame_t &frame = descriptors[count - 1 - (behind < count ? behind : 0)];
+
+        if (state & 1) {
+            int64_t size = reader.Read(frame, copy.data(), copy.size());
+            reads++;
+            if (size == SHM_READ_LAPPED) {
+                lapped++;
+            } else if (size < 0 || !intact(frame.sequence, copy.data(), (size_t) size)) {
+                torn++;
+            }
+        } else {
+            const BYTE *data = reader.Peek(frame);
+            peeks++;
+            if (data == nullptr) {
+                peeks_lapped++;
+                continue;
+            }
+            memcpy(copy.data(), data, frame.size);
+            // a copy is only trusted once the slot is confirmed unchanged
+            if (!reader.Validate(frame)) {
+                peeks_lapped++;
+            } else if (!intact(frame.sequence, copy.data(), frame.size)) {
+                torn++;
+            }
+        }
+    }
+    producer.join();
+
+    printf("frames=%llu reads=%llu lapped=%llu peeks=%llu peeks_lapped=%llu torn=%llu\n",
+           (unsigned long long) frames, (unsigned long long) reads, (unsigned long long) lapped,
+           (unsigned long long) peeks, (unsigned long long) peeks_lapped, (unsigned long long) torn);
+    check(torn == 0, "no torn frame is accepted");
+
+    // once the writer stopped, the last SLOT_COUNT frames are readable and the
+    // ones before were lapped
+    for (uint64_t back = 0; back < 2 * SLOT_COUNT && back < frames; back++) {
+        const shm_frame_t &frame = descriptors[frames - 1 - back];
+        int64_t size = reader.Read(frame, copy.data(), copy.size());
+        if (back < SLOT_COUNT) {
+            check(size >= 0 && intact(frame.sequence, copy.data(), (size_t) size), "recent frame reads back");
+            check(reader.Lag(frame) == back, "lag counts the frames written since");
+        } else {
+            check(size == SHM_READ_LAPPED, "old frame is reported lapped");
+        }
+    }
+
+    shm_frame_t last = descriptors[frames - 1];
+    shm_frame_t bad = last;
+    bad.slot = SLOT_COUNT;
+    check(reader.Read(bad, copy.data(), copy.size()) == SHM_READ_INVALID, "slot outside the ring is invalid");
+    check(reader.Peek(bad) == nullptr, "slot outside the ring is not peeked");
+    bad = last;
+    bad.size = SLOT_SIZE + 1;
+    check(reader.Read(bad, copy.data(), copy.size()) == SHM_READ_INVALID, "size above a slot is invalid");
+    check(reader.Peek(bad) == nullptr, "size above a slot is not peeked");
+    check(reader.Read(last, copy.data(), last.size - 1) == SHM_READ_TRUNCATED, "small buffer is truncated");
+}
+
+static void checkSeals(const char *path) {
+    int fd = receiveFd(path);
+    check(fd >= 0, "ring fd is served");
+    if (fd < 0) return;
+    check(ftruncate(fd, 1 << 20) != 0, "readers cannot grow the ring");
+    check(ftruncate(fd, 64) != 0, "readers cannot shrink the ring");
+    void *map = mmap(nullptr, 4096, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    check(map == MAP_FAILED, "readers cannot map the ring writable");
+    if (map != MAP_FAILED) munmap(map, 4096);
+    close(fd);
+}
+
+static void checkHeaderValidation() {
+    const char *path = "/tmp/anx_shm_ring_bad_test.sock";
+    int fd = (int) syscall(__NR_memfd_create, "anx_bad_ring", 0);
+    size_t size = 4096;
+    ftruncate(fd, (off_t) size);
+    void *map = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    auto *header = new (map) shm_ring_header_t();
+    header->magic = SHM_RING_MAGIC;
+    header->version = SHM_RING_VERSION;
+    // claims far more slots than the 4 KB the fd holds
+    header->slot_count = SLOT_COUNT;
+    header->slot_size = SLOT_SIZE;
+    header->slot_stride = SLOT_SIZE + 64;
+    munmap(map, size);
+
+    std::thread server = serveFdOnce(path, fd);
+    bool rejected = false;
+    try {
+        ShmRingReader reader(path);
+    } catch (std::exception &e) {
+        rejected = true;
+    }
+    server.join();
+    close(fd);
+    check(rejected, "a header larger than the ring is rejected");
+}
+
+int main(int argc, char **argv) {
+    const uint64_t frames = argc > 1 ? strtoull(argv[1], nullptr, 10) : 2000000ULL;
+    const char *path = "/tmp/anx_shm_ring_test.sock";
+
+    ShmRingWriter writer("anx_shm_ring_test", path, SLOT_COUNT, SLOT_SIZE);
+    ShmRingReader reader(path);
+    stress(writer, reader, frames);
+    checkSeals(path);
+    reader.close();
+    writer.close();
+
+    checkHeaderValidation();
+
+    printf(failures == 0 ? "PASS\n" : "FAIL\n");
+    return failures == 0 ? 0 : 1;
+}
@@ -0,0 +1,70 @@
+// Host stress test for TripleBuffer, detects torn or out of order reads.
+//
+// g++ -std=c++17 -O2 -pthread -I../../main/cpp/include triple_buffer_stress_test.cpp -o triple_buffer_stress_test
+// ./triple_buffer_stress_test [iterations]
+//
+
+#include <atomic>
+#include <cstdio>
+#include <cstdlib>
+#include <thread>
+
+#include "triple_buffer.h"
+
+// same shape as imu_data_t, every field of a written sample holds its
+// sequence number so a mix of two samples is easy to spot
+struct sample_t {
+    double values[16];
+    int64_t timestamps[6];
+    uint64_t sequence;
+};
+
+int main(int argc, char **argv) {
+    const uint64_t iterations = argc > 1 ? strtoull(argv[1], nullptr, 10) : 20000000ULL;
+
+    TripleBuffer<sample_t> buffer;
+    std::atomic<bool> done(false);
+
+    std::thread writer([&]() {
+        sample_t sample{};
+        for (uint64_t i = 1; i <= iterations; i++) {
+            sample.sequence = i;
+            for (double &value : sample.values) value = (double) i;
+            for (int64_t &timestamp : sample.timestamps) timestamp = (int64_t) i;
+            buffer.Write(sample);
+        }
+        done = true;
+    });
+
+    uint64_t reads = 0;
+    uint64_t torn = 0;
+    uint64_t reordered = 0;
+    uint64_t last = 0;
+    while (!done || buffer.HasNew()) {
+        const sample_t &sample = buffer.Read();
+        reads++;
+        for (double value : sample.values) {
+            if (value != (double) sample.sequence) {
+                torn++;
+                break;
+            }
+        }
+        for (int64_t timestamp : sample.timestamps) {
+            if (timestamp != (int64_t) sample.sequence) {
+                torn++;
+                break;
+            }
+        }
+        if (sample.sequence < last) reordered++;
+        last = sample.sequence;
+    }
+    writer.join();
+
+    printf("writes=%llu reads=%llu torn=%llu reordered=%llu last=%llu\n",
+           (unsigned long long) iterations, (unsigned long long) reads,
+           (unsigned long long) torn, (unsigned long long) reordered,
+           (unsigned long long) last);
+    bool ok = torn == 0 && reordered == 0 && last == iterations;
+    printf(ok ? "PASS\n" : "FAIL\n");
+    return ok ? 0 : 1;
+}
@@ -2,13 +2,31 @@ package com.flomobility.anx.comms
 
 import android.content.Context
 import com.flomobility.anx.native.NativeTfLiteRunnerServer
-import com.flomobility.anx.native.zmq.Server
+import com.flomobility.anx.native.NativeZmq
+import com.flomobility.anx.native.RecvStatus
+import com.flomobility.anx.native.zmq.RpcBroker
+import com.flomobility.anx.native.zmq.RpcServer
+import com.flomobility.anx.other.Constants
 import com.flomobility.anx.proto.Common
 import com.flomobility.anx.rpc.*
 import com.flomobility.anx.utils.AddressUtils
+import com.flomobility.anx.utils.CpuUtils
+import com.google.protobuf.CodedOutputStream
+import com.google.protobuf.MessageLite
 import dagger.hilt.android.qualifiers.ApplicationContext
-import org.zeromq.ZMQ
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
 import timber.log.Timber
+import java.nio.ByteBuffer
+import java.util.concurrent.Semaphore
 import java.util.concurrent.atomic.AtomicBoolean
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -16,6 +34,9 @@ import javax.inject.Singleton
 /**
  * Class to handle RPC calls received on a specified port
  *
+ * Requests are spread over a pool of worker threads behind an [RpcBroker], RPCs flagged
+ * as [Rpc.serialized] still run one at a time. [Rpc.deferred] RPCs run on a background
+ * dispatcher and are answered when they complete, leaving the worker free meanwhile.
  * */
 @Singleton
 class DeviceRpcHandler @Inject constructor(
@@ -36,113 +57,251 @@ class DeviceRpcHandler @Inject constructor(
     private val getStopDeviceImuRpc: StopDeviceImuRpc,
     private val startAndroidLogsRpc: StartAndroidLogsRpc,
     private val stopAndroidLogsRpc: StopAndroidLogsRpc,
-    private val restartAnxServiceRpc: RestartAnxServiceRpc
+    private val restartAnxServiceRpc: RestartAnxServiceRpc,
+    private val getImuHistoryRpc: GetImuHistoryRpc,
+    private val startDeviceSensorRpc: StartDeviceSensorRpc,
+    private val stopDeviceSensorRpc: StopDeviceSensorRpc
 ) {
 
     private var port: Int = 10002
 
-    private var rpcThread: RpcThread? = null
+    private var rpcBroker: RpcBroker? = null
 
-    private val rpcRegistry = hashMapOf<String, Rpc<*, *>>()
+    private val rpcWorkers = arrayListOf<RpcWorker>()
+
+    // a semaphore rather than a lock, deferred RPCs may release it from another thread
+    private val serializedRpcLock = Semaphore(1, true)
+
+    private val asyncRpcJob = SupervisorJob()
+
+    private val asyncRpcScope = CoroutineScope(asyncRpcJob + Dispatchers.IO)
+
+    /**
+     * Indexed by RPC id. The names are registered with the native server in the same
+     * order, which resolves every request to its index before it reaches Kotlin.
+     * */
+    private val rpcRegistry = arrayListOf<Rpc<*, *>>()
 
     init {
         addAllRpcToRegistry()
     }
 
     private fun addAllRpcToRegistry() {
-        rpcRegistry[getAnxVersionRpc.name] = getAnxVersionRpc
-        rpcRegistry[getAssetStateRpc.name] = getAssetStateRpc
-        rpcRegistry[getFloOsVersionRpc.name] = getFloOsVersionRpc
-        rpcRegistry[getImeiNumbersRpc.name] = getImeiNumbersRpc
-        rpcRegistry[getRebootRpc.name] = getRebootRpc
-        rpcRegistry[getSetHotspotRpc.name] = getSetHotspotRpc
-        rpcRegistry[getSetWifiRpc.name] = getSetWifiRpc
-        rpcRegistry[getShutdownRpc.name] = getShutdownRpc
-        rpcRegistry[getStartDeviceCameraRpc.name] = getStartDeviceCameraRpc
-        rpcRegistry[getStartDeviceGnssRpc.name] = getStartDeviceGnssRpc
-        rpcRegistry[getStartDeviceImuRpc.name] = getStartDeviceImuRpc
-        rpcRegistry[geStopDeviceCameraRpc.name] = geStopDeviceCameraRpc
-        rpcRegistry[getStopDeviceGnssRpc.name] = getStopDeviceGnssRpc
-        rpcRegistry[getStopDeviceImuRpc.name] = getStopDeviceImuRpc
-        rpcRegistry[startAndroidLogsRpc.name] = startAndroidLogsRpc
-        rpcRegistry[stopAndroidLogsRpc.name] = stopAndroidLogsRpc
-        rpcRegistry[restartAnxServiceRpc.name] = restartAnxServiceRpc
+        rpcRegistry.add(getAnxVersionRpc)
+        rpcRegistry.add(getAssetStateRpc)
+        rpcRegistry.add(getFloOsVersionRpc)
+        rpcRegistry.add(getImeiNumbersRpc)
+        rpcRegistry.add(getRebootRpc)
+        rpcRegistry.add(getSetHotspotRpc)
+        rpcRegistry.add(getSetWifiRpc)
+        rpcRegistry.add(getShutdownRpc)
+        rpcRegistry.add(getStartDeviceCameraRpc)
+        rpcRegistry.add(getStartDeviceGnssRpc)
+        rpcRegistry.add(getStartDeviceImuRpc)
+        rpcRegistry.add(geStopDeviceCameraRpc)
+        rpcRegistry.add(getStopDeviceGnssRpc)
+        rpcRegistry.add(getStopDeviceImuRpc)
+        rpcRegistry.add(startAndroidLogsRpc)
+        rpcRegistry.add(stopAndroidLogsRpc)
+        rpcRegistry.add(restartAnxServiceRpc)
+        rpcRegistry.add(getImuHistoryRpc)
+        rpcRegistry.add(startDeviceSensorRpc)
+        rpcRegistry.add(stopDeviceSensorRpc)
     }
 
-    fun init(port: Int) {
+    fun init(port: Int, workerCount: Int = DEFAULT_WORKER_COUNT) {
         this.port = port
-        this.rpcThread = RpcThread()
-        this.rpcThread?.start()
+
+        // every native endpoint shares one context for the life of the process, configure it
+        // before the first is created. Its I/O thread only moves local ipc traffic, it stays
+        // on the efficiency cores
+        if (contextConfigured.compareAndSet(false, true) &&
+            !NativeZmq.configureContext(ZMQ_IO_THREADS, CpuUtils.getEfficiencyCores())
+        ) {
+            Timber.tag(TAG).e("Error in configuring the native ZMQ context, keeping its defaults")
+        }
+        NativeTfLiteRunnerServer.initAll(
+            AddressUtils.getRootNamedPipe(context, "")
+        )
+        NativeTfLiteRunnerServer.startAll()
+
+        val broker = RpcBroker()
+        try {
+            broker.init(AddressUtils.getNamedPipeAddress(context, "device_rpc"))
+        } catch (e: Exception) {
+            Timber.tag(TAG).e("Error in $TAG : ${e.message}")
+            return
+        }
+        rpcBroker = broker
+        repeat(workerCount) { index ->
+            rpcWorkers.add(RpcWorker(broker, index).apply { start() })
+        }
+        Timber.tag(TAG).i("Started device RPC handler with $workerCount workers")
     }
 
     fun destroy() {
-        rpcThread?.interrupt?.set(true)
-        rpcThread?.join()
-        rpcThread = null
+        // deferred replies are sent by the workers, let them finish first
+        asyncRpcJob.cancelChildren()
+        runBlocking { asyncRpcJob.children.toList().joinAll() }
+        rpcWorkers.forEach { it.shutdown() }
+        rpcWorkers.forEach { it.join() }
+        rpcWorkers.clear()
+        rpcBroker?.close()
+        rpcBroker = null
+        Timber.tag(TAG).i("Successfully stopped device RPC handler server")
     }
 
-    inner class RpcThread : Thread() {
+    inner class RpcWorker(
+        private val broker: RpcBroker,
+        index: Int
+    ) : Thread() {
+
+        init {
+            name = "device-rpc-worker-$index"
+        }
 
         val interrupt = AtomicBoolean(false)
 
-//        private lateinit var socket: ZMQ.Socket
+        private val rpcServer = RpcServer()
 
-        private lateinit var rpcServer: Server
+        // reused for every request so that the receive loop does not allocate
+        private val requestBuffer = ByteBuffer.allocateDirect(MAX_REQUEST_SIZE)
+        private val responseBuffer = ByteBuffer.allocateDirect(MAX_RESPONSE_SIZE)
 
-        override fun run() {
-            rpcServer = Server()
+        /**
+         * Stops the worker, the receive blocks without a timeout so it is woken up.
+         * */
+        fun shutdown() {
+            interrupt.set(true)
+            rpcServer.wakeup()
+        }
 
-            NativeTfLiteRunnerServer.initAll(
-                AddressUtils.getRootNamedPipe(context, "")
-            )
-            NativeTfLiteRunnerServer.startAll()
+        override fun run() {
             try {
-                rpcServer.init(
-                    AddressUtils.getNamedPipeAddress(
-                        context, "device_rpc"
-                    )
-                )
+                rpcServer.init(broker)
+                rpcServer.register(rpcRegistry.map { it.name })
                 while (!this.interrupt.get()) {
-                    val first = rpcServer.listen()
-                    if(!first.success) continue
-                    if(first.more) {
-                        val second = rpcServer.listen()
-                        val rpcName = String(first.data, ZMQ.CHARSET)
-                        val rpc = rpcRegistry[rpcName]
-                        handleRpc(rpc, second.data)
+                    val status = rpcServer.receive(requestBuffer)
+                    // a failing request is answered, the worker keeps serving the others
+                    try {
+                        handleStatus(status)
+                    } catch (e: Exception) {
+                        Timber.tag(TAG).e("Error in $name : ${e.message}")
+                        sendResponse(failedResponse(e))
                     }
                 }
-                rpcServer.close()
-                Timber.tag(TAG).i("Successfully stopped device RPC handler server")
             } catch (e: Exception) {
-                Timber.tag(TAG).e("Error in $TAG : ${e.message}")
+                Timber.tag(TAG).e("Error in $name : ${e.message}")
+            } finally {
+                // disconnects from the broker, which stops routing requests here
+                rpcServer.close()
             }
         }
 
-        private fun handleRpc(rpc: Rpc<*, *>?, data: ByteArray) {
-            if (rpc == null) {
-                /*socket.sendStdResponse(
-                    success = false,
-                    message = "Invalid RPC received : "
-                )*/
-                Timber.e("Invalid RPC received")
-                rpcServer.send(
-                    Common.StdResponse.newBuilder().apply {
-                        success = false
-                        message = "Invalid RPC received"
-                    }.build().toByteArray()
-                )
-                return
+        private fun handleStatus(status: Long) {
+            when {
+                status == RecvStatus.UNKNOWN_RPC || status == RecvStatus.MALFORMED -> {
+                    Timber.tag(TAG).e("Invalid RPC received")
+                    sendResponse(INVALID_RPC_RESPONSE)
+                }
+                !RecvStatus.isReceived(status) -> return
+                RecvStatus.isTruncated(status) -> {
+                    Timber.tag(TAG).e("RPC payload of ${RecvStatus.size(status)} bytes is too large")
+                    sendResponse(PAYLOAD_TOO_LARGE_RESPONSE)
+                }
+                else -> handleRpc(rpcRegistry[RecvStatus.rpcId(status)], requestBuffer)
             }
+        }
+
+        private fun handleRpc(rpc: Rpc<*, *>, data: ByteBuffer) {
             Timber.tag(TAG).i("Received RPC : ${rpc.name}")
-            rpcServer.send(rpc.execute(data).toByteArray())
-//            socket.send(rpc.execute(data).toByteArray())
+            if (rpc.deferred) {
+                handleDeferredRpc(rpc, data)
+                return
+            }
+            val response = runSerializedIf(rpc.serialized) { rpc.execute(data) }
+            sendResponse(response)
+        }
+
+        private fun handleDeferredRpc(rpc: Rpc<*, *>, data: ByteBuffer) {
+            val execution = rpc.deferExecution(data)
+            val replyHandle = rpcServer.deferReply()
+            val server = rpcServer
+            // started even if the scope is cancelled first, so that the reply is always sent
+            asyncRpcScope.launch(start = CoroutineStart.ATOMIC) {
+                var response: MessageLite? = null
+                try {
+                    ensureActive()
+                    response = runSerializedIf(rpc.serialized) { execution() }
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    Timber.tag(TAG).e("Error in ${rpc.name} : ${e.message}")
+                    response = failedResponse(e)
+                } finally {
+                    server.sendDeferred(replyHandle, (response ?: CANCELLED_RESPONSE).toByteArray())
+                }
+            }
+        }
+
+        private fun sendResponse(response: MessageLite) {
+            if (response.serializedSize > responseBuffer.capacity()) {
+                rpcServer.send(response.toByteArray())
+                return
+            }
+            responseBuffer.clear()
+            val output = CodedOutputStream.newInstance(responseBuffer)
+            response.writeTo(output)
+            output.flush()
+            responseBuffer.flip()
+            rpcServer.send(responseBuffer)
         }
 
     }
 
+    private fun failedResponse(e: Exception): Common.StdResponse {
+        return Common.StdResponse.newBuilder().apply {
+            success = false
+            message = e.message ?: Constants.UNKNOWN_ERROR_MSG
+        }.build()
+    }
+
+    private inline fun <T> runSerializedIf(serialized: Boolean, block: () -> T): T {
+        if (!serialized) return block()
+        serializedRpcLock.acquire()
+        try {
+            return block()
+        } finally {
+            serializedRpcLock.release()
+        }
+    }
+
     companion object {
         private const val TAG = "DeviceRpcHandler"
+
+        private const val DEFAULT_WORKER_COUNT = 4
+        // one I/O thread is plenty for the local ipc endpoints of the process
+        private const val ZMQ_IO_THREADS = 1
+        // a restarted service finds the context already in use
+        private val contextConfigured = AtomicBoolean(false)
+
+        private const val MAX_REQUEST_SIZE = 64 * 1024
+        private const val MAX_RESPONSE_SIZE = 64 * 1024
+
+        private val INVALID_RPC_RESPONSE = Common.StdResponse.newBuilder().apply {
+            success = false
+            message = "Invalid RPC received"
+        }.build()
+
+        private val CANCELLED_RESPONSE = Common.StdResponse.newBuilder().apply {
+            success = false
+            message = "RPC handler stopped before the RPC completed"
+        }.build()
+
+        private val PAYLOAD_TOO_LARGE_RESPONSE = Common.StdResponse.newBuilder().apply {
+            success = false
+            message = "RPC payload exceeds $MAX_REQUEST_SIZE bytes"
+        }.build()
     }
 
 }
@@ -3,6 +3,7 @@ package com.flomobility.anx.rpc
 import com.flomobility.anx.device.BuildConfig
 import com.flomobility.anx.proto.Common
 import com.flomobility.anx.proto.Device
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -23,8 +24,7 @@ class GetAnxVersionRpc @Inject constructor() :
         return versionResponse.build()
     }
 
-    override fun execute(req: ByteArray): Device.VersionResponse {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 
 }
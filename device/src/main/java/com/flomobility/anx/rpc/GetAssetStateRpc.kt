@@ -5,6 +5,7 @@ import androidx.annotation.RequiresApi
 import com.flomobility.anx.assets.AssetManager
 import com.flomobility.anx.proto.Assets
 import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -21,8 +22,6 @@ class GetAssetStateRpc @Inject constructor(
         return assetManager.getAssetState()
     }
 
-    @RequiresApi(Build.VERSION_CODES.N)
-    override fun execute(req: ByteArray): Assets.AssetState {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 }
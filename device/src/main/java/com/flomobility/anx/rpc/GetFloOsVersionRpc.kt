@@ -2,6 +2,7 @@ package com.flomobility.anx.rpc
 
 import com.flomobility.anx.proto.Common
 import com.flomobility.anx.proto.Device
+import com.google.protobuf.Parser
 import timber.log.Timber
 import java.io.BufferedReader
 import java.io.IOException
@@ -36,7 +37,6 @@ class GetFloOsVersionRpc @Inject constructor() :
         return getFloOsVersion()
     }
 
-    override fun execute(req: ByteArray): Device.VersionResponse {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 }
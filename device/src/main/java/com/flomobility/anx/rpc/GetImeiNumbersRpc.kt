@@ -5,6 +5,7 @@ import androidx.annotation.RequiresApi
 import com.flomobility.anx.phone.PhoneManager
 import com.flomobility.anx.proto.Common
 import com.flomobility.anx.proto.Device
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -21,8 +22,6 @@ class GetImeiNumbersRpc @Inject constructor(
         return phoneManager.getImei()
     }
 
-    @RequiresApi(Build.VERSION_CODES.O)
-    override fun execute(req: ByteArray): Device.GetImeiNumbersResponse {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 }
@@ -0,0 +1,26 @@
+package com.flomobility.anx.rpc
+
+import android.os.Build
+import androidx.annotation.RequiresApi
+import com.flomobility.anx.assets.AssetManager
+import com.flomobility.anx.proto.Assets
+import com.google.protobuf.Parser
+import javax.inject.Inject
+import javax.inject.Singleton
+
+@Singleton
+class GetImuHistoryRpc @Inject constructor(
+    private val assetManager: AssetManager
+) : Rpc<Assets.GetImuHistory, Assets.ImuHistory>() {
+
+    override val name: String
+        get() = "GetImuHistory"
+
+    @RequiresApi(Build.VERSION_CODES.N)
+    override fun execute(req: Assets.GetImuHistory): Assets.ImuHistory {
+        return assetManager.getImuHistory(req)
+    }
+
+    override val parser: Parser<Assets.GetImuHistory>
+        get() = Assets.GetImuHistory.parser()
+}
@@ -1,6 +1,7 @@
 package com.flomobility.anx.rpc
 
 import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
 import timber.log.Timber
 import java.io.IOException
 import javax.inject.Inject
@@ -32,13 +33,15 @@ class RebootRpc @Inject constructor() :
     override val name: String
         get() = "Reboot"
 
+    override val serialized: Boolean
+        get() = true
+
     override fun execute(req: Common.Empty): Common.StdResponse {
         return reboot()
     }
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 
 
 }
@@ -1,9 +1,9 @@
 package com.flomobility.anx.rpc
 
-import android.os.Process
 import com.flomobility.anx.other.Constants
 import com.flomobility.anx.other.runAsRoot
 import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
 import timber.log.Timber
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -44,11 +44,13 @@ class RestartAnxServiceRpc @Inject constructor() :
     override val name: String
         get() = "RestartAnxService"
 
+    override val serialized: Boolean
+        get() = true
+
     override fun execute(req: Common.Empty): Common.StdResponse {
         return restartAnxService()
     }
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 }
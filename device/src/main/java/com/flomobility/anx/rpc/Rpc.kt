@@ -1,13 +1,58 @@
 package com.flomobility.anx.rpc
 
 import com.google.protobuf.Message
+import com.google.protobuf.Parser
+import java.nio.ByteBuffer
 
 abstract class Rpc<Req: Message, Rep: Message> {
 
     abstract val name: String
 
+    abstract val parser: Parser<Req>
+
+    /**
+     * RPCs that change device or asset state return true, the handler never runs two
+     * of them at the same time while other RPCs keep being served in parallel.
+     * */
+    open val serialized: Boolean = false
+
+    /**
+     * RPCs whose work is long-running return true, the handler then answers them from
+     * [executeAsync] once it completes instead of holding a worker until it does. Only
+     * worth it with an [executeAsync] that suspends, a blocking one still holds a thread
+     * of the background dispatcher.
+     * */
+    open val deferred: Boolean = false
+
     abstract fun execute(req: Req): Rep
 
-    abstract fun execute(req: ByteArray): Rep
+    fun execute(req: ByteArray): Rep {
+        return execute(parser.parseFrom(req))
+    }
+
+    /**
+     * Parses the request straight from the bytes remaining in [req], so that
+     * reusable receive buffers never have to be copied into an array.
+     * */
+    fun execute(req: ByteBuffer): Rep {
+        return execute(parser.parseFrom(req))
+    }
+
+    /**
+     * Asynchronous variant of [execute], runs on a background dispatcher. Defaults to
+     * the synchronous implementation.
+     * */
+    open suspend fun executeAsync(req: Req): Rep {
+        return execute(req)
+    }
+
+    /**
+     * Parses [req] right away, so the buffer can be reused, and returns the call to
+     * [executeAsync] to run later.
+     * */
+    fun deferExecution(req: ByteBuffer): suspend () -> Rep {
+        val request = parser.parseFrom(req)
+        return { executeAsync(request) }
+    }
 
 }
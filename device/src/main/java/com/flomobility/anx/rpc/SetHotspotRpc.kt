@@ -3,6 +3,7 @@ package com.flomobility.anx.rpc
 import com.flomobility.anx.hotspot.HotspotManager
 import com.flomobility.anx.proto.Common
 import com.flomobility.anx.proto.Device
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -23,11 +24,13 @@ class SetHotspotRpc @Inject constructor(
     override val name: String
         get() = "SetHotspot"
 
+    override val serialized: Boolean
+        get() = true
+
     override fun execute(req: Device.SetWifiRequest): Common.StdResponse {
         return setHotspot(req)
     }
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Device.SetWifiRequest.parseFrom(req))
-    }
+    override val parser: Parser<Device.SetWifiRequest>
+        get() = Device.SetWifiRequest.parser()
 }
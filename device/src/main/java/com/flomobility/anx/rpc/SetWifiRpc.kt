@@ -4,6 +4,7 @@ import com.flomobility.anx.common.toStdResponse
 import com.flomobility.anx.proto.Common
 import com.flomobility.anx.proto.Device
 import com.flomobility.anx.wifi.WiFiManager
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -15,12 +16,14 @@ class SetWifiRpc @Inject constructor(
     override val name: String
         get() = "SetWifi"
 
+    override val serialized: Boolean
+        get() = true
+
     override fun execute(req: Device.SetWifiRequest): Common.StdResponse {
         val wifiStatus = wiFiManager.connectToWifi(req.ssid, req.password)
         return wifiStatus.toStdResponse()
     }
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Device.SetWifiRequest.parseFrom(req))
-    }
+    override val parser: Parser<Device.SetWifiRequest>
+        get() = Device.SetWifiRequest.parser()
 }
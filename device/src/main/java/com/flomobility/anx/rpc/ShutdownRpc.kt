@@ -1,6 +1,7 @@
 package com.flomobility.anx.rpc
 
 import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
 import timber.log.Timber
 import java.io.IOException
 import javax.inject.Inject
@@ -32,11 +33,13 @@ class ShutdownRpc @Inject constructor() :
     override val name: String
         get() = "Shutdown"
 
+    override val serialized: Boolean
+        get() = true
+
     override fun execute(req: Common.Empty): Common.StdResponse {
         return shutdown()
     }
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 }
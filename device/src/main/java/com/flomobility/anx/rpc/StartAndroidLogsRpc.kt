@@ -2,6 +2,7 @@ package com.flomobility.anx.rpc
 
 import com.flomobility.anx.logs.AndroidLogsUtil
 import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -13,6 +14,9 @@ class StartAndroidLogsRpc @Inject constructor(
     override val name: String
         get() = "StartAndroidLogs"
 
+    override val serialized: Boolean
+        get() = true
+
     private fun startLogging(): Common.StdResponse {
         val stdResponse = Common.StdResponse.newBuilder()
         val result = androidLogsUtil.startLogging()
@@ -25,7 +29,6 @@ class StartAndroidLogsRpc @Inject constructor(
         return startLogging()
     }
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 }
@@ -3,6 +3,7 @@ package com.flomobility.anx.rpc
 import com.flomobility.anx.proto.Assets
 import com.flomobility.anx.proto.Common
 import com.flomobility.anx.proto.Device
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -21,6 +22,9 @@ class StartDeviceCameraRpc @Inject constructor() :
     override val name: String
         get() = "StartDeviceCamera"
 
+    override val serialized: Boolean
+        get() = true
+
     override fun execute(req: Assets.StartDeviceCamera): Common.StdResponse {
         val stdResponse = Common.StdResponse.newBuilder()
         stdResponse.apply {
@@ -31,7 +35,6 @@ class StartDeviceCameraRpc @Inject constructor() :
 
     }
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Assets.StartDeviceCamera.parseFrom(req))
-    }
+    override val parser: Parser<Assets.StartDeviceCamera>
+        get() = Assets.StartDeviceCamera.parser()
 }
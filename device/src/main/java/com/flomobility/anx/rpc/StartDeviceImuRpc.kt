@@ -3,6 +3,7 @@ package com.flomobility.anx.rpc
 import com.flomobility.anx.assets.AssetManager
 import com.flomobility.anx.proto.Assets
 import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -14,11 +15,13 @@ class StartDeviceImuRpc @Inject constructor(
     override val name: String
         get() = "StartDeviceImu"
 
+    override val serialized: Boolean
+        get() = true
+
     override fun execute(req: Assets.StartDeviceImu): Common.StdResponse {
         return assetManager.startDeviceImu(req)
     }
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Assets.StartDeviceImu.parseFrom(req))
-    }
+    override val parser: Parser<Assets.StartDeviceImu>
+        get() = Assets.StartDeviceImu.parser()
 }
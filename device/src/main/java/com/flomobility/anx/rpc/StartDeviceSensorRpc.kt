@@ -0,0 +1,27 @@
+package com.flomobility.anx.rpc
+
+import com.flomobility.anx.assets.AssetManager
+import com.flomobility.anx.proto.Assets
+import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
+import javax.inject.Inject
+import javax.inject.Singleton
+
+@Singleton
+class StartDeviceSensorRpc @Inject constructor(
+    private val assetManager: AssetManager
+) : Rpc<Assets.StartDeviceSensor, Common.StdResponse>() {
+
+    override val name: String
+        get() = "StartDeviceSensor"
+
+    override val serialized: Boolean
+        get() = true
+
+    override fun execute(req: Assets.StartDeviceSensor): Common.StdResponse {
+        return assetManager.startDeviceSensor(req)
+    }
+
+    override val parser: Parser<Assets.StartDeviceSensor>
+        get() = Assets.StartDeviceSensor.parser()
+}
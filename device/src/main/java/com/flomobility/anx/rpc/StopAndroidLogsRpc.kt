@@ -2,6 +2,7 @@ package com.flomobility.anx.rpc
 
 import com.flomobility.anx.logs.AndroidLogsUtil
 import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -13,6 +14,9 @@ class StopAndroidLogsRpc @Inject constructor(
     override val name: String
         get() = "StopAndroidLogs"
 
+    override val serialized: Boolean
+        get() = true
+
     private fun stopLogging(): Common.StdResponse {
         val stdResponse = Common.StdResponse.newBuilder()
         val result = androidLogsUtil.stopLogging()
@@ -25,7 +29,6 @@ class StopAndroidLogsRpc @Inject constructor(
         return stopLogging()
     }
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 }
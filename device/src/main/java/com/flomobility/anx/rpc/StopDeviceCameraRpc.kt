@@ -1,6 +1,7 @@
 package com.flomobility.anx.rpc
 
 import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -20,6 +21,9 @@ class StopDeviceCameraRpc @Inject constructor() :
     override val name: String
         get() = "StopDeviceCamera"
 
+    override val serialized: Boolean
+        get() = true
+
     override fun execute(req: Common.Empty): Common.StdResponse {
         val stdResponse = Common.StdResponse.newBuilder()
         stdResponse.apply {
@@ -29,7 +33,6 @@ class StopDeviceCameraRpc @Inject constructor() :
         return stdResponse.build()
     }
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 }
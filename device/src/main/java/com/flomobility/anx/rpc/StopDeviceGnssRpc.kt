@@ -4,6 +4,7 @@ import android.os.Build
 import androidx.annotation.RequiresApi
 import com.flomobility.anx.assets.AssetManager
 import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -15,13 +16,14 @@ class StopDeviceGnssRpc @Inject constructor(
     override val name: String
         get() = "StopDeviceGnss"
 
+    override val serialized: Boolean
+        get() = true
+
     @RequiresApi(Build.VERSION_CODES.N)
     override fun execute(req: Common.Empty): Common.StdResponse {
         return assetManager.stopDeviceGnss()
     }
 
-    @RequiresApi(Build.VERSION_CODES.N)
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Common.Empty.parseFrom(req))
-    }
+    override val parser: Parser<Common.Empty>
+        get() = Common.Empty.parser()
 }
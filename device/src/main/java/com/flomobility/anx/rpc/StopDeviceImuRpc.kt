@@ -1,23 +1,27 @@
 package com.flomobility.anx.rpc
 
 import com.flomobility.anx.assets.AssetManager
+import com.flomobility.anx.proto.Assets
 import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
 import javax.inject.Inject
 import javax.inject.Singleton
 
 @Singleton
 class StopDeviceImuRpc @Inject constructor(
     private val assetManager: AssetManager
-) : Rpc<Common.Empty, Common.StdResponse>() {
+) : Rpc<Assets.StopDeviceImu, Common.StdResponse>() {
 
     override val name: String
         get() = "StopDeviceImu"
 
-    override fun execute(req: Common.Empty): Common.StdResponse {
-        return assetManager.stopDeviceImu()
-    }
+    override val serialized: Boolean
+        get() = true
 
-    override fun execute(req: ByteArray): Common.StdResponse {
-        return execute(Common.Empty.parseFrom(req))
+    override fun execute(req: Assets.StopDeviceImu): Common.StdResponse {
+        return assetManager.stopDeviceImu(req)
     }
+
+    override val parser: Parser<Assets.StopDeviceImu>
+        get() = Assets.StopDeviceImu.parser()
 }
@@ -0,0 +1,27 @@
+package com.flomobility.anx.rpc
+
+import com.flomobility.anx.assets.AssetManager
+import com.flomobility.anx.proto.Assets
+import com.flomobility.anx.proto.Common
+import com.google.protobuf.Parser
+import javax.inject.Inject
+import javax.inject.Singleton
+
+@Singleton
+class StopDeviceSensorRpc @Inject constructor(
+    private val assetManager: AssetManager
+) : Rpc<Assets.StopDeviceSensor, Common.StdResponse>() {
+
+    override val name: String
+        get() = "StopDeviceSensor"
+
+    override val serialized: Boolean
+        get() = true
+
+    override fun execute(req: Assets.StopDeviceSensor): Common.StdResponse {
+        return assetManager.stopDeviceSensor(req)
+    }
+
+    override val parser: Parser<Assets.StopDeviceSensor>
+        get() = Assets.StopDeviceSensor.parser()
+}